@@ -0,0 +1,156 @@
+package com.appthwack.appthwack;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/**
+ * Polling policy which uses a run's reported progress to decide when to check it again.
+ *
+ * While a run is queued (no tests completed yet) the delay backs off exponentially.
+ * Once tests start completing, the remaining time is estimated from the completion rate
+ * since the run started and the next check is placed part way into that estimate, so
+ * checks become more frequent as the run nears completion. Every delay is clamped to
+ * the minimum and maximum intervals and then randomized by a jitter factor within those
+ * bounds, so that many watchers do not poll in lock-step even when their delays are
+ * capped. The minimum interval defaults to the same 5 second floor as
+ * {@link AppThwackRun#waitForCompleted(int)}.
+ */
+public class AppThwackAdaptivePollingPolicy implements AppThwackPollingPolicy {
+
+    public static final long DefaultMinimumInterval = 5 * 1000;
+    public static final long DefaultMaximumInterval = 60 * 1000;
+    public static final long DefaultQueuedInterval = 5 * 1000;
+    public static final double DefaultFraction = 0.5;
+    public static final double DefaultJitter = 0.2;
+
+    private volatile long minimumInterval = DefaultMinimumInterval;
+    private volatile long maximumInterval = DefaultMaximumInterval;
+    private volatile long queuedInterval = DefaultQueuedInterval;
+    private volatile double fraction = DefaultFraction;
+    private volatile double jitter = DefaultJitter;
+
+    public AppThwackAdaptivePollingPolicy() {
+
+    }
+
+    public long nextDelay(AppThwackResult.ResultSummary summary, int attempt, long elapsed) {
+        return jitter(clamp(estimate(summary, attempt, elapsed)));
+    }
+
+    /**
+     * Returns the delay before jitter is applied.
+     */
+    private double estimate(AppThwackResult.ResultSummary summary, int attempt, long elapsed) {
+        if(summary == null || summary.count == null || summary.completed == null
+                || summary.count <= 0 || summary.completed <= 0) {
+            // Queued or not yet reporting progress; back off until tests start finishing.
+            int exponent = Math.min(Math.max(attempt - 1, 0), 16);
+            return (double)queuedInterval * (1L << exponent);
+        }
+        if(summary.completed >= summary.count) {
+            // Every test has finished; only the report remains.
+            return minimumInterval;
+        }
+        long running = Math.max(elapsed, sinceStart(summary));
+        if(running <= 0) {
+            return minimumInterval;
+        }
+        double rate = (double)summary.completed / running;
+        double remaining = (summary.count - summary.completed) / rate;
+        return remaining * fraction;
+    }
+
+    /**
+     * Randomize the delay by up to the jitter factor either way, without leaving [minimum, maximum].
+     */
+    private long jitter(double delay) {
+        if(jitter <= 0) {
+            return Math.round(delay);
+        }
+        double low = Math.max(minimumInterval, delay * (1.0 - jitter));
+        double high = Math.min(maximumInterval, delay * (1.0 + jitter));
+        return Math.round(low + (high - low) * ThreadLocalRandom.current().nextDouble());
+    }
+
+    private double clamp(double delay) {
+        return Math.min(maximumInterval, Math.max(minimumInterval, delay));
+    }
+
+    /**
+     * Returns milliseconds since the run started according to AppThwack, or zero if the
+     * start time is missing or cannot be parsed. Times are assumed to be UTC.
+     */
+    private static long sinceStart(AppThwackResult.ResultSummary summary) {
+        long start = summary.startMillis();
+        if(start < 0) {
+            return 0;
+        }
+        long since = System.currentTimeMillis() - start;
+        return since > 0 ? since : 0;
+    }
+
+    public long getMinimumInterval() {
+        return minimumInterval;
+    }
+
+    /**
+     * Set the shortest delay between checks, used as a run nears completion.
+     * @param ms interval in milliseconds.
+     */
+    public void setMinimumInterval(long ms) {
+        this.minimumInterval = ms;
+    }
+
+    public long getMaximumInterval() {
+        return maximumInterval;
+    }
+
+    /**
+     * Set the longest delay between checks, which caps queued backoff and long estimates.
+     * @param ms interval in milliseconds.
+     */
+    public void setMaximumInterval(long ms) {
+        this.maximumInterval = ms;
+    }
+
+    public long getQueuedInterval() {
+        return queuedInterval;
+    }
+
+    /**
+     * Set the initial delay while a run is queued; it doubles on every check until progress is reported.
+     * @param ms interval in milliseconds.
+     */
+    public void setQueuedInterval(long ms) {
+        this.queuedInterval = ms;
+    }
+
+    public double getFraction() {
+        return fraction;
+    }
+
+    /**
+     * Set the fraction of the estimated remaining time to wait before the next check.
+     * @param fraction value between 0 and 1.
+     */
+    public void setFraction(double fraction) {
+        this.fraction = fraction;
+    }
+
+    public double getJitter() {
+        return jitter;
+    }
+
+    /**
+     * Set how much each delay is randomized, e.g. 0.2 spreads delays by plus or minus 20%.
+     * @param jitter value between 0 and 1; zero disables jitter.
+     */
+    public void setJitter(double jitter) {
+        this.jitter = jitter;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AppThwackAdaptivePollingPolicy (%d-%d ms, jitter %.2f)", minimumInterval, maximumInterval, jitter);
+    }
+}
@@ -1,8 +1,17 @@
 package com.appthwack.appthwack;
 
 import java.lang.Boolean;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.net.URI;
 import java.net.URISyntaxException;
 
@@ -11,19 +20,35 @@ import com.fasterxml.jackson.jaxrs.json.JacksonJaxbJsonProvider;
 
 import com.sun.jersey.api.json.JSONConfiguration;
 import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientRequest;
+import com.sun.jersey.api.client.ClientResponse;
 import com.sun.jersey.api.client.WebResource;
 import com.sun.jersey.api.client.GenericType;
 import com.sun.jersey.api.client.config.ClientConfig;
 import com.sun.jersey.api.client.config.DefaultClientConfig;
+import com.sun.jersey.api.client.filter.ClientFilter;
 import com.sun.jersey.api.client.filter.HTTPBasicAuthFilter;
 import com.sun.jersey.api.client.filter.LoggingFilter;
 
 import com.sun.jersey.client.apache.ApacheHttpClient;
+import com.sun.jersey.client.apache.ApacheHttpClientHandler;
+import com.sun.jersey.client.apache.DefaultApacheHttpMethodExecutor;
 import com.sun.jersey.client.apache.config.DefaultApacheHttpClientConfig;
 import com.sun.jersey.client.apache.config.ApacheHttpClientState;
 import com.sun.jersey.client.apache.config.DefaultCredentialsProvider;
 import com.sun.jersey.client.apache.config.ApacheHttpClientConfig;
 
+import org.apache.commons.httpclient.DefaultHttpMethodRetryHandler;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.params.HttpMethodParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+
+import com.sun.jersey.core.header.FormDataContentDisposition;
+import com.sun.jersey.multipart.FormDataBodyPart;
 import com.sun.jersey.multipart.FormDataMultiPart;
 import com.sun.jersey.multipart.file.FileDataBodyPart;
 
@@ -32,6 +57,10 @@ import com.appthwack.appthwack.AppThwackException;
 
 /**
  * Client for the AppThwack REST API.
+ *
+ * Instances are thread-safe and are meant to be shared: every thread issuing requests
+ * through the same client draws from one pool of persistent connections, configured
+ * with {@link AppThwackClientConfig}. Call {@link #close()} to release the pool.
  * @author ahawker
  *
  */
@@ -39,11 +68,42 @@ public class AppThwackApi {
 
     private static final String DOMAIN = "https://appthwack.com";
     private static final String ROOT = "/api";
+    /** Request property marking a request whose body is streamed and cannot be sent twice. */
+    static final String PropertyStreamedBody = "com.appthwack.appthwack.streamedBody";
+    private static final Logger Log = Logger.getLogger(AppThwackApi.class.getName());
+    private static final long DefaultProjectCacheTtl = 5 * 60 * 1000;
+    private static final long DefaultResultCacheCapacity = 32 * 1024 * 1024;
 
     private Client client;
     private WebResource root;
     private URI uri;
 
+    private final AppThwackRequestCoalescer requests = new AppThwackRequestCoalescer();
+    private final AppThwackResultCache resultCache = new AppThwackResultCache(DefaultResultCacheCapacity);
+
+    private int uploadChunkSize = AppThwackClientConfig.DefaultUploadChunkSize;
+    private volatile AppThwackUploadCache uploadCache;
+
+    private MultiThreadedHttpConnectionManager connectionManager;
+    private IdleConnectionTimeoutThread idleConnectionReaper;
+
+    private final AppThwackLookupCache<AppThwackProject> projectCache = new AppThwackLookupCache<AppThwackProject>(DefaultProjectCacheTtl) {
+        @Override
+        protected List<AppThwackProject> fetch() {
+            return fetchProjects();
+        }
+
+        @Override
+        protected Integer idOf(AppThwackProject project) {
+            return project.id;
+        }
+
+        @Override
+        protected String nameOf(AppThwackProject project) {
+            return project.name;
+        }
+    };
+
     /**
      * Create a new client using the given API Key.
      * @param apiKey API Key tied to AppThwack account.
@@ -68,6 +128,30 @@ public class AppThwackApi {
      * @param resourceRoot URL endpoint for the API (default: /api).
      */
     public AppThwackApi(String apiKey, String domain, String resourceRoot) {
+        this(apiKey, domain, resourceRoot, new AppThwackClientConfig());
+    }
+
+    /**
+     * Create a new client using the given API Key and HTTP transport settings.
+     * @param apiKey API Key tied to AppThwack account.
+     * @param config connection pool and timeout settings.
+     */
+    public AppThwackApi(String apiKey, AppThwackClientConfig config) {
+        this(apiKey, DOMAIN, ROOT, config);
+    }
+
+    /**
+     * Create a new client using the given API Key, using a specific domain, API endpoint
+     * and HTTP transport settings.
+     *
+     * The client is thread-safe: a single instance may be shared by any number of threads,
+     * which will draw connections from one pool sized by the given config.
+     * @param apiKey API Key tied to AppThwack account.
+     * @param domain HTTP domain of AppThwack (default: https://appthwack.com).
+     * @param resourceRoot URL endpoint for the API (default: /api).
+     * @param config connection pool and timeout settings.
+     */
+    public AppThwackApi(String apiKey, String domain, String resourceRoot, AppThwackClientConfig config) {
         try {
             uri = new URI(domain + resourceRoot);
         }
@@ -79,17 +163,49 @@ public class AppThwackApi {
                 throw new RuntimeException(ex);
             }
         }
-        client = getClient(apiKey);
+        client = getClient(apiKey, config);
         root = client.resource(uri);
+        uploadChunkSize = config.getUploadChunkSize();
     }
 
     /**
      * Returns a configured Jersey client used to communicate with AppThwack.
      * @param apiKey API Key for your user account. See https://appthwack/user/profile.
+     * @param config connection pool and timeout settings.
      * @return fully configured client object.
      */
-    private Client getClient(String apiKey) {
-        return ApacheHttpClient.create(getClientConfig(apiKey));
+    private Client getClient(String apiKey, AppThwackClientConfig config) {
+        HttpConnectionManagerParams params = new HttpConnectionManagerParams();
+        params.setMaxTotalConnections(config.getMaxConnections());
+        params.setDefaultMaxConnectionsPerHost(config.getMaxConnectionsPerHost());
+        params.setConnectionTimeout(config.getConnectTimeout());
+        params.setSoTimeout(config.getReadTimeout());
+        params.setStaleCheckingEnabled(true);
+
+        connectionManager = new MultiThreadedHttpConnectionManager();
+        connectionManager.setParams(params);
+
+        if(config.isKeepAlive() && config.getIdleConnectionTimeout() > 0) {
+            idleConnectionReaper = new IdleConnectionTimeoutThread();
+            idleConnectionReaper.setName(String.format("AppThwackApi idle connection reaper (%s)", uri.getHost()));
+            idleConnectionReaper.setConnectionTimeout(config.getIdleConnectionTimeout());
+            idleConnectionReaper.setTimeoutInterval(Math.max(1000, config.getIdleConnectionTimeout() / 2));
+            idleConnectionReaper.addConnectionManager(connectionManager);
+            idleConnectionReaper.start();
+        }
+
+        ClientConfig clientConfig = getClientConfig(apiKey);
+        clientConfig.getProperties().put(ClientConfig.PROPERTY_READ_TIMEOUT, config.getReadTimeout());
+
+        HttpClient httpClient = new HttpClient(connectionManager);
+        Client c = new ApacheHttpClient(new ApacheHttpClientHandler(httpClient, clientConfig, new RetryingMethodExecutor(httpClient)));
+        if(!config.isKeepAlive()) {
+            c.addFilter(new ConnectionCloseFilter());
+        }
+        if(config.getResponseCacheCapacity() > 0) {
+            c.addFilter(new AppThwackCachingFilter(c.getMessageBodyWorkers(), uri.getPath(), config));
+        }
+        return c;
     }
 
     /**
@@ -109,46 +225,110 @@ public class AppThwackApi {
 
     /**
      * Get an individual project for the given name.
+     * Lookups are served from the project cache; see {@link #setProjectCacheTtl(long)}.
      * @param name name of the project we want.
      * @return project with the given name or null.
      */
     public AppThwackProject getProject(String name) {
-        List<AppThwackProject> projects = getProjects();
-        for(AppThwackProject p : projects) {
-            if(p.name.equalsIgnoreCase(name)) {
-                return p;
-            }
-        }
-        return null;
+        return projectCache.get(name);
     }
 
     /**
      * Get an individual project for the given id.
+     * Lookups are served from the project cache; see {@link #setProjectCacheTtl(long)}.
      * @param id id of the project we want.
      * @return project with the given id or null.
      */
     public AppThwackProject getProject(Integer id) {
-        List<AppThwackProject> projects = getProjects();
-        for(AppThwackProject p : projects) {
-            if(p.id.equals(id)) {
-                return p;
-            }
-        }
-        return null;
+        return projectCache.get(id);
     }
 
     /**
      * Get a list of all projects tied to this account.
+     * This always hits AppThwack and repopulates the project cache with the result.
      * @return list of projects.
      */
     public List<AppThwackProject> getProjects() {
-        List<AppThwackProject> projects = root.path("project").get(new GenericType<List<AppThwackProject>>(){});
-        for(AppThwackProject p : projects) {
-            p.setRoot(root);
-        }
+        List<AppThwackProject> projects = fetchProjects();
+        projectCache.put(projects);
         return projects;
     }
 
+    /**
+     * Set how long project lookups are cached before they are fetched again.
+     * @param ms time-to-live in milliseconds; zero disables the cache.
+     */
+    public void setProjectCacheTtl(long ms) {
+        projectCache.setTtl(ms);
+    }
+
+    /**
+     * Drop all cached projects so the next lookup fetches them from AppThwack.
+     */
+    public void invalidateProjects() {
+        projectCache.invalidate();
+    }
+
+    /**
+     * Set how long a completed status, summary, project or device pool response keeps
+     * being shared with callers asking for the same resource. Identical requests which
+     * are in flight at the same time always share one HTTP call.
+     * @param ms freshness window in milliseconds; zero (the default) only shares requests in flight.
+     */
+    public void setRequestFreshness(long ms) {
+        requests.setFreshness(ms);
+    }
+
+    /**
+     * Set how many bytes of run results are cached, shared by every run of this client.
+     * Results of completed runs are served from the cache; results of runs in progress
+     * are revalidated with a conditional request.
+     * @param bytes capacity in bytes of encoded results; zero disables the cache.
+     */
+    public void setResultCacheCapacity(long bytes) {
+        resultCache.setCapacity(bytes);
+    }
+
+    /**
+     * Drop all cached run results so the next request for them fetches them from AppThwack.
+     */
+    public void invalidateResults() {
+        resultCache.invalidate();
+    }
+
+    public AppThwackUploadCache getUploadCache() {
+        return uploadCache;
+    }
+
+    /**
+     * Skip uploading files whose contents were already uploaded, according to the given cache.
+     * Applies to uploads from a File or Path; uploads from a stream are never cached.
+     * @param cache content-addressed upload index, or null to always upload.
+     */
+    public void setUploadCache(AppThwackUploadCache cache) {
+        this.uploadCache = cache;
+    }
+
+    /**
+     * Fetch the list of projects from AppThwack, bypassing the cache.
+     * Concurrent calls share a single request.
+     * @return list of projects.
+     */
+    private List<AppThwackProject> fetchProjects() {
+        List<AppThwackProject> projects = requests.get("project", new Callable<List<AppThwackProject>>() {
+            public List<AppThwackProject> call() {
+                List<AppThwackProject> projects = root.path("project").get(new GenericType<List<AppThwackProject>>(){});
+                for(AppThwackProject p : projects) {
+                    p.setRoot(root);
+                    p.setRequests(requests);
+                    p.setResultCache(resultCache);
+                }
+                return projects;
+            }
+        });
+        return new ArrayList<AppThwackProject>(projects);
+    }
+
     /**
      * Upload file located at the given path to AppThwack.
      * @param path fully-qualified file path.
@@ -201,11 +381,168 @@ public class AppThwackApi {
             throw new AppThwackException("file cannot be a directory");
         }
 
+        AppThwackUploadCache cache = uploadCache;
+        String hash = null;
+        if(cache != null) {
+            hash = AppThwackUploadCache.key(AppThwackUploadCache.hash(file.toPath()), name);
+            AppThwackFile cached = cache.get(hash);
+            if(cached != null) {
+                return cached;
+            }
+        }
+
         FormDataMultiPart form = new FormDataMultiPart();
         form.field("name", name);
         form.bodyPart(new FileDataBodyPart("file", file, MediaType.APPLICATION_OCTET_STREAM_TYPE));
 
-        return root.path("file").type(MediaType.MULTIPART_FORM_DATA).post(AppThwackFile.class, form);
+        AppThwackFile uploaded = root.path("file").type(MediaType.MULTIPART_FORM_DATA).post(AppThwackFile.class, form);
+        remember(cache, hash, uploaded);
+        return uploaded;
+    }
+
+    /**
+     * Upload the given file object to AppThwack, streaming it with chunked transfer encoding.
+     * Memory use is constant regardless of file size.
+     * @param file file object to upload.
+     * @param name name of the file once uploaded.
+     * @param listener receives upload progress; may be null.
+     * @return reference to remote file on AppThwack.
+     */
+    public AppThwackFile uploadFile(File file, String name, AppThwackProgressListener listener) throws AppThwackException {
+        if(file == null) {
+            throw new AppThwackException("file cannot be null");
+        }
+        return uploadFile(file.toPath(), name, listener);
+    }
+
+    /**
+     * Upload the file at the given path to AppThwack, streaming it with chunked transfer encoding.
+     * Memory use is constant regardless of file size.
+     * @param path path of the file to upload.
+     * @param name name of the file once uploaded.
+     * @param listener receives upload progress; may be null.
+     * @return reference to remote file on AppThwack.
+     */
+    public AppThwackFile uploadFile(Path path, String name, AppThwackProgressListener listener) throws AppThwackException {
+        return uploadFile(path, name, null, listener);
+    }
+
+    /**
+     * Upload the file at the given path to AppThwack, retrying failed transfers with the given policy.
+     * Servers which support resumable uploads continue from the last byte they acknowledged;
+     * otherwise the upload is repeated from the start without reading the file from disk again.
+     * @param path path of the file to upload.
+     * @param name name of the file once uploaded.
+     * @param retry retry policy; null sends a single streaming upload.
+     * @param listener receives upload progress; may be null.
+     * @return reference to remote file on AppThwack.
+     */
+    public AppThwackFile uploadFile(Path path, String name, AppThwackRetryPolicy retry, AppThwackProgressListener listener) throws AppThwackException {
+        if(path == null) {
+            throw new AppThwackException("file cannot be null");
+        }
+        if(name == null || name.isEmpty()) {
+            throw new AppThwackException("name cannot be null or empty");
+        }
+        if(!Files.exists(path)) {
+            throw new AppThwackException("file does not exist");
+        }
+        if(!Files.isRegularFile(path)) {
+            throw new AppThwackException("file cannot be a directory");
+        }
+
+        AppThwackUploadCache cache = uploadCache;
+        String hash = null;
+        if(cache != null) {
+            hash = AppThwackUploadCache.key(AppThwackUploadCache.hash(path), name);
+            AppThwackFile cached = cache.get(hash);
+            if(cached != null) {
+                if(listener != null) {
+                    long size = path.toFile().length();
+                    listener.onProgress(size, size, 0);
+                }
+                return cached;
+            }
+        }
+
+        if(retry != null) {
+            AppThwackFile uploaded = new AppThwackResumableUpload(this, root, uploadChunkSize, retry, listener).upload(path, name);
+            remember(cache, hash, uploaded);
+            return uploaded;
+        }
+
+        InputStream in = null;
+        try {
+            in = Files.newInputStream(path);
+            AppThwackFile uploaded = uploadFile(in, name, Files.size(path), listener);
+            remember(cache, hash, uploaded);
+            return uploaded;
+        }
+        catch (IOException e) {
+            throw new AppThwackException(String.format("unable to read %s: %s", path, e.getMessage()));
+        }
+        finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Upload the contents of the given stream to AppThwack, streaming it with chunked transfer encoding.
+     * The stream is read to its end but not closed.
+     * @param in stream of file contents.
+     * @param name name of the file once uploaded.
+     * @param length number of bytes in the stream, or -1 if unknown (used for progress only).
+     * @param listener receives upload progress; may be null.
+     * @return reference to remote file on AppThwack.
+     */
+    public AppThwackFile uploadFile(InputStream in, String name, long length, AppThwackProgressListener listener) throws AppThwackException {
+        if(in == null) {
+            throw new AppThwackException("stream cannot be null");
+        }
+        if(name == null || name.isEmpty()) {
+            throw new AppThwackException("name cannot be null or empty");
+        }
+
+        InputStream body = new AppThwackProgressInputStream(in, length, uploadChunkSize, listener);
+        FormDataMultiPart form = new FormDataMultiPart();
+        form.field("name", name);
+        form.bodyPart(new FormDataBodyPart(
+                FormDataContentDisposition.name("file").fileName(name).build(),
+                body,
+                MediaType.APPLICATION_OCTET_STREAM_TYPE));
+
+        WebResource resource = root.path("file");
+        resource.setProperty(ClientConfig.PROPERTY_CHUNKED_ENCODING_SIZE, uploadChunkSize);
+        resource.setProperty(PropertyStreamedBody, true);
+        return resource.type(MediaType.MULTIPART_FORM_DATA).post(AppThwackFile.class, form);
+    }
+
+    /**
+     * Record a finished upload in the cache. Failing to write the index only costs a repeated
+     * upload later, so it is logged rather than thrown and the upload is not lost.
+     */
+    private static void remember(AppThwackUploadCache cache, String key, AppThwackFile uploaded) {
+        if(cache == null) {
+            return;
+        }
+        try {
+            cache.put(key, uploaded);
+        }
+        catch (AppThwackException e) {
+            Log.log(Level.WARNING, "upload succeeded but was not cached", e);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if(closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        }
+        catch (IOException e) {
+            // Nothing useful to do; the transfer itself already succeeded or failed.
+        }
     }
 
     /**
@@ -216,7 +553,58 @@ public class AppThwackApi {
         return String.format("%s://%s", uri.getScheme(), uri.getHost());
     }
 
+    /**
+     * Release every pooled connection and stop background threads owned by this client.
+     * The client cannot be used once it has been closed.
+     */
+    public void close() {
+        if(idleConnectionReaper != null) {
+            idleConnectionReaper.shutdown();
+        }
+        client.destroy();
+        connectionManager.shutdown();
+    }
+
     public String toString() {
         return String.format("AppThwackApi (%s)", getWebUrl());
     }
+
+    /**
+     * Method executor which adjusts HttpClient's transport-level retries per request.
+     *
+     * Requests marked with {@link #PropertyStreamedBody} are never retried: streamed bodies
+     * cannot be rewound, so repeating one would send whatever was left of the stream;
+     * uploads are retried by {@link AppThwackRetryPolicy} instead. GET and HEAD requests
+     * are retried even after they were sent, since a pooled connection the server has just
+     * closed only fails once the request is written to it, and repeating them is safe.
+     * Every other request keeps the default retries.
+     */
+    private static class RetryingMethodExecutor extends DefaultApacheHttpMethodExecutor {
+        RetryingMethodExecutor(HttpClient httpClient) {
+            super(httpClient);
+        }
+
+        @Override
+        public void executeMethod(HttpMethod method, ClientRequest request) {
+            if(request.getPropertyAsFeature(PropertyStreamedBody)) {
+                method.getParams().setParameter(HttpMethodParams.RETRY_HANDLER, new DefaultHttpMethodRetryHandler(0, false));
+            }
+            else if(method.getName().equals("GET") || method.getName().equals("HEAD")) {
+                method.getParams().setParameter(HttpMethodParams.RETRY_HANDLER, new DefaultHttpMethodRetryHandler(3, true));
+            }
+            super.executeMethod(method, request);
+        }
+    }
+
+    /**
+     * Client filter which asks the server to close each connection after responding.
+     * Used when keep-alive is disabled.
+     */
+    private static class ConnectionCloseFilter extends ClientFilter {
+        @Override
+        public ClientResponse handle(ClientRequest request) throws ClientHandlerException {
+            request.getHeaders().putSingle("Connection", "close");
+            return getNext().handle(request);
+        }
+    }
 }
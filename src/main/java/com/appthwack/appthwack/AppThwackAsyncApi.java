@@ -0,0 +1,304 @@
+package com.appthwack.appthwack;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+
+/**
+ * Non-blocking facade over {@link AppThwackApi}, {@link AppThwackProject} and {@link AppThwackRun}.
+ *
+ * Every call returns a {@link CompletableFuture} which is completed on the configured
+ * executor, so uploads, scheduling and result retrieval for many builds can be composed
+ * without dedicating a thread to each one:
+ *
+ * <pre>
+ * async.uploadFile(app)
+ *      .thenCombine(async.uploadFile(tests), (a, t) -&gt; new AppThwackFile[] { a, t })
+ *      .thenCompose(files -&gt; async.scheduleJUnitRun(project, files[0], files[1], "nightly", pool))
+ *      .thenCompose(run -&gt; async.waitForCompleted(run))
+ *      .thenAccept(result -&gt; System.out.println(result.summary));
+ * </pre>
+ *
+ * Blocking HTTP calls run on the executor; polling for completion is driven by a single
+ * timer thread rather than by sleeping threads. Failures complete the future exceptionally
+ * with the original {@link AppThwackException} or Jersey exception.
+ */
+public class AppThwackAsyncApi {
+
+    private static final int DefaultThreads = 16;
+
+    private final AppThwackApi api;
+    private final Executor executor;
+    private final AppThwackRunWatcher watcher;
+    private final ExecutorService ownedExecutor;
+
+    /**
+     * Create an async facade which runs requests on its own pool of worker threads.
+     * @param api client to issue requests with.
+     */
+    public AppThwackAsyncApi(AppThwackApi api) {
+        this(api, Executors.newFixedThreadPool(DefaultThreads, AppThwackRunWatcher.daemonThreads("AppThwackAsyncApi worker")), true);
+    }
+
+    /**
+     * Create an async facade which runs requests on the given executor.
+     * The executor is not shut down by {@link #close()}.
+     * @param api client to issue requests with.
+     * @param executor executor to run blocking HTTP calls on.
+     */
+    public AppThwackAsyncApi(AppThwackApi api, Executor executor) {
+        this(api, executor, false);
+    }
+
+    private AppThwackAsyncApi(AppThwackApi api, Executor executor, boolean owned) {
+        this.api = api;
+        this.executor = executor;
+        this.ownedExecutor = owned ? (ExecutorService)executor : null;
+        this.watcher = new AppThwackRunWatcher(executor);
+    }
+
+    /**
+     * Run an arbitrary blocking call against AppThwack on the executor.
+     * @param call work to perform.
+     * @return future completed with the call's result, or failed with
+     * {@link RejectedExecutionException} if the executor does not accept the call (e.g. after {@link #close()}).
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> call) {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        try {
+            executor.execute(() -> {
+                if(future.isDone()) {
+                    return;
+                }
+                try {
+                    future.complete(call.call());
+                }
+                catch (Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * @see AppThwackApi#getProject(String)
+     */
+    public CompletableFuture<AppThwackProject> getProject(String name) {
+        return submit(() -> api.getProject(name));
+    }
+
+    /**
+     * @see AppThwackApi#getProject(Integer)
+     */
+    public CompletableFuture<AppThwackProject> getProject(Integer id) {
+        return submit(() -> api.getProject(id));
+    }
+
+    /**
+     * @see AppThwackApi#getProjects()
+     */
+    public CompletableFuture<List<AppThwackProject>> getProjects() {
+        return submit(() -> api.getProjects());
+    }
+
+    /**
+     * @see AppThwackProject#getDevicePool(String)
+     */
+    public CompletableFuture<AppThwackDevicePool> getDevicePool(AppThwackProject project, String name) {
+        return submit(() -> project.getDevicePool(name));
+    }
+
+    /**
+     * @see AppThwackApi#uploadFile(File)
+     */
+    public CompletableFuture<AppThwackFile> uploadFile(File file) {
+        return submit(() -> api.uploadFile(file));
+    }
+
+    /**
+     * @see AppThwackApi#uploadFile(File, String)
+     */
+    public CompletableFuture<AppThwackFile> uploadFile(File file, String name) {
+        return submit(() -> api.uploadFile(file, name));
+    }
+
+    /**
+     * @see AppThwackApi#uploadFile(Path, String, AppThwackProgressListener)
+     */
+    public CompletableFuture<AppThwackFile> uploadFile(Path path, String name, AppThwackProgressListener listener) {
+        return submit(() -> api.uploadFile(path, name, listener));
+    }
+
+    /**
+     * @see AppThwackProject#scheduleAppExplorerRun(AppThwackFile, String, AppThwackDevicePool, HashMap)
+     */
+    public CompletableFuture<AppThwackRun> scheduleAppExplorerRun(AppThwackProject project, AppThwackFile app, String name, AppThwackDevicePool pool, HashMap<String, String> explorerParams) {
+        return submit(() -> project.scheduleAppExplorerRun(app, name, pool, explorerParams));
+    }
+
+    /**
+     * @see AppThwackProject#scheduleCalabashRun(AppThwackFile, AppThwackFile, String, AppThwackDevicePool, String)
+     */
+    public CompletableFuture<AppThwackRun> scheduleCalabashRun(AppThwackProject project, AppThwackFile app, AppThwackFile scripts, String name, AppThwackDevicePool pool, String tags) {
+        return submit(() -> project.scheduleCalabashRun(app, scripts, name, pool, tags));
+    }
+
+    /**
+     * @see AppThwackProject#scheduleJUnitRun(AppThwackFile, AppThwackFile, String, AppThwackDevicePool)
+     */
+    public CompletableFuture<AppThwackRun> scheduleJUnitRun(AppThwackProject project, AppThwackFile app, AppThwackFile testApp, String name, AppThwackDevicePool pool) {
+        return submit(() -> project.scheduleJUnitRun(app, testApp, name, pool));
+    }
+
+    /**
+     * @see AppThwackProject#scheduleUIAutomatorRun(AppThwackFile, AppThwackFile, String, AppThwackDevicePool)
+     */
+    public CompletableFuture<AppThwackRun> scheduleUIAutomatorRun(AppThwackProject project, AppThwackFile app, AppThwackFile tests, String name, AppThwackDevicePool pool) {
+        return submit(() -> project.scheduleUIAutomatorRun(app, tests, name, pool));
+    }
+
+    /**
+     * @see AppThwackProject#scheduleUIARun(AppThwackFile, AppThwackFile, String, AppThwackDevicePool)
+     */
+    public CompletableFuture<AppThwackRun> scheduleUIARun(AppThwackProject project, AppThwackFile app, AppThwackFile scripts, String name, AppThwackDevicePool pool) {
+        return submit(() -> project.scheduleUIARun(app, scripts, name, pool));
+    }
+
+    /**
+     * @see AppThwackProject#scheduleXCTestRun(AppThwackFile, AppThwackFile, String, AppThwackDevicePool)
+     */
+    public CompletableFuture<AppThwackRun> scheduleXCTestRun(AppThwackProject project, AppThwackFile app, AppThwackFile tests, String name, AppThwackDevicePool pool) {
+        return submit(() -> project.scheduleXCTestRun(app, tests, name, pool));
+    }
+
+    /**
+     * @see AppThwackProject#scheduleWebRun(String, String)
+     */
+    public CompletableFuture<AppThwackRun> scheduleWebRun(AppThwackProject project, String name, String url) {
+        return submit(() -> project.scheduleWebRun(name, url));
+    }
+
+    /**
+     * @see AppThwackRun#getStatus()
+     */
+    public CompletableFuture<String> getStatus(AppThwackRun run) {
+        return submit(() -> run.getStatus());
+    }
+
+    /**
+     * @see AppThwackRun#getResultsSummary()
+     */
+    public CompletableFuture<AppThwackResult.ResultSummary> getResultsSummary(AppThwackRun run) {
+        return submit(() -> run.getResultsSummary());
+    }
+
+    /**
+     * @see AppThwackRun#getResults()
+     */
+    public CompletableFuture<AppThwackResult> getResults(AppThwackRun run) {
+        return submit(() -> run.getResults());
+    }
+
+    /**
+     * @see AppThwackRun#getResults(EnumSet)
+     */
+    public CompletableFuture<AppThwackResult> getResults(AppThwackRun run, EnumSet<AppThwackResult.Section> sections) {
+        return submit(() -> run.getResults(sections));
+    }
+
+    /**
+     * @see AppThwackRun#downloadResults()
+     */
+    public CompletableFuture<File> downloadResults(AppThwackRun run) {
+        return submit(() -> run.downloadResults());
+    }
+
+    /**
+     * @see AppThwackRun#downloadResults(Path, String)
+     */
+    public CompletableFuture<Long> downloadResults(AppThwackRun run, Path destination, String checksum) {
+        return submit(() -> run.downloadResults(destination, checksum));
+    }
+
+    /**
+     * @see AppThwackRun#downloadResults(Path, String, int)
+     */
+    public CompletableFuture<Long> downloadResults(AppThwackRun run, Path destination, String checksum, int parallelism) {
+        return submit(() -> run.downloadResults(destination, checksum, parallelism));
+    }
+
+    /**
+     * @see AppThwackRun#downloadResults(Path, String, int, AppThwackRetryPolicy)
+     */
+    public CompletableFuture<Long> downloadResults(AppThwackRun run, Path destination, String checksum, int parallelism, AppThwackRetryPolicy retry) {
+        return submit(() -> run.downloadResults(destination, checksum, parallelism, retry));
+    }
+
+    /**
+     * Complete once the given run has finished, checking status with the default adaptive polling policy.
+     * @see AppThwackRun#waitForCompleted()
+     */
+    public CompletableFuture<AppThwackResult> waitForCompleted(AppThwackRun run) {
+        return watcher.watch(run);
+    }
+
+    /**
+     * Complete once the given run has finished, checking status with the given polling interval.
+     * No thread is held while waiting between polls. Cancelling the returned future stops polling.
+     * @param run run to wait on.
+     * @param ms status polling interval in milliseconds
+     * @return future completed with the run's results.
+     * @see AppThwackRunWatcher
+     */
+    public CompletableFuture<AppThwackResult> waitForCompleted(AppThwackRun run, int ms) {
+        return watcher.watch(run, ms);
+    }
+
+    /**
+     * Complete once the given run has finished, checking status as often as the given policy decides.
+     * @param run run to wait on.
+     * @param policy decides the delay between status checks
+     * @return future completed with the run's results.
+     * @see AppThwackAdaptivePollingPolicy
+     */
+    public CompletableFuture<AppThwackResult> waitForCompleted(AppThwackRun run, AppThwackPollingPolicy policy) {
+        return watcher.watch(run, policy);
+    }
+
+    /**
+     * Stop the polling timer and, if it was created by this facade, the worker pool.
+     * Pending futures are not completed.
+     */
+    public void close() {
+        watcher.close();
+        if(ownedExecutor != null) {
+            ownedExecutor.shutdownNow();
+        }
+    }
+
+    public AppThwackApi getApi() {
+        return api;
+    }
+
+    public AppThwackRunWatcher getWatcher() {
+        return watcher;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AppThwackAsyncApi (%s)", api.getWebUrl());
+    }
+}
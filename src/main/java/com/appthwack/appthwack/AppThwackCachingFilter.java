@@ -0,0 +1,250 @@
+package com.appthwack.appthwack;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.ws.rs.core.MultivaluedMap;
+
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientRequest;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.filter.ClientFilter;
+import com.sun.jersey.core.header.InBoundHeaders;
+import com.sun.jersey.spi.MessageBodyWorkers;
+
+
+/**
+ * Client filter which caches GET responses in memory and revalidates them.
+ *
+ * Responses are stored with their validators (ETag, Last-Modified). While a response is
+ * younger than the time-to-live of its endpoint it is served without a request; after
+ * that the request is sent with If-None-Match or If-Modified-Since, and a 304 reply is
+ * answered with the stored body. Bodies are bounded by a memory cap, evicting the least
+ * recently used. Ranged and already conditional requests pass straight through, as do
+ * responses marked {@code no-store} and those too large to cache; a response whose
+ * Content-Length exceeds the cap is passed on without reading any of it.
+ */
+class AppThwackCachingFilter extends ClientFilter {
+
+    private final String root;
+    private final long capacity;
+    private final long defaultTtl;
+    private final List<Endpoint> endpoints = new ArrayList<Endpoint>();
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long weight;
+    private final MessageBodyWorkers workers;
+
+    /**
+     * @param workers readers for the entities of responses served from the cache.
+     * @param root path of the API root, which endpoint patterns are relative to.
+     * @param config cache capacity and time-to-live settings.
+     */
+    AppThwackCachingFilter(MessageBodyWorkers workers, String root, AppThwackClientConfig config) {
+        this.workers = workers;
+        this.root = root.endsWith("/") ? root : root + "/";
+        this.capacity = config.getResponseCacheCapacity();
+        this.defaultTtl = config.getDefaultResponseCacheTtl();
+        for(Map.Entry<String, Long> e : config.getResponseCacheTtls().entrySet()) {
+            endpoints.add(new Endpoint(e.getKey(), e.getValue()));
+        }
+    }
+
+    @Override
+    public ClientResponse handle(ClientRequest request) throws ClientHandlerException {
+        MultivaluedMap<String, Object> headers = request.getHeaders();
+        long ttl = ttlOf(request.getURI().getPath());
+        if(!request.getMethod().equals("GET") || ttl < 0 || headers.containsKey("Range")
+                || headers.containsKey("If-None-Match") || headers.containsKey("If-Modified-Since")) {
+            return getNext().handle(request);
+        }
+
+        String key = request.getURI().toString();
+        Entry cached = get(key);
+        if(cached != null && System.currentTimeMillis() < cached.expires) {
+            return cached.toResponse(workers);
+        }
+        if(cached != null && cached.etag != null) {
+            headers.putSingle("If-None-Match", cached.etag);
+        }
+        if(cached != null && cached.lastModified != null) {
+            headers.putSingle("If-Modified-Since", cached.lastModified);
+        }
+
+        ClientResponse response = getNext().handle(request);
+        if(response.getStatus() == 304 && cached != null) {
+            response.close();
+            Entry refreshed = cached.refresh(System.currentTimeMillis() + ttl);
+            put(key, refreshed);
+            return refreshed.toResponse(workers);
+        }
+        if(cached != null) {
+            remove(key);
+        }
+        if(response.getStatus() != 200 || !cacheable(response, ttl) || response.getLength() > capacity) {
+            return response;
+        }
+
+        // Read the body up to the largest cacheable size. Without a Content-Length a larger
+        // body is only found out here; it is passed on with the part already read put back.
+        InputStream in = response.getEntityInputStream();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        try {
+            int read;
+            while ((read = in.read(buffer, 0, (int)Math.min(buffer.length, capacity + 1 - body.size()))) > 0) {
+                body.write(buffer, 0, read);
+                if(body.size() > capacity) {
+                    response.setEntityInputStream(new SequenceInputStream(new ByteArrayInputStream(body.toByteArray()), in));
+                    return response;
+                }
+            }
+            in.close();
+        }
+        catch (IOException e) {
+            throw new ClientHandlerException(e);
+        }
+        Entry entry = new Entry(response.getStatus(), response.getHeaders(), body.toByteArray(), System.currentTimeMillis() + ttl);
+        put(key, entry);
+        return entry.toResponse(workers);
+    }
+
+    /**
+     * Returns the time-to-live of the endpoint at the given request path.
+     */
+    long ttlOf(String path) {
+        if(!path.startsWith(root)) {
+            return defaultTtl;
+        }
+        String[] segments = path.substring(root.length()).split("/");
+        for(Endpoint endpoint : endpoints) {
+            if(endpoint.matches(segments)) {
+                return endpoint.ttl;
+            }
+        }
+        return defaultTtl;
+    }
+
+    synchronized long getWeight() {
+        return weight;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns true if the response can be reused: it must be revalidatable or have a TTL,
+     * and the server must not forbid storing it.
+     */
+    private static boolean cacheable(ClientResponse response, long ttl) {
+        MultivaluedMap<String, String> headers = response.getHeaders();
+        String cacheControl = headers.getFirst("Cache-Control");
+        if(cacheControl != null && cacheControl.toLowerCase().contains("no-store")) {
+            return false;
+        }
+        return ttl > 0 || headers.getFirst("ETag") != null || headers.getFirst("Last-Modified") != null;
+    }
+
+    private synchronized Entry get(String key) {
+        return entries.get(key);
+    }
+
+    private synchronized void put(String key, Entry entry) {
+        remove(key);
+        if(entry.body.length > capacity) {
+            return;
+        }
+        entries.put(key, entry);
+        weight += entry.body.length;
+        Iterator<Entry> it = entries.values().iterator();
+        while (weight > capacity && it.hasNext()) {
+            weight -= it.next().body.length;
+            it.remove();
+        }
+    }
+
+    private synchronized void remove(String key) {
+        Entry previous = entries.remove(key);
+        if(previous != null) {
+            weight -= previous.body.length;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("AppThwackCachingFilter (%d responses, %d of %d bytes)", entries.size(), weight, capacity);
+    }
+
+    /**
+     * Endpoint pattern with its time-to-live.
+     */
+    private static class Endpoint {
+        final String[] segments;
+        final long ttl;
+
+        Endpoint(String pattern, long ttl) {
+            this.segments = pattern.replaceAll("^/+|/+$", "").split("/");
+            this.ttl = ttl;
+        }
+
+        boolean matches(String[] path) {
+            if(path.length != segments.length) {
+                return false;
+            }
+            for(int i = 0; i < path.length; i++) {
+                if(!segments[i].equals("*") && !segments[i].equals(path[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Stored response.
+     */
+    private static class Entry {
+        final int status;
+        final InBoundHeaders headers;
+        final byte[] body;
+        final String etag;
+        final String lastModified;
+        final long expires;
+
+        Entry(int status, MultivaluedMap<String, String> headers, byte[] body, long expires) {
+            this.status = status;
+            this.headers = new InBoundHeaders();
+            for(Map.Entry<String, List<String>> e : headers.entrySet()) {
+                // The body is replayed from memory, so how it was framed on the wire no longer applies.
+                if(!e.getKey().equalsIgnoreCase("Transfer-Encoding") && !e.getKey().equalsIgnoreCase("Connection")) {
+                    this.headers.put(e.getKey(), new ArrayList<String>(e.getValue()));
+                }
+            }
+            this.body = body;
+            this.etag = headers.getFirst("ETag");
+            this.lastModified = headers.getFirst("Last-Modified");
+            this.expires = expires;
+        }
+
+        Entry refresh(long expires) {
+            return new Entry(status, headers, body, expires);
+        }
+
+        ClientResponse toResponse(MessageBodyWorkers workers) {
+            InBoundHeaders copy = new InBoundHeaders();
+            for(Map.Entry<String, List<String>> e : headers.entrySet()) {
+                copy.put(e.getKey(), new ArrayList<String>(e.getValue()));
+            }
+            return new ClientResponse(status, copy, new ByteArrayInputStream(body), workers);
+        }
+    }
+}
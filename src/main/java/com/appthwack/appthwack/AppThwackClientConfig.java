@@ -0,0 +1,180 @@
+package com.appthwack.appthwack;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * HTTP transport settings for an {@link AppThwackApi} client.
+ *
+ * Every client is backed by a pool of persistent connections which is shared by all
+ * threads using it, so a single {@link AppThwackApi} should be created and reused
+ * rather than one per thread or request. Sizes and timeouts are read once when the
+ * client is created; changing this object afterwards has no effect on existing clients.
+ */
+public class AppThwackClientConfig {
+
+    public static final int DefaultMaxConnections = 200;
+    public static final int DefaultMaxConnectionsPerHost = 50;
+    public static final int DefaultConnectTimeout = 30 * 1000;
+    public static final int DefaultReadTimeout = 5 * 60 * 1000;
+    public static final int DefaultIdleConnectionTimeout = 60 * 1000;
+    public static final int DefaultUploadChunkSize = 64 * 1024;
+    public static final long DefaultResponseCacheTtl = 0;
+
+    private int maxConnections = DefaultMaxConnections;
+    private int maxConnectionsPerHost = DefaultMaxConnectionsPerHost;
+    private int connectTimeout = DefaultConnectTimeout;
+    private int readTimeout = DefaultReadTimeout;
+    private boolean keepAlive = true;
+    private int idleConnectionTimeout = DefaultIdleConnectionTimeout;
+    private int uploadChunkSize = DefaultUploadChunkSize;
+    private long responseCacheCapacity;
+    private long defaultResponseCacheTtl = DefaultResponseCacheTtl;
+    private final Map<String, Long> responseCacheTtls = new LinkedHashMap<String, Long>();
+
+    public AppThwackClientConfig() {
+        // Run results have their own cache; see AppThwackApi.setResultCacheCapacity(long).
+        responseCacheTtls.put("run/*/*", -1L);
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Set the maximum number of open connections across all hosts.
+     * Threads block waiting for a free connection once this is reached.
+     * @param maxConnections total connection limit.
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    /**
+     * Set the maximum number of open connections to a single host.
+     * @param maxConnectionsPerHost per host connection limit.
+     */
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Set how long to wait for a connection to be established.
+     * @param ms timeout in milliseconds; zero waits forever.
+     */
+    public void setConnectTimeout(int ms) {
+        this.connectTimeout = ms;
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * Set how long to wait for data on an open connection.
+     * @param ms timeout in milliseconds; zero waits forever.
+     */
+    public void setReadTimeout(int ms) {
+        this.readTimeout = ms;
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Set whether connections are kept open and reused between requests.
+     * @param keepAlive false to close every connection after its response.
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    public int getIdleConnectionTimeout() {
+        return idleConnectionTimeout;
+    }
+
+    /**
+     * Set how long a kept-alive connection may sit unused in the pool before it is closed.
+     * @param ms timeout in milliseconds; zero keeps idle connections until the server drops them.
+     */
+    public void setIdleConnectionTimeout(int ms) {
+        this.idleConnectionTimeout = ms;
+    }
+
+    public int getUploadChunkSize() {
+        return uploadChunkSize;
+    }
+
+    /**
+     * Set the chunk size used by streaming uploads, which are sent with chunked
+     * transfer encoding instead of being buffered to compute a content length.
+     * This is also the granularity of upload progress updates.
+     * @param bytes chunk size in bytes.
+     */
+    public void setUploadChunkSize(int bytes) {
+        this.uploadChunkSize = bytes;
+    }
+
+    public long getResponseCacheCapacity() {
+        return responseCacheCapacity;
+    }
+
+    /**
+     * Cache GET responses in memory and revalidate them with If-None-Match or
+     * If-Modified-Since, so unchanged responses are not downloaded again.
+     * @param bytes memory cap for cached response bodies; zero (the default) disables the cache.
+     */
+    public void setResponseCacheCapacity(long bytes) {
+        this.responseCacheCapacity = bytes;
+    }
+
+    public long getDefaultResponseCacheTtl() {
+        return defaultResponseCacheTtl;
+    }
+
+    /**
+     * Set how long cached responses of endpoints without their own TTL are served
+     * without asking AppThwack. Stale responses are revalidated.
+     * @param ms time-to-live in milliseconds; zero revalidates on every request.
+     */
+    public void setDefaultResponseCacheTtl(long ms) {
+        this.defaultResponseCacheTtl = ms;
+    }
+
+    /**
+     * Returns the time-to-live of every endpoint with its own, by endpoint pattern.
+     * @return unmodifiable map in the order the TTLs were set.
+     */
+    public Map<String, Long> getResponseCacheTtls() {
+        return Collections.unmodifiableMap(responseCacheTtls);
+    }
+
+    /**
+     * Set how long cached responses of an endpoint are served without asking AppThwack.
+     * Endpoints are paths below the API root, where {@code *} matches any one segment,
+     * e.g. {@code "project"} or {@code "devicepool/*"}.
+     * The first pattern set which matches a request applies.
+     * @param endpoint endpoint pattern.
+     * @param ms time-to-live in milliseconds; zero revalidates on every request, and a
+     *      negative value never caches the endpoint.
+     */
+    public void setResponseCacheTtl(String endpoint, long ms) {
+        responseCacheTtls.put(endpoint, ms);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AppThwackClientConfig (connections: %d/%d per host, timeouts: %d/%d ms, keep-alive: %s)",
+                maxConnections, maxConnectionsPerHost, connectTimeout, readTimeout, keepAlive);
+    }
+}
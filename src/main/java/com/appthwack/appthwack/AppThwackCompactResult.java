@@ -0,0 +1,463 @@
+package com.appthwack.appthwack;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.appthwack.appthwack.AppThwackResult.PerformanceResultContainer;
+import com.appthwack.appthwack.AppThwackResult.PerformanceSummary;
+import com.appthwack.appthwack.AppThwackResult.Result;
+import com.appthwack.appthwack.AppThwackResult.ResultContainer;
+import com.appthwack.appthwack.AppThwackResult.ResultSummary;
+import com.appthwack.appthwack.AppThwackResult.Section;
+
+
+/**
+ * Memory efficient, read-only form of an {@link AppThwackResult}.
+ *
+ * The result document lists every test once per grouping (by job, by type and by device).
+ * Here each test is stored once, in parallel arrays addressed by index, and the groupings
+ * are arrays of those indexes. Repeated strings (test, device and job names, messages)
+ * share one instance, and web URLs are built only when asked for.
+ */
+public class AppThwackCompactResult {
+
+    /**
+     * Outcome of an individual test.
+     */
+    public enum Outcome {
+        Pass, Warning, Failure
+    }
+
+    /**
+     * How the tests of an outcome are grouped.
+     */
+    public enum Grouping {
+        Job, Type, Device
+    }
+
+    private final int size;
+    private final int[] ids;
+    private final String[] names;
+    private final String[] messages;
+    private final String[] descriptions;
+    private final byte[] outcomes;
+    private final int[] byId;
+    private final Map<Section, List<Group>> groups;
+
+    private final ResultSummary summary;
+    private final PerformanceSummary performanceSummary;
+    private final List<PerformanceResultContainer> performance;
+
+    private transient AppThwackRun run;
+
+    private AppThwackCompactResult(Builder builder) {
+        this.size = builder.size;
+        this.ids = Arrays.copyOf(builder.ids, size);
+        this.names = Arrays.copyOf(builder.names, size);
+        this.messages = Arrays.copyOf(builder.messages, size);
+        this.descriptions = Arrays.copyOf(builder.descriptions, size);
+        this.outcomes = Arrays.copyOf(builder.outcomes, size);
+        this.groups = builder.groups;
+        this.summary = builder.summary;
+        this.performanceSummary = builder.performanceSummary;
+        this.performance = Collections.unmodifiableList(builder.performance);
+
+        // Indexes sorted by test id, for lookups by binary search.
+        Integer[] order = new Integer[size];
+        for(int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Integer.compare(ids[a], ids[b]));
+        this.byId = new int[size];
+        for(int i = 0; i < size; i++) {
+            byId[i] = order[i];
+        }
+    }
+
+    /**
+     * Build a compact result from a bound result. Sections the result has not loaded
+     * yet are fetched together first.
+     * @param result result to copy.
+     * @return
+     */
+    public static AppThwackCompactResult of(AppThwackResult result) {
+        result.loadAll();
+        Builder builder = new Builder();
+        ResultSummary summary = result.getSummary();
+        if(summary != null) {
+            builder.visitSummary(summary);
+        }
+        for(Section section : Section.values()) {
+            if(!section.isContainers()) {
+                continue;
+            }
+            List<ResultContainer> containers = result.getContainers(section);
+            if(containers == null) {
+                continue;
+            }
+            for(ResultContainer container : containers) {
+                if(container.results != null) {
+                    for(Result r : container.results) {
+                        builder.visitResult(section, container, r);
+                    }
+                }
+                builder.visitContainer(section, container);
+            }
+        }
+        PerformanceSummary performanceSummary = result.getPerformanceSummary();
+        if(performanceSummary != null) {
+            builder.visitPerformanceSummary(performanceSummary);
+        }
+        List<PerformanceResultContainer> performance = result.getPerformance();
+        if(performance != null) {
+            for(PerformanceResultContainer p : performance) {
+                builder.visitPerformance(p);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Build a compact result straight from a result document, without binding the full result.
+     * @param in stream of the JSON document; closed afterwards.
+     * @return
+     * @throws AppThwackException if the document cannot be read or parsed.
+     */
+    public static AppThwackCompactResult read(InputStream in) throws AppThwackException {
+        Builder builder = new Builder();
+        AppThwackResultReader.read(in, builder);
+        return builder.build();
+    }
+
+    /**
+     * Returns the number of distinct tests.
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the index of the test with the given id, or -1.
+     * @param id test result id.
+     * @return
+     */
+    public int indexOf(int id) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int value = ids[byId[mid]];
+            if(value < id) {
+                low = mid + 1;
+            }
+            else if(value > id) {
+                high = mid - 1;
+            }
+            else {
+                return byId[mid];
+            }
+        }
+        return -1;
+    }
+
+    public int getId(int index) {
+        return ids[index];
+    }
+
+    public String getName(int index) {
+        return names[index];
+    }
+
+    public String getMessage(int index) {
+        return messages[index];
+    }
+
+    public String getDescription(int index) {
+        return descriptions[index];
+    }
+
+    public Outcome getOutcome(int index) {
+        return Outcome.values()[outcomes[index]];
+    }
+
+    /**
+     * Returns the URL of the given test visible on the site, or null if no run is attached.
+     * @param index test index.
+     * @return
+     */
+    public String getWebUrl(int index) {
+        return run == null ? null : String.format("%s/jobrun/%d", run.getWebUrl(), ids[index]);
+    }
+
+    /**
+     * Returns the given test as a regular result object.
+     * @param index test index.
+     * @return
+     */
+    public Result getResult(int index) {
+        Result result = new Result();
+        result.id = ids[index];
+        result.name = names[index];
+        result.message = messages[index];
+        result.description = descriptions[index];
+        if(run != null) {
+            result.setRun(run);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the groups of tests with the given outcome, e.g. failures by device.
+     * @param outcome
+     * @param grouping
+     * @return
+     */
+    public List<Group> getGroups(Outcome outcome, Grouping grouping) {
+        List<Group> list = groups.get(sectionOf(outcome, grouping));
+        return list == null ? Collections.<Group>emptyList() : list;
+    }
+
+    /**
+     * Returns, for every test, the group it belongs to in the given grouping: the device id
+     * for {@link Grouping#Device}, otherwise the job or type name. Null if it is in no group.
+     * @param grouping
+     * @return array indexed by test index.
+     */
+    public String[] getGroupLabels(Grouping grouping) {
+        String[] labels = new String[size];
+        for(Outcome outcome : Outcome.values()) {
+            for(Group group : getGroups(outcome, grouping)) {
+                String label = grouping == Grouping.Device ? group.getId() : group.getName();
+                for(int k = 0; k < group.size(); k++) {
+                    labels[group.get(k)] = label;
+                }
+            }
+        }
+        return labels;
+    }
+
+    public ResultSummary getSummary() {
+        return summary;
+    }
+
+    public PerformanceSummary getPerformanceSummary() {
+        return performanceSummary;
+    }
+
+    public List<PerformanceResultContainer> getPerformance() {
+        return performance;
+    }
+
+    /**
+     * Set the AppThwackRun which owns this result, used to build web URLs.
+     * @param run
+     */
+    public void setRun(AppThwackRun run) {
+        this.run = run;
+        if(summary != null) {
+            summary.setRun(run);
+        }
+    }
+
+    /**
+     * Returns the section holding the given outcome and grouping.
+     */
+    static Section sectionOf(Outcome outcome, Grouping grouping) {
+        return Section.values()[Section.PassesByJob.ordinal() + outcome.ordinal() * 3 + grouping.ordinal()];
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AppThwackCompactResult (%d tests, %s)", size, summary);
+    }
+
+    /**
+     * Tests which share a job, type or device.
+     */
+    public class Group {
+        private final String id;
+        private final String name;
+        private final String description;
+        private final int[] indexes;
+
+        Group(String id, String name, String description, int[] indexes) {
+            this.id = id;
+            this.name = name;
+            this.description = description;
+            this.indexes = indexes;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        /**
+         * Returns the number of tests in the group.
+         */
+        public int size() {
+            return indexes.length;
+        }
+
+        /**
+         * Returns the test index of the k-th test in the group.
+         */
+        public int get(int k) {
+            return indexes[k];
+        }
+
+        /**
+         * Returns the URL of this group visible on the site, or null if no run is attached.
+         */
+        public String getWebUrl() {
+            return run == null ? null : String.format("%s/device/%s", run.getWebUrl(), id);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[%s] %s (%d tests)", id, name, indexes.length);
+        }
+    }
+
+    /**
+     * Collects tests and groups as the result is read.
+     */
+    private static class Builder implements AppThwackResultReader.Visitor {
+        private final Map<String, String> strings = new HashMap<String, String>();
+        private final Map<Integer, Integer> indexes = new HashMap<Integer, Integer>();
+        private final Map<Section, List<Group>> groups = new EnumMap<Section, List<Group>>(Section.class);
+        private final List<PerformanceResultContainer> performance = new ArrayList<PerformanceResultContainer>();
+        private final List<PendingGroup> pending = new ArrayList<PendingGroup>();
+
+        private int size;
+        private int[] ids = new int[64];
+        private String[] names = new String[64];
+        private String[] messages = new String[64];
+        private String[] descriptions = new String[64];
+        private byte[] outcomes = new byte[64];
+
+        private ResultContainer container;
+        private int[] members = new int[16];
+        private int count;
+
+        private ResultSummary summary;
+        private PerformanceSummary performanceSummary;
+
+        public void visitSummary(ResultSummary summary) {
+            this.summary = summary;
+        }
+
+        public void visitResult(Section section, ResultContainer container, Result result) {
+            if(this.container != container) {
+                this.container = container;
+                count = 0;
+            }
+            if(count == members.length) {
+                members = Arrays.copyOf(members, count * 2);
+            }
+            members[count++] = add(section, result);
+        }
+
+        public void visitContainer(Section section, ResultContainer container) {
+            int[] group = this.container == container ? Arrays.copyOf(members, count) : new int[0];
+            this.container = null;
+            count = 0;
+            pending.add(new PendingGroup(section, intern(container.id), intern(container.name), intern(container.description), group));
+        }
+
+        public void visitPerformanceSummary(PerformanceSummary summary) {
+            this.performanceSummary = summary;
+        }
+
+        public void visitPerformance(PerformanceResultContainer p) {
+            performance.add(p);
+        }
+
+        /**
+         * Store the test once, returning its index.
+         */
+        private int add(Section section, Result result) {
+            if(result.id != null) {
+                Integer existing = indexes.get(result.id);
+                if(existing != null) {
+                    return existing;
+                }
+            }
+            if(size == ids.length) {
+                int capacity = size * 2;
+                ids = Arrays.copyOf(ids, capacity);
+                names = Arrays.copyOf(names, capacity);
+                messages = Arrays.copyOf(messages, capacity);
+                descriptions = Arrays.copyOf(descriptions, capacity);
+                outcomes = Arrays.copyOf(outcomes, capacity);
+            }
+            int index = size++;
+            ids[index] = result.id == null ? -1 : result.id;
+            names[index] = intern(result.name);
+            messages[index] = intern(result.message);
+            descriptions[index] = intern(result.description);
+            outcomes[index] = (byte)((section.ordinal() - Section.PassesByJob.ordinal()) / 3);
+            if(result.id != null) {
+                indexes.put(result.id, index);
+            }
+            return index;
+        }
+
+        private String intern(String value) {
+            if(value == null) {
+                return null;
+            }
+            String existing = strings.putIfAbsent(value, value);
+            return existing == null ? value : existing;
+        }
+
+        AppThwackCompactResult build() {
+            AppThwackCompactResult result = new AppThwackCompactResult(this);
+            for(PendingGroup g : pending) {
+                List<Group> list = result.groups.get(g.section);
+                if(list == null) {
+                    list = new ArrayList<Group>();
+                    result.groups.put(g.section, list);
+                }
+                list.add(result.new Group(g.id, g.name, g.description, g.indexes));
+            }
+            for(Map.Entry<Section, List<Group>> e : result.groups.entrySet()) {
+                e.setValue(Collections.unmodifiableList(e.getValue()));
+            }
+            return result;
+        }
+    }
+
+    /**
+     * A group read before the compact result exists to own it.
+     */
+    private static class PendingGroup {
+        final Section section;
+        final String id;
+        final String name;
+        final String description;
+        final int[] indexes;
+
+        PendingGroup(Section section, String id, String name, String description, int[] indexes) {
+            this.section = section;
+            this.id = id;
+            this.name = name;
+            this.description = description;
+            this.indexes = indexes;
+        }
+    }
+}
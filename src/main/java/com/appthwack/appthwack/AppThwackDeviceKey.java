@@ -0,0 +1,63 @@
+package com.appthwack.appthwack;
+
+import com.appthwack.appthwack.AppThwackResult.Device;
+
+
+/**
+ * Identifies a device model running a specific OS version, for matching devices across runs.
+ * Instances are immutable and cache their hash code, so they are cheap hash map keys.
+ */
+public final class AppThwackDeviceKey {
+
+    private final int id;
+    private final String osVersion;
+    private final int hash;
+
+    public AppThwackDeviceKey(int id, String osVersion) {
+        this.id = id;
+        this.osVersion = osVersion;
+        this.hash = 31 * id + (osVersion == null ? 0 : osVersion.hashCode());
+    }
+
+    /**
+     * Returns the key of the given device, or null if the device has no id.
+     * @param device
+     * @return
+     */
+    public static AppThwackDeviceKey of(Device device) {
+        if(device == null || device.id == null) {
+            return null;
+        }
+        return new AppThwackDeviceKey(device.id, device.osVersion);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getOsVersion() {
+        return osVersion;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o) {
+            return true;
+        }
+        if(!(o instanceof AppThwackDeviceKey)) {
+            return false;
+        }
+        AppThwackDeviceKey other = (AppThwackDeviceKey)o;
+        return id == other.id && (osVersion == null ? other.osVersion == null : osVersion.equals(other.osVersion));
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d (%s)", id, osVersion);
+    }
+}
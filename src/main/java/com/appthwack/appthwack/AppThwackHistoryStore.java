@@ -0,0 +1,528 @@
+package com.appthwack.appthwack;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import com.appthwack.appthwack.AppThwackCompactResult.Grouping;
+import com.appthwack.appthwack.AppThwackCompactResult.Outcome;
+import com.appthwack.appthwack.AppThwackResult.PerformanceResultContainer;
+import com.appthwack.appthwack.AppThwackResult.ResultSummary;
+
+
+/**
+ * Local, file-backed history of run results, for trend reports without refetching runs.
+ *
+ * Each stored run (summary, test outcomes and performance data) is appended as one record
+ * to a data segment; segments are never rewritten, and a new one is started once the
+ * current one is full. A fixed-size entry per record (run, project, time and location) is
+ * appended to a memory-mapped index, so queries by project and date range scan memory and
+ * read only the records they match. Storing a run again supersedes its earlier record.
+ *
+ * An open store holds an exclusive lock on the directory, so a second store (in this or
+ * another process) cannot open it until the first is closed.
+ */
+public class AppThwackHistoryStore implements Closeable {
+
+    public static final long DefaultMaxSegmentSize = 64L * 1024 * 1024;
+
+    private static final int Magic = 0x41544853;
+    private static final int Version = 1;
+    private static final int HeaderSize = 16;
+    private static final int EntrySize = 32;
+    private static final int InitialCapacity = 1024;
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    static {
+        // Records hold fields only; computed getters such as ResultSummary.isCompleted() are not stored.
+        mapper.setVisibility(PropertyAccessor.GETTER, Visibility.NONE);
+        mapper.setVisibility(PropertyAccessor.IS_GETTER, Visibility.NONE);
+        mapper.addMixInAnnotations(ResultSummary.class, FieldsOnly.class);
+        mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    }
+
+    private final Path directory;
+    private final long maxSegmentSize;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final FileChannel indexChannel;
+    private MappedByteBuffer index;
+    private int count;
+    private final Map<Integer, Integer> latest = new HashMap<Integer, Integer>();
+    private final List<FileChannel> segments = new ArrayList<FileChannel>();
+
+    private AppThwackHistoryStore(Path directory, long maxSegmentSize) throws IOException {
+        this.directory = directory;
+        this.maxSegmentSize = maxSegmentSize;
+        Files.createDirectories(directory);
+        this.lockChannel = FileChannel.open(directory.resolve("lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.lock = lock(lockChannel);
+        try {
+            this.indexChannel = FileChannel.open(directory.resolve("index"),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            load();
+        }
+        catch (IOException e) {
+            lockChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Take the directory lock without waiting for it.
+     */
+    private static FileLock lock(FileChannel channel) throws IOException {
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        }
+        catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if(lock == null) {
+            channel.close();
+            throw new IOException("the store is already open");
+        }
+        return lock;
+    }
+
+    /**
+     * Read the index header and entries and open the data segments.
+     */
+    private void load() throws IOException {
+        boolean created = indexChannel.size() == 0;
+        map(Math.max(InitialCapacity, (int)((indexChannel.size() - HeaderSize) / EntrySize)));
+        if(created) {
+            index.putInt(0, Magic);
+            index.putInt(4, Version);
+            index.putInt(8, 0);
+        }
+        else if(index.getInt(0) != Magic || index.getInt(4) != Version) {
+            indexChannel.close();
+            throw new IOException(String.format("%s is not a version %d history index", directory.resolve("index"), Version));
+        }
+        count = index.getInt(8);
+        for(int slot = 0; slot < count; slot++) {
+            latest.put(index.getInt(position(slot)), slot);
+        }
+        for(int s = 0; Files.exists(segment(s)); s++) {
+            segments.add(FileChannel.open(segment(s), StandardOpenOption.READ, StandardOpenOption.WRITE));
+        }
+    }
+
+    /**
+     * Open the history store in the given directory, creating it if needed.
+     * @param directory
+     * @return store which must be closed once done with.
+     * @throws AppThwackException if the store cannot be opened.
+     */
+    public static AppThwackHistoryStore open(Path directory) throws AppThwackException {
+        return open(directory, DefaultMaxSegmentSize);
+    }
+
+    /**
+     * Open the history store in the given directory, creating it if needed.
+     * @param directory
+     * @param maxSegmentSize size in bytes after which a new data segment is started.
+     * @return store which must be closed once done with.
+     * @throws AppThwackException if the store cannot be opened.
+     */
+    public static AppThwackHistoryStore open(Path directory, long maxSegmentSize) throws AppThwackException {
+        try {
+            return new AppThwackHistoryStore(directory, maxSegmentSize);
+        }
+        catch (IOException e) {
+            throw new AppThwackException(String.format("unable to open history store %s: %s", directory, e.getMessage()));
+        }
+    }
+
+    /**
+     * Fetch the results of a completed run and store them, timestamped with the run's start
+     * time, or with the current time if the summary does not report one.
+     * @param run
+     * @return the stored run.
+     * @throws AppThwackException if the run cannot be stored.
+     */
+    public StoredRun add(AppThwackRun run) throws AppThwackException {
+        Integer project = run.getProject() == null ? null : run.getProject().id;
+        AppThwackResult result = run.getResults();
+        ResultSummary summary = result.getSummary();
+        long time = summary == null ? -1 : summary.startMillis();
+        return add(project == null ? 0 : project, run.id, time < 0 ? System.currentTimeMillis() : time, result);
+    }
+
+    /**
+     * Store the results of a run.
+     * @param projectId project which performed the run.
+     * @param runId
+     * @param time when the run took place, in milliseconds since the epoch.
+     * @param result
+     * @return the stored run.
+     * @throws AppThwackException if the run cannot be stored.
+     */
+    public StoredRun add(int projectId, int runId, long time, AppThwackResult result) throws AppThwackException {
+        StoredRun stored = StoredRun.of(projectId, runId, time, result);
+        add(stored);
+        return stored;
+    }
+
+    /**
+     * Store a run, superseding any earlier record of it.
+     * @param run
+     * @throws AppThwackException if the run cannot be stored.
+     */
+    public synchronized void add(StoredRun run) throws AppThwackException {
+        try {
+            byte[] record = mapper.writeValueAsBytes(run);
+            int s = segments.size() - 1;
+            if(s < 0 || (segments.get(s).size() > 0 && segments.get(s).size() + record.length > maxSegmentSize)) {
+                s++;
+                segments.add(FileChannel.open(segment(s), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE));
+            }
+            FileChannel channel = segments.get(s);
+            long offset = channel.size();
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, offset + buffer.position());
+            }
+
+            // The entry is only counted once the record it points to has been written.
+            if(HeaderSize + (long)(count + 1) * EntrySize > index.capacity()) {
+                map(count * 2);
+            }
+            int p = position(count);
+            index.putInt(p, run.runId);
+            index.putInt(p + 4, run.projectId);
+            index.putLong(p + 8, run.time);
+            index.putInt(p + 16, s);
+            index.putInt(p + 20, record.length);
+            index.putLong(p + 24, offset);
+            latest.put(run.runId, count);
+            index.putInt(8, ++count);
+        }
+        catch (IOException e) {
+            throw new AppThwackException(String.format("unable to store run %d: %s", run.runId, e.getMessage()));
+        }
+    }
+
+    /**
+     * Returns true if the given run is stored.
+     * @param runId
+     * @return
+     */
+    public synchronized boolean contains(int runId) {
+        return latest.containsKey(runId);
+    }
+
+    /**
+     * Returns the number of runs stored.
+     * @return
+     */
+    public synchronized int size() {
+        return latest.size();
+    }
+
+    /**
+     * Returns the stored run, or null if it is not stored.
+     * @param runId
+     * @return
+     * @throws AppThwackException if the run cannot be read.
+     */
+    public synchronized StoredRun get(int runId) throws AppThwackException {
+        Integer slot = latest.get(runId);
+        return slot == null ? null : read(slot);
+    }
+
+    /**
+     * Returns the stored runs matching the project and date range of the query, and with at
+     * least one test matching its device, test name and outcome, oldest first.
+     * @param query
+     * @return
+     * @throws AppThwackException if a run cannot be read.
+     */
+    public synchronized List<StoredRun> findRuns(Query query) throws AppThwackException {
+        List<StoredRun> runs = new ArrayList<StoredRun>();
+        for(int slot : scan(query)) {
+            StoredRun run = read(slot);
+            if(!query.hasTestCriteria() || first(run, query) >= 0) {
+                runs.add(run);
+            }
+        }
+        return runs;
+    }
+
+    /**
+     * Returns every stored test outcome matching the query, oldest run first.
+     * @param query
+     * @return
+     * @throws AppThwackException if a run cannot be read.
+     */
+    public synchronized List<Match> findTests(Query query) throws AppThwackException {
+        List<Match> matches = new ArrayList<Match>();
+        for(int slot : scan(query)) {
+            StoredRun run = read(slot);
+            for(int i = first(run, query); i >= 0 && i < run.tests.size(); i++) {
+                TestEntry test = run.tests.get(i);
+                if(query.matches(test)) {
+                    matches.add(new Match(run.projectId, run.runId, run.time, test));
+                }
+            }
+        }
+        return matches;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            index.force();
+            indexChannel.close();
+            for(FileChannel segment : segments) {
+                segment.close();
+            }
+        }
+        finally {
+            lock.release();
+            lockChannel.close();
+        }
+    }
+
+    /**
+     * Returns the index slots of the latest records matching the project and date range, in time order.
+     */
+    private List<Integer> scan(Query query) {
+        List<Integer> slots = new ArrayList<Integer>();
+        for(int slot = 0; slot < count; slot++) {
+            int p = position(slot);
+            long time = index.getLong(p + 8);
+            if((query.projectId == null || index.getInt(p + 4) == query.projectId)
+                    && (query.from == null || time >= query.from)
+                    && (query.to == null || time < query.to)
+                    && latest.get(index.getInt(p)) == slot) {
+                slots.add(slot);
+            }
+        }
+        slots.sort((a, b) -> Long.compare(index.getLong(position(a) + 8), index.getLong(position(b) + 8)));
+        return slots;
+    }
+
+    private StoredRun read(int slot) throws AppThwackException {
+        int p = position(slot);
+        int runId = index.getInt(p);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(index.getInt(p + 20));
+            FileChannel channel = segments.get(index.getInt(p + 16));
+            long offset = index.getLong(p + 24);
+            while (buffer.hasRemaining()) {
+                if(channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new IOException("record is truncated");
+                }
+            }
+            return mapper.readValue(buffer.array(), StoredRun.class);
+        }
+        catch (IOException e) {
+            throw new AppThwackException(String.format("unable to read run %d: %s", runId, e.getMessage()));
+        }
+    }
+
+    /**
+     * Returns the index of the first test of the run matching the query, or -1.
+     */
+    private static int first(StoredRun run, Query query) {
+        for(int i = 0; i < run.tests.size(); i++) {
+            if(query.matches(run.tests.get(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void map(int capacity) throws IOException {
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, HeaderSize + (long)capacity * EntrySize);
+    }
+
+    private static int position(int slot) {
+        return HeaderSize + slot * EntrySize;
+    }
+
+    private Path segment(int s) {
+        return directory.resolve(String.format("segment-%05d", s));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AppThwackHistoryStore (%s, %d runs)", directory, latest.size());
+    }
+
+    @JsonAutoDetect(getterVisibility=Visibility.NONE, isGetterVisibility=Visibility.NONE)
+    private static abstract class FieldsOnly {
+
+    }
+
+    /**
+     * Criteria for stored runs and tests. Criteria which are not set match everything.
+     */
+    public static class Query {
+        private Integer projectId;
+        private Long from;
+        private Long to;
+        private String device;
+        private String testName;
+        private Outcome outcome;
+
+        public Query() {
+
+        }
+
+        public void setProjectId(Integer projectId) {
+            this.projectId = projectId;
+        }
+
+        /**
+         * Match runs from the given time, in milliseconds since the epoch (inclusive).
+         */
+        public void setFrom(Long from) {
+            this.from = from;
+        }
+
+        /**
+         * Match runs before the given time, in milliseconds since the epoch (exclusive).
+         */
+        public void setTo(Long to) {
+            this.to = to;
+        }
+
+        /**
+         * Match tests on the device with the given id.
+         */
+        public void setDevice(String device) {
+            this.device = device;
+        }
+
+        public void setTestName(String testName) {
+            this.testName = testName;
+        }
+
+        public void setOutcome(Outcome outcome) {
+            this.outcome = outcome;
+        }
+
+        boolean hasTestCriteria() {
+            return device != null || testName != null || outcome != null;
+        }
+
+        boolean matches(TestEntry test) {
+            return (device == null || device.equals(test.device))
+                    && (testName == null || testName.equals(test.name))
+                    && (outcome == null || outcome == test.outcome);
+        }
+    }
+
+    /**
+     * A stored test outcome with the run it belongs to.
+     */
+    public static class Match {
+        public final int projectId;
+        public final int runId;
+        public final long time;
+        public final TestEntry test;
+
+        Match(int projectId, int runId, long time, TestEntry test) {
+            this.projectId = projectId;
+            this.runId = runId;
+            this.time = time;
+            this.test = test;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("run %d: %s", runId, test);
+        }
+    }
+
+    /**
+     * The outcome of one test on one device.
+     */
+    public static class TestEntry {
+        public String name;
+        /** Id of the device the test ran on. */
+        public String device;
+        public String job;
+        public Outcome outcome;
+        public String message;
+
+        public TestEntry() {
+
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s on %s (%s) => %s", name, device, job, outcome);
+        }
+    }
+
+    /**
+     * Everything stored about a run.
+     */
+    public static class StoredRun {
+        public int projectId;
+        public int runId;
+        /** When the run took place, in milliseconds since the epoch. */
+        public long time;
+        public ResultSummary summary;
+        public List<TestEntry> tests = new ArrayList<TestEntry>();
+        public List<PerformanceResultContainer> performance = new ArrayList<PerformanceResultContainer>();
+
+        public StoredRun() {
+
+        }
+
+        /**
+         * Build the stored form of a run's results.
+         */
+        public static StoredRun of(int projectId, int runId, long time, AppThwackResult result) {
+            AppThwackCompactResult compact = AppThwackCompactResult.of(result);
+            StoredRun run = new StoredRun();
+            run.projectId = projectId;
+            run.runId = runId;
+            run.time = time;
+            run.summary = compact.getSummary();
+            run.performance.addAll(compact.getPerformance());
+
+            String[] devices = compact.getGroupLabels(Grouping.Device);
+            String[] jobs = compact.getGroupLabels(Grouping.Job);
+            for(int i = 0; i < compact.size(); i++) {
+                TestEntry test = new TestEntry();
+                test.name = compact.getName(i);
+                test.device = devices[i];
+                test.job = jobs[i];
+                test.outcome = compact.getOutcome(i);
+                test.message = compact.getMessage(i);
+                run.tests.add(test);
+            }
+            return run;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[%d] run %d at %d (%d tests)", projectId, runId, time, tests.size());
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.appthwack.appthwack;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+
+/**
+ * Read-mostly cache which indexes a remote collection by id and by case-folded name.
+ *
+ * Reads never lock; they work against an immutable snapshot which is swapped out
+ * atomically whenever the collection is refreshed. Refreshes are single-flight:
+ * when several threads find the snapshot stale at the same time, one of them fetches
+ * and the rest wait for and share its result.
+ *
+ * @param <T> type of the cached items.
+ */
+abstract class AppThwackLookupCache<T> {
+
+    private final Object refreshLock = new Object();
+
+    private volatile Snapshot<T> snapshot;
+    private volatile long ttl;
+
+    /**
+     * Create a new cache whose entries expire after the given number of milliseconds.
+     * @param ttl time-to-live in milliseconds; zero or less disables caching.
+     */
+    AppThwackLookupCache(long ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * Fetch the entire collection from AppThwack.
+     * @return current list of items.
+     */
+    protected abstract List<T> fetch();
+
+    /**
+     * Return the id used to index the given item.
+     */
+    protected abstract Integer idOf(T item);
+
+    /**
+     * Return the name used to index the given item.
+     */
+    protected abstract String nameOf(T item);
+
+    /**
+     * Get the item with the given id, refreshing the cache if it is stale.
+     * @param id id of the item we want.
+     * @return item with the given id or null.
+     */
+    public T get(Integer id) {
+        if(id == null) {
+            return null;
+        }
+        return current().byId.get(id);
+    }
+
+    /**
+     * Get the item with the given name (case insensitive), refreshing the cache if it is stale.
+     * @param name name of the item we want.
+     * @return item with the given name or null.
+     */
+    public T get(String name) {
+        if(name == null) {
+            return null;
+        }
+        return current().byName.get(fold(name));
+    }
+
+    /**
+     * Get every cached item, refreshing the cache if it is stale.
+     * @return unmodifiable list of items.
+     */
+    public List<T> getAll() {
+        return current().items;
+    }
+
+    /**
+     * Replace the cached contents with a list which was fetched elsewhere.
+     * @param items freshly fetched items.
+     */
+    public void put(List<T> items) {
+        snapshot = new Snapshot<T>(items, this, System.currentTimeMillis() + ttl);
+    }
+
+    /**
+     * Fetch the collection again regardless of the current snapshot's age.
+     * Concurrent callers share a single fetch.
+     */
+    public void refresh() {
+        Snapshot<T> stale = snapshot;
+        synchronized (refreshLock) {
+            if(snapshot == stale) {
+                put(fetch());
+            }
+        }
+    }
+
+    /**
+     * Drop the cached snapshot so the next lookup fetches from AppThwack.
+     */
+    public void invalidate() {
+        snapshot = null;
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    /**
+     * Set how long a fetched snapshot remains valid. Does not affect the current snapshot.
+     * @param ttl time-to-live in milliseconds; zero or less disables caching.
+     */
+    public void setTtl(long ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * Return a snapshot which is fresh enough to serve lookups from.
+     */
+    private Snapshot<T> current() {
+        Snapshot<T> s = snapshot;
+        if(s != null && s.isFresh()) {
+            return s;
+        }
+        synchronized (refreshLock) {
+            // Another thread refreshed while we were waiting on the lock, so share its fetch.
+            Snapshot<T> latest = snapshot;
+            if(latest != null && latest != s) {
+                return latest;
+            }
+            latest = new Snapshot<T>(fetch(), this, System.currentTimeMillis() + ttl);
+            snapshot = latest;
+            return latest;
+        }
+    }
+
+    private static String fold(String name) {
+        return name.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Immutable view of the collection at a point in time.
+     */
+    private static final class Snapshot<T> {
+        final List<T> items;
+        final Map<Integer, T> byId;
+        final Map<String, T> byName;
+        final long expiresAt;
+
+        Snapshot(List<T> items, AppThwackLookupCache<T> cache, long expiresAt) {
+            Map<Integer, T> ids = new HashMap<Integer, T>();
+            Map<String, T> names = new HashMap<String, T>();
+            for(T item : items) {
+                Integer id = cache.idOf(item);
+                String name = cache.nameOf(item);
+                // The first match wins, same as the linear scan this replaces.
+                if(id != null && !ids.containsKey(id)) {
+                    ids.put(id, item);
+                }
+                if(name != null && !names.containsKey(fold(name))) {
+                    names.put(fold(name), item);
+                }
+            }
+            this.items = Collections.unmodifiableList(new ArrayList<T>(items));
+            this.byId = ids;
+            this.byName = names;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isFresh() {
+            return System.currentTimeMillis() < expiresAt;
+        }
+    }
+}
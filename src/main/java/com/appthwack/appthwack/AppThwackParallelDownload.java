@@ -0,0 +1,229 @@
+package com.appthwack.appthwack;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.WebResource;
+
+
+/**
+ * Downloads a resource as several byte ranges fetched concurrently on pooled connections.
+ *
+ * The size of the resource and support for ranges are checked with a {@code HEAD}
+ * request. The destination is pre-sized, and every range is written at its own offset
+ * with positional writes, so ranges can complete in any order. A range which is cut
+ * short is requested again from the last byte written. {@code If-Range} ties every
+ * range to the version seen by the {@code HEAD} request.
+ */
+class AppThwackParallelDownload {
+
+    /** Smallest range worth a connection of its own. */
+    static final long MinimumSegmentSize = 1024 * 1024;
+
+    private final WebResource resource;
+    private final int parallelism;
+    private final AppThwackRetryPolicy policy;
+
+    /**
+     * @param resource resource to download.
+     * @param parallelism maximum number of ranges fetched at once.
+     * @param policy retry policy applied to each range.
+     */
+    AppThwackParallelDownload(WebResource resource, int parallelism, AppThwackRetryPolicy policy) {
+        this.resource = resource;
+        this.parallelism = parallelism;
+        this.policy = policy;
+    }
+
+    /**
+     * Download the resource into the given file, replacing it if it exists.
+     * @param destination path of the file to write.
+     * @return number of bytes written, or -1 if the server does not support ranges
+     * (or the resource is too small to be worth splitting) and nothing was written.
+     */
+    long download(Path destination) throws AppThwackException {
+        ClientResponse head = resource.head();
+        long length;
+        String etag;
+        try {
+            String contentLength = head.getHeaders().getFirst("Content-Length");
+            if(head.getStatus() != 200 || contentLength == null
+                    || !"bytes".equalsIgnoreCase(head.getHeaders().getFirst("Accept-Ranges"))) {
+                return -1;
+            }
+            length = Long.parseLong(contentLength.trim());
+            etag = head.getHeaders().getFirst("ETag");
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+        finally {
+            head.close();
+        }
+        if(length < 2 * MinimumSegmentSize || parallelism < 2) {
+            return -1;
+        }
+
+        long size = Math.max(MinimumSegmentSize, (length + parallelism - 1) / parallelism);
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism,
+                AppThwackRunWatcher.daemonThreads("AppThwackParallelDownload worker"));
+        boolean opened = false;
+        boolean complete = false;
+        try {
+            RandomAccessFile file = new RandomAccessFile(destination.toFile(), "rw");
+            opened = true;
+            final FileChannel channel = file.getChannel();
+            try {
+                file.setLength(length);
+                List<Future<Void>> segments = new ArrayList<Future<Void>>();
+                for(long start = 0; start < length; start += size) {
+                    final long first = start;
+                    final long last = Math.min(length, start + size) - 1;
+                    segments.add(executor.submit(new Callable<Void>() {
+                        public Void call() throws Exception {
+                            fetch(channel, first, last, etag);
+                            return null;
+                        }
+                    }));
+                }
+                for(Future<Void> segment : segments) {
+                    segment.get();
+                }
+                complete = true;
+                return length;
+            }
+            finally {
+                channel.close();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AppThwackException("interrupted while downloading results");
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof RangeNotSupportedException) {
+                return -1;
+            }
+            if(cause instanceof AppThwackException) {
+                throw (AppThwackException)cause;
+            }
+            if(cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw new AppThwackException(String.format("unable to download results: %s", cause.getMessage()));
+        }
+        catch (IOException e) {
+            throw new AppThwackException(String.format("unable to download results to %s: %s", destination, e.getMessage()));
+        }
+        finally {
+            executor.shutdownNow();
+            if(opened && !complete) {
+                try {
+                    Files.deleteIfExists(destination);
+                }
+                catch (IOException e) {
+                    // Leave the partial file behind; the caller already gets the failure.
+                }
+            }
+        }
+    }
+
+    /**
+     * Fetch bytes first..last (inclusive) into the channel, resuming after interrupted transfers.
+     */
+    private void fetch(FileChannel channel, long first, long last, String etag) throws AppThwackException {
+        long position = first;
+        int failures = 0;
+        while (true) {
+            String error;
+            try {
+                WebResource.Builder request = resource.header("Range", String.format("bytes=%d-%d", position, last));
+                if(etag != null) {
+                    request = request.header("If-Range", etag);
+                }
+                ClientResponse response = request.get(ClientResponse.class);
+                try {
+                    int status = response.getStatus();
+                    if(status == 200) {
+                        // Ranges were ignored, or the archive changed since it was sized.
+                        throw new RangeNotSupportedException();
+                    }
+                    if(status == 206) {
+                        position = copy(response.getEntityInputStream(), channel, position, last);
+                        if(position > last) {
+                            return;
+                        }
+                        error = String.format("connection closed at byte %d of range %d-%d", position, first, last);
+                    }
+                    else if(policy.isRetryable(status)) {
+                        error = String.format("HTTP %d", status);
+                    }
+                    else {
+                        throw new AppThwackException(String.format("unable to download results: HTTP %d", status));
+                    }
+                }
+                finally {
+                    response.close();
+                }
+            }
+            catch (ClientHandlerException e) {
+                error = e.getMessage();
+            }
+            catch (IOException e) {
+                error = e.getMessage();
+            }
+            failures++;
+            if(!policy.canRetry(failures)) {
+                throw new AppThwackException(String.format("unable to download results after %d attempts: %s", failures, error));
+            }
+            try {
+                Thread.sleep(policy.backoff(failures));
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AppThwackException("interrupted while downloading results");
+            }
+        }
+    }
+
+    /**
+     * Write the stream at the given position, up to and including the last byte.
+     * @return position after the last byte written.
+     */
+    private static long copy(InputStream in, FileChannel channel, long position, long last) throws IOException {
+        ReadableByteChannel source = Channels.newChannel(in);
+        long n;
+        while (position <= last && (n = channel.transferFrom(source, position, last - position + 1)) > 0) {
+            position += n;
+        }
+        return position;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AppThwackParallelDownload (%s, %d at a time)", resource.getURI(), parallelism);
+    }
+
+    /**
+     * Raised by a range which received the whole resource instead of its part.
+     */
+    private static class RangeNotSupportedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
+}
@@ -0,0 +1,295 @@
+package com.appthwack.appthwack;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.appthwack.appthwack.AppThwackPerformanceSeries.Metric;
+import com.appthwack.appthwack.AppThwackPerformanceSeries.Stat;
+import com.appthwack.appthwack.AppThwackResult.Device;
+
+
+/**
+ * Cross-device statistics of performance metrics, aggregated over one or many runs.
+ *
+ * For every metric, one statistic of each device (the average by default) is added to a
+ * {@link AppThwackQuantileSketch} for percentiles and to running moments for the mean and
+ * standard deviation. Devices are tracked by model and OS version so outliers can be found;
+ * memory is bounded by the number of distinct devices, not by the number of runs added.
+ *
+ * FPS and frame draw time are only reported run-wide, so each run adds one value of those:
+ * the statistic from its performance summary ({@code FPS_*}, {@code AvgFrameDrawTime_*}),
+ * attributed to the device the summary names.
+ */
+public class AppThwackPerformanceAnalytics {
+
+    private static final Metric[] Metrics = Metric.values();
+
+    private final Stat stat;
+    private final AppThwackQuantileSketch[] sketches = new AppThwackQuantileSketch[Metrics.length];
+    private final Moments[] moments = new Moments[Metrics.length];
+    private final Map<AppThwackDeviceKey, DeviceMoments> devices = new HashMap<AppThwackDeviceKey, DeviceMoments>();
+    private int runs;
+
+    public AppThwackPerformanceAnalytics() {
+        this(Stat.Avg);
+    }
+
+    /**
+     * @param stat statistic of each device to aggregate, e.g. {@link Stat#Max} for peak usage.
+     */
+    public AppThwackPerformanceAnalytics(Stat stat) {
+        this(stat, AppThwackQuantileSketch.DefaultRelativeAccuracy, AppThwackQuantileSketch.DefaultMaxBuckets);
+    }
+
+    /**
+     * @param stat statistic of each device to aggregate.
+     * @param relativeAccuracy relative error of the percentiles.
+     * @param maxBuckets bound on the buckets of each percentile sketch.
+     */
+    public AppThwackPerformanceAnalytics(Stat stat, double relativeAccuracy, int maxBuckets) {
+        this.stat = stat;
+        for(int m = 0; m < Metrics.length; m++) {
+            sketches[m] = new AppThwackQuantileSketch(relativeAccuracy, maxBuckets);
+            moments[m] = new Moments();
+        }
+    }
+
+    /**
+     * Add the performance data of a run.
+     * @param result
+     */
+    public void add(AppThwackResult result) {
+        add(result.getPerformanceSeries());
+    }
+
+    /**
+     * Add the performance data of a run.
+     * @param series
+     */
+    public synchronized void add(AppThwackPerformanceSeries series) {
+        for(int d = 0; d < series.getDeviceCount(); d++) {
+            DeviceMoments perDevice = deviceMoments(series.getDevice(d));
+            for(int m = 0; m < Metrics.length; m++) {
+                if(!Metrics[m].isSummaryOnly()) {
+                    add(m, series.get(Metrics[m], stat, d), perDevice);
+                }
+            }
+        }
+        for(int m = 0; m < Metrics.length; m++) {
+            if(Metrics[m].isSummaryOnly()) {
+                add(m, series.getSummary(Metrics[m], stat), deviceMoments(series.getSummaryDevice(Metrics[m], stat)));
+            }
+        }
+        runs++;
+    }
+
+    private void add(int m, double value, DeviceMoments perDevice) {
+        if(Double.isNaN(value)) {
+            return;
+        }
+        sketches[m].add(value);
+        moments[m].add(value);
+        if(perDevice != null) {
+            perDevice.moments[m].add(value);
+        }
+    }
+
+    /**
+     * Returns the moments tracked for the given device, or null if it cannot be identified.
+     */
+    private DeviceMoments deviceMoments(Device device) {
+        AppThwackDeviceKey key = AppThwackDeviceKey.of(device);
+        if(key == null) {
+            return null;
+        }
+        DeviceMoments perDevice = devices.get(key);
+        if(perDevice == null) {
+            perDevice = new DeviceMoments(device);
+            devices.put(key, perDevice);
+        }
+        return perDevice;
+    }
+
+    /**
+     * Returns the statistic of each device which is aggregated.
+     * @return
+     */
+    public Stat getStat() {
+        return stat;
+    }
+
+    /**
+     * Returns the number of runs added.
+     * @return
+     */
+    public synchronized int getRunCount() {
+        return runs;
+    }
+
+    /**
+     * Returns the number of distinct devices (model and OS version) seen.
+     * @return
+     */
+    public synchronized int getDeviceCount() {
+        return devices.size();
+    }
+
+    /**
+     * Returns the distribution of a metric over every device and run added.
+     * @param metric
+     * @return
+     */
+    public synchronized MetricSummary getSummary(Metric metric) {
+        AppThwackQuantileSketch sketch = sketches[metric.ordinal()];
+        Moments m = moments[metric.ordinal()];
+        return new MetricSummary(metric, m.count, m.mean(), m.standardDeviation(), sketch.getMin(), sketch.getMax(),
+                sketch.getQuantile(0.5), sketch.getQuantile(0.9), sketch.getQuantile(0.99));
+    }
+
+    /**
+     * Returns the estimated value of a metric at the given quantile, or NaN if it has no values.
+     * @param metric
+     * @param quantile between 0 and 1, e.g. 0.95.
+     * @return
+     */
+    public synchronized double getQuantile(Metric metric, double quantile) {
+        return sketches[metric.ordinal()].getQuantile(quantile);
+    }
+
+    /**
+     * Returns the devices whose mean value of a metric lies at least the given number of
+     * standard deviations from the mean of all devices, the most distant first.
+     * @param metric
+     * @param zThreshold minimum absolute z-score, e.g. 2.
+     * @return
+     */
+    public synchronized List<Outlier> getOutliers(Metric metric, double zThreshold) {
+        int m = metric.ordinal();
+        Moments across = new Moments();
+        for(DeviceMoments d : devices.values()) {
+            if(d.moments[m].count > 0) {
+                across.add(d.moments[m].mean());
+            }
+        }
+        double deviation = across.standardDeviation();
+        if(across.count < 2 || deviation == 0) {
+            return Collections.emptyList();
+        }
+        List<Outlier> outliers = new ArrayList<Outlier>();
+        for(DeviceMoments d : devices.values()) {
+            if(d.moments[m].count == 0) {
+                continue;
+            }
+            double value = d.moments[m].mean();
+            double z = (value - across.mean()) / deviation;
+            if(Math.abs(z) >= zThreshold) {
+                outliers.add(new Outlier(d.device, metric, value, z));
+            }
+        }
+        Collections.sort(outliers, (a, b) -> Double.compare(Math.abs(b.zScore), Math.abs(a.zScore)));
+        return outliers;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AppThwackPerformanceAnalytics (%s, %d runs, %d devices)", stat, getRunCount(), getDeviceCount());
+    }
+
+    /**
+     * Distribution of one metric across devices.
+     */
+    public static class MetricSummary {
+        public final Metric metric;
+        public final long count;
+        public final double mean;
+        public final double standardDeviation;
+        public final double min;
+        public final double max;
+        public final double p50;
+        public final double p90;
+        public final double p99;
+
+        MetricSummary(Metric metric, long count, double mean, double standardDeviation,
+                double min, double max, double p50, double p90, double p99) {
+            this.metric = metric;
+            this.count = count;
+            this.mean = mean;
+            this.standardDeviation = standardDeviation;
+            this.min = min;
+            this.max = max;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s (n: %d, mean: %.2f, sd: %.2f, p50: %.2f, p90: %.2f, p99: %.2f)",
+                    metric, count, mean, standardDeviation, p50, p90, p99);
+        }
+    }
+
+    /**
+     * A device whose value of a metric is far from that of the other devices.
+     */
+    public static class Outlier {
+        public final Device device;
+        public final Metric metric;
+        public final double value;
+        public final double zScore;
+
+        Outlier(Device device, Metric metric, double value, double zScore) {
+            this.device = device;
+            this.metric = metric;
+            this.value = value;
+            this.zScore = zScore;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %s: %.2f (z: %.2f)", device, metric, value, zScore);
+        }
+    }
+
+    /**
+     * Running mean and variance (Welford's method), stable over any number of values.
+     */
+    private static class Moments {
+        long count;
+        double mean;
+        double m2;
+
+        void add(double value) {
+            count++;
+            double delta = value - mean;
+            mean += delta / count;
+            m2 += delta * (value - mean);
+        }
+
+        double mean() {
+            return count == 0 ? Double.NaN : mean;
+        }
+
+        /**
+         * Sample standard deviation, or 0 for fewer than two values.
+         */
+        double standardDeviation() {
+            return count < 2 ? 0 : Math.sqrt(m2 / (count - 1));
+        }
+    }
+
+    private static class DeviceMoments {
+        final Device device;
+        final Moments[] moments = new Moments[Metrics.length];
+
+        DeviceMoments(Device device) {
+            this.device = device;
+            for(int m = 0; m < Metrics.length; m++) {
+                moments[m] = new Moments();
+            }
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package com.appthwack.appthwack;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.appthwack.appthwack.AppThwackResult.Device;
+import com.appthwack.appthwack.AppThwackResult.PerformanceEntry;
+import com.appthwack.appthwack.AppThwackResult.PerformanceResult;
+import com.appthwack.appthwack.AppThwackResult.PerformanceResultContainer;
+import com.appthwack.appthwack.AppThwackResult.PerformanceResultSummary;
+import com.appthwack.appthwack.AppThwackResult.PerformanceSummary;
+
+
+/**
+ * Performance samples of a run parsed once into primitive arrays.
+ *
+ * The result document reports every sample as strings; here each value is a
+ * {@code double} and each timestamp a {@code long}, stored per metric, statistic and
+ * device in flat arrays. Values which are missing or cannot be parsed are {@code NaN}
+ * (timestamps: {@link #MissingTimestamp}). The accessors do not allocate, so numeric
+ * analysis can loop over every device without boxing or re-parsing.
+ *
+ * FPS and frame draw time are only reported in the run-wide summary ({@code FPS_*} and
+ * {@code AvgFrameDrawTime_*}), so their per-device values are always NaN.
+ */
+public class AppThwackPerformanceSeries {
+
+    /**
+     * Performance metrics; {@link #Fps} and {@link #FrameDrawTime} are summary-only.
+     */
+    public enum Metric {
+        Cpu, Memory, Threads, Fps, FrameDrawTime;
+
+        /**
+         * Returns true if the metric is only reported in the run-wide summary.
+         */
+        public boolean isSummaryOnly() {
+            return this == Fps || this == FrameDrawTime;
+        }
+    }
+
+    /**
+     * Statistics reported for each metric.
+     */
+    public enum Stat {
+        Min, Avg, Max
+    }
+
+    public static final long MissingTimestamp = Long.MIN_VALUE;
+
+    private static final int Metrics = Metric.values().length;
+    private static final int Stats = Stat.values().length;
+
+    private final Device[] devices;
+    private final Map<Integer, Integer> deviceIndex = new HashMap<Integer, Integer>();
+    private final double[] values;
+    private final long[] timestamps;
+
+    private final double[] summaryValues = new double[Metrics * Stats];
+    private final Device[] summaryDevices = new Device[Metrics * Stats];
+
+    private AppThwackPerformanceSeries(int devices) {
+        this.devices = new Device[devices];
+        this.values = new double[Metrics * Stats * devices];
+        this.timestamps = new long[Metrics * Stats * devices];
+        Arrays.fill(values, Double.NaN);
+        Arrays.fill(timestamps, MissingTimestamp);
+        Arrays.fill(summaryValues, Double.NaN);
+    }
+
+    /**
+     * Parse the per-device performance data and summary of a run.
+     * @param performance per-device performance containers; may be null.
+     * @param summary run-wide performance summary; may be null.
+     * @return
+     */
+    public static AppThwackPerformanceSeries of(List<PerformanceResultContainer> performance, PerformanceSummary summary) {
+        int count = performance == null ? 0 : performance.size();
+        AppThwackPerformanceSeries series = new AppThwackPerformanceSeries(count);
+        for(int d = 0; d < count; d++) {
+            PerformanceResultContainer container = performance.get(d);
+            series.devices[d] = container.device;
+            if(container.device != null && container.device.id != null) {
+                series.deviceIndex.putIfAbsent(container.device.id, d);
+            }
+            series.put(d, Metric.Cpu, container.cpu);
+            series.put(d, Metric.Memory, container.memory);
+            series.put(d, Metric.Threads, container.threads);
+        }
+        if(summary != null) {
+            series.putSummary(Metric.Cpu, summary.cpuMin, summary.cpuAvg, summary.cpuMax);
+            series.putSummary(Metric.Memory, summary.memoryMin, summary.memoryAvg, summary.memoryMax);
+            series.putSummary(Metric.Threads, summary.threadsMin, summary.threadsAvg, summary.threadsMax);
+            series.putSummary(Metric.Fps, summary.fpsMin, summary.fpsAvg, summary.fpsMax);
+            series.putSummary(Metric.FrameDrawTime, summary.drawMin, summary.drawAvg, summary.drawMax);
+        }
+        return series;
+    }
+
+    /**
+     * Returns the number of devices with performance data.
+     * @return
+     */
+    public int getDeviceCount() {
+        return devices.length;
+    }
+
+    public Device getDevice(int device) {
+        return devices[device];
+    }
+
+    /**
+     * Returns the index of the device with the given id, or -1.
+     * @param deviceId AppThwack device id.
+     * @return
+     */
+    public int indexOf(int deviceId) {
+        Integer index = deviceIndex.get(deviceId);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * Returns the value of a statistic on one device, or NaN if it was not reported.
+     * @param metric
+     * @param stat
+     * @param device device index.
+     * @return
+     */
+    public double get(Metric metric, Stat stat, int device) {
+        return values[offset(metric, stat) + device];
+    }
+
+    /**
+     * Returns when the value of a statistic was sampled, or {@link #MissingTimestamp}.
+     * @param metric
+     * @param stat
+     * @param device device index.
+     * @return
+     */
+    public long getTimestamp(Metric metric, Stat stat, int device) {
+        return timestamps[offset(metric, stat) + device];
+    }
+
+    /**
+     * Copy the value of a statistic for every device into the given array.
+     * @param metric
+     * @param stat
+     * @param destination array of at least {@link #getDeviceCount()} elements from {@code offset}.
+     * @param offset first index written.
+     * @return number of values copied.
+     */
+    public int copy(Metric metric, Stat stat, double[] destination, int offset) {
+        System.arraycopy(values, offset(metric, stat), destination, offset, devices.length);
+        return devices.length;
+    }
+
+    /**
+     * Returns the value of a statistic for every device, in a new array.
+     * @param metric
+     * @param stat
+     * @return
+     */
+    public double[] toArray(Metric metric, Stat stat) {
+        double[] copy = new double[devices.length];
+        copy(metric, stat, copy, 0);
+        return copy;
+    }
+
+    /**
+     * Returns a run-wide summary value, or NaN if it was not reported.
+     * @param metric
+     * @param stat
+     * @return
+     */
+    public double getSummary(Metric metric, Stat stat) {
+        return summaryValues[metric.ordinal() * Stats + stat.ordinal()];
+    }
+
+    /**
+     * Returns the device which produced a run-wide summary value, or null.
+     * @param metric
+     * @param stat
+     * @return
+     */
+    public Device getSummaryDevice(Metric metric, Stat stat) {
+        return summaryDevices[metric.ordinal() * Stats + stat.ordinal()];
+    }
+
+    /**
+     * Parse a reported value such as "93", "12.5" or "1024 MB", ignoring any trailing unit.
+     * @return the value, or NaN.
+     */
+    static double parseValue(String value) {
+        if(value == null) {
+            return Double.NaN;
+        }
+        int start = 0;
+        int end = value.length();
+        while (start < end && Character.isWhitespace(value.charAt(start))) {
+            start++;
+        }
+        int i = start;
+        while (i < end) {
+            char c = value.charAt(i);
+            if((c >= '0' && c <= '9') || c == '.' || c == '-' || c == '+' || ((c == 'e' || c == 'E') && i > start)) {
+                i++;
+            }
+            else {
+                break;
+            }
+        }
+        if(i == start) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(value.substring(start, i));
+        }
+        catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Parse a reported timestamp, which is a number of seconds or milliseconds.
+     * @return the timestamp as reported, or {@link #MissingTimestamp}.
+     */
+    static long parseTimestamp(String timestamp) {
+        double value = parseValue(timestamp);
+        return Double.isNaN(value) ? MissingTimestamp : (long)value;
+    }
+
+    private int offset(Metric metric, Stat stat) {
+        return (metric.ordinal() * Stats + stat.ordinal()) * devices.length;
+    }
+
+    private void put(int device, Metric metric, PerformanceResult result) {
+        if(result == null) {
+            return;
+        }
+        put(device, metric, Stat.Min, result.min);
+        put(device, metric, Stat.Avg, result.avg);
+        put(device, metric, Stat.Max, result.max);
+    }
+
+    private void put(int device, Metric metric, Stat stat, PerformanceEntry entry) {
+        if(entry == null) {
+            return;
+        }
+        int index = offset(metric, stat) + device;
+        values[index] = parseValue(entry.value);
+        timestamps[index] = parseTimestamp(entry.timestamp);
+    }
+
+    private void putSummary(Metric metric, PerformanceResultSummary min, PerformanceResultSummary avg, PerformanceResultSummary max) {
+        PerformanceResultSummary[] stats = {min, avg, max};
+        for(int s = 0; s < Stats; s++) {
+            if(stats[s] != null) {
+                summaryValues[metric.ordinal() * Stats + s] = parseValue(stats[s].value);
+                summaryDevices[metric.ordinal() * Stats + s] = stats[s].device;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AppThwackPerformanceSeries (%d devices)", devices.length);
+    }
+}
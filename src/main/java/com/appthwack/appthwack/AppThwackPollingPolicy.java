@@ -0,0 +1,37 @@
+package com.appthwack.appthwack;
+
+
+/**
+ * Decides how long to wait before checking the status of an incomplete run again.
+ * Implementations must be thread-safe; a single policy is shared by every run a
+ * {@link AppThwackRunWatcher} tracks.
+ */
+public interface AppThwackPollingPolicy {
+
+    /**
+     * Returns the delay before the next status check.
+     * @param summary most recent summary of the run.
+     * @param attempt number of status checks made so far, starting at 1.
+     * @param elapsed milliseconds since the caller started waiting on the run.
+     * @return delay in milliseconds.
+     */
+    long nextDelay(AppThwackResult.ResultSummary summary, int attempt, long elapsed);
+
+    /**
+     * Returns a policy which always waits the same amount of time.
+     * @param ms status polling interval in milliseconds
+     * @return fixed interval policy.
+     */
+    static AppThwackPollingPolicy fixed(final long ms) {
+        return new AppThwackPollingPolicy() {
+            public long nextDelay(AppThwackResult.ResultSummary summary, int attempt, long elapsed) {
+                return ms;
+            }
+
+            @Override
+            public String toString() {
+                return String.format("AppThwackPollingPolicy (every %d ms)", ms);
+            }
+        };
+    }
+}
@@ -0,0 +1,93 @@
+package com.appthwack.appthwack;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * Input stream which counts the bytes read through it and reports them to a
+ * {@link AppThwackProgressListener} every time another interval's worth has passed.
+ */
+class AppThwackProgressInputStream extends FilterInputStream {
+
+    private final long total;
+    private final long interval;
+    private final AppThwackProgressListener listener;
+    private final long started = System.nanoTime();
+
+    private long bytes;
+    private long reported;
+    private boolean finished;
+
+    /**
+     * @param in stream to read from.
+     * @param total expected number of bytes, or -1 if unknown.
+     * @param interval number of bytes between progress updates.
+     * @param listener receives progress updates; may be null.
+     */
+    AppThwackProgressInputStream(InputStream in, long total, long interval, AppThwackProgressListener listener) {
+        super(in);
+        this.total = total;
+        this.interval = interval;
+        this.listener = listener;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        advance(b < 0 ? -1 : 1);
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int n = super.read(buffer, offset, length);
+        advance(n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        bytes += skipped;
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Returns the number of bytes read so far.
+     */
+    long getBytes() {
+        return bytes;
+    }
+
+    private void advance(long n) {
+        if(n < 0) {
+            if(!finished) {
+                finished = true;
+                if(reported != bytes || bytes == 0) {
+                    report();
+                }
+            }
+            return;
+        }
+        bytes += n;
+        if(bytes - reported >= interval || bytes == total) {
+            report();
+        }
+    }
+
+    private void report() {
+        reported = bytes;
+        if(listener == null) {
+            return;
+        }
+        double seconds = (System.nanoTime() - started) / 1e9;
+        listener.onProgress(bytes, total, seconds > 0 ? bytes / seconds : 0);
+    }
+}
@@ -0,0 +1,17 @@
+package com.appthwack.appthwack;
+
+
+/**
+ * Receives progress updates while a file is transferred to or from AppThwack.
+ * Updates are delivered on the transferring thread and should return quickly.
+ */
+public interface AppThwackProgressListener {
+
+    /**
+     * Called periodically during a transfer and once more when it finishes.
+     * @param bytes number of bytes transferred so far.
+     * @param total total size of the transfer in bytes, or -1 if unknown.
+     * @param bytesPerSecond average throughput since the transfer started.
+     */
+    void onProgress(long bytes, long total, double bytesPerSecond);
+}
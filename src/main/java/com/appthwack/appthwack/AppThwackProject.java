@@ -1,8 +1,10 @@
 package com.appthwack.appthwack;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.Callable;
 import java.net.URI;
 
 import com.appthwack.appthwack.AppThwackDevicePool;
@@ -27,6 +29,9 @@ import com.sun.jersey.multipart.FormDataMultiPart;
 @JsonAutoDetect
 @JsonIgnoreProperties(ignoreUnknown=true)
 public class AppThwackProject {
+
+    private static final long DefaultDevicePoolCacheTtl = 5 * 60 * 1000;
+
     public Integer id;
     public String name;
     public String url;
@@ -35,6 +40,30 @@ public class AppThwackProject {
     @JsonIgnore
     private transient WebResource root;
 
+    @JsonIgnore
+    private transient AppThwackRequestCoalescer requests = new AppThwackRequestCoalescer();
+
+    @JsonIgnore
+    private transient AppThwackResultCache resultCache;
+
+    @JsonIgnore
+    private final transient AppThwackLookupCache<AppThwackDevicePool> devicePoolCache = new AppThwackLookupCache<AppThwackDevicePool>(DefaultDevicePoolCacheTtl) {
+        @Override
+        protected List<AppThwackDevicePool> fetch() {
+            return fetchDevicePools();
+        }
+
+        @Override
+        protected Integer idOf(AppThwackDevicePool pool) {
+            return pool.id;
+        }
+
+        @Override
+        protected String nameOf(AppThwackDevicePool pool) {
+            return pool.name;
+        }
+    };
+
     public AppThwackProject() {
 
     }
@@ -306,47 +335,77 @@ public class AppThwackProject {
 
     /**
      * Get an individual device pool for the given name.
+     * Lookups are served from the device pool cache; see {@link #setDevicePoolCacheTtl(long)}.
      * @param name  name of the device pool we want.
      * @return device pool with the given name or null.
      */
     public AppThwackDevicePool getDevicePool(String name) {
-        List<AppThwackDevicePool> pools = getDevicePools();
-        for(AppThwackDevicePool p : pools) {
-            if(p.name.equalsIgnoreCase(name)) {
-                return p;
-            }
-        }
-        return null;
+        return devicePoolCache.get(name);
     }
 
     /**
      * Get an individual device pool for the given id.
+     * Lookups are served from the device pool cache; see {@link #setDevicePoolCacheTtl(long)}.
      * @param id id of the device pool we want.
      * @return device pool with the given id or null.
      */
     public AppThwackDevicePool getDevicePool(Integer pid) {
-        List<AppThwackDevicePool> pools = getDevicePools();
-        for(AppThwackDevicePool p : pools) {
-            if(p.id.equals(pid)) {
-                return p;
-            }
-        }
-        return null;
+        return devicePoolCache.get(pid);
     }
 
     /**
      * Get a list of all device pools tied to this account.
+     * This always hits AppThwack and repopulates the device pool cache with the result.
      * @return list of device pools.
      */
     public List<AppThwackDevicePool> getDevicePools() {
-        List<AppThwackDevicePool> pools = root.path("devicepool").path(Integer.toString(id)).get(new GenericType<List<AppThwackDevicePool>>(){});
-        for(AppThwackDevicePool p : pools) {
-            p.setRoot(root);
-            p.setProject(this);
-        }
+        List<AppThwackDevicePool> pools = fetchDevicePools();
+        devicePoolCache.put(pools);
         return pools;
     }
 
+    /**
+     * Set how long device pool lookups are cached before they are fetched again.
+     * @param ms time-to-live in milliseconds; zero disables the cache.
+     */
+    public void setDevicePoolCacheTtl(long ms) {
+        devicePoolCache.setTtl(ms);
+    }
+
+    /**
+     * Fetch the device pools for this project again, replacing the cached copy.
+     * Concurrent callers share a single request.
+     */
+    public void refreshDevicePools() {
+        devicePoolCache.refresh();
+    }
+
+    /**
+     * Drop all cached device pools so the next lookup fetches them from AppThwack.
+     */
+    public void invalidateDevicePools() {
+        devicePoolCache.invalidate();
+    }
+
+    /**
+     * Fetch the list of device pools from AppThwack, bypassing the cache.
+     * @return list of device pools.
+     */
+    private List<AppThwackDevicePool> fetchDevicePools() {
+        final AppThwackProject project = this;
+        List<AppThwackDevicePool> pools = requests.get(String.format("devicepool/%d", id), new Callable<List<AppThwackDevicePool>>() {
+            public List<AppThwackDevicePool> call() {
+                List<AppThwackDevicePool> pools = root.path("devicepool").path(Integer.toString(id)).get(new GenericType<List<AppThwackDevicePool>>(){});
+                for(AppThwackDevicePool p : pools) {
+                    p.setRoot(root);
+                    p.setProject(project);
+                }
+                return pools;
+            }
+        });
+        return new ArrayList<AppThwackDevicePool>(pools);
+    }
+
     /**
      * Return URL to this project visible on the site.
      * @return
@@ -365,6 +424,38 @@ public class AppThwackProject {
         this.webUrl = String.format("%s://%s/project/%s", uri.getScheme(), uri.getHost(), url);
     }
 
+    /**
+     * Returns the request coalescer shared by this project and its runs.
+     */
+    AppThwackRequestCoalescer getRequests() {
+        return requests;
+    }
+
+    /**
+     * Share the given request coalescer, normally the one owned by the AppThwackApi
+     * which fetched this project.
+     * @param requests
+     */
+    void setRequests(AppThwackRequestCoalescer requests) {
+        this.requests = requests;
+    }
+
+    /**
+     * Returns the result cache shared by the runs of this project, or null.
+     */
+    AppThwackResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * Share the given result cache, normally the one owned by the AppThwackApi
+     * which fetched this project.
+     * @param resultCache
+     */
+    void setResultCache(AppThwackResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
     @Override
     public String toString() {
         return String.format("AppThwackProject (%s)", getWebUrl());
@@ -0,0 +1,275 @@
+package com.appthwack.appthwack;
+
+import java.util.Arrays;
+
+
+/**
+ * Streaming quantile estimator with bounded relative error and bounded memory.
+ *
+ * Values are counted in logarithmically sized buckets (as in DDSketch), so any quantile
+ * is estimated to within the configured relative accuracy of the true value, however many
+ * values have been added. Memory is bounded by the maximum number of buckets: once it is
+ * exceeded, the buckets of the smallest magnitudes are merged, which only affects the
+ * accuracy of the lowest quantiles. Sketches with the same accuracy can be merged, e.g. to
+ * aggregate the runs of a whole release.
+ */
+public class AppThwackQuantileSketch {
+
+    public static final double DefaultRelativeAccuracy = 0.01;
+    public static final int DefaultMaxBuckets = 2048;
+
+    /** Values closer to zero than this are counted as zero. */
+    private static final double MinIndexableValue = 1e-9;
+
+    private final double relativeAccuracy;
+    private final double gamma;
+    private final double logGamma;
+    private final int maxBuckets;
+
+    private final Store positive;
+    private final Store negative;
+    private long zeros;
+    private long count;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    private double sum;
+
+    public AppThwackQuantileSketch() {
+        this(DefaultRelativeAccuracy, DefaultMaxBuckets);
+    }
+
+    /**
+     * @param relativeAccuracy relative error of estimated quantiles, e.g. 0.01 for 1%.
+     * @param maxBuckets maximum number of buckets kept for positive and for negative values.
+     */
+    public AppThwackQuantileSketch(double relativeAccuracy, int maxBuckets) {
+        if(relativeAccuracy <= 0 || relativeAccuracy >= 1) {
+            throw new IllegalArgumentException("relative accuracy must be between 0 and 1");
+        }
+        this.relativeAccuracy = relativeAccuracy;
+        this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+        this.logGamma = Math.log(gamma);
+        this.maxBuckets = maxBuckets;
+        this.positive = new Store(maxBuckets);
+        this.negative = new Store(maxBuckets);
+    }
+
+    /**
+     * Add a value. NaN values are ignored.
+     * @param value
+     */
+    public void add(double value) {
+        add(value, 1);
+    }
+
+    /**
+     * Add a value the given number of times. NaN values are ignored.
+     * @param value
+     * @param times
+     */
+    public void add(double value, long times) {
+        if(Double.isNaN(value) || times <= 0) {
+            return;
+        }
+        if(value > MinIndexableValue) {
+            positive.add(index(value), times);
+        }
+        else if(value < -MinIndexableValue) {
+            negative.add(index(-value), times);
+        }
+        else {
+            zeros += times;
+        }
+        count += times;
+        sum += value * times;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Add every value counted by another sketch with the same accuracy.
+     * @param other
+     */
+    public void merge(AppThwackQuantileSketch other) {
+        if(other.gamma != gamma) {
+            throw new IllegalArgumentException("sketches with different accuracy cannot be merged");
+        }
+        if(other.count == 0) {
+            return;
+        }
+        positive.merge(other.positive);
+        negative.merge(other.negative);
+        zeros += other.zeros;
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Returns the estimated value at the given quantile, or NaN if the sketch is empty.
+     * @param q quantile between 0 and 1, e.g. 0.99.
+     * @return
+     */
+    public double getQuantile(double q) {
+        if(q < 0 || q > 1) {
+            throw new IllegalArgumentException("quantile must be between 0 and 1");
+        }
+        if(count == 0) {
+            return Double.NaN;
+        }
+        if(q == 0) {
+            return min;
+        }
+        if(q == 1) {
+            return max;
+        }
+        long rank = (long)(q * (count - 1));
+        double estimate;
+        if(rank < negative.total) {
+            // Negative values, from the most negative upwards.
+            estimate = -value(negative.indexAtRank(negative.total - 1 - rank));
+        }
+        else if(rank < negative.total + zeros) {
+            estimate = 0;
+        }
+        else {
+            estimate = value(positive.indexAtRank(rank - negative.total - zeros));
+        }
+        return Math.max(min, Math.min(max, estimate));
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the smallest value added, or NaN if the sketch is empty.
+     */
+    public double getMin() {
+        return count == 0 ? Double.NaN : min;
+    }
+
+    /**
+     * Returns the largest value added, or NaN if the sketch is empty.
+     */
+    public double getMax() {
+        return count == 0 ? Double.NaN : max;
+    }
+
+    /**
+     * Returns the exact mean of the values added, or NaN if the sketch is empty.
+     */
+    public double getMean() {
+        return count == 0 ? Double.NaN : sum / count;
+    }
+
+    public double getRelativeAccuracy() {
+        return relativeAccuracy;
+    }
+
+    public int getMaxBuckets() {
+        return maxBuckets;
+    }
+
+    private int index(double value) {
+        return (int)Math.ceil(Math.log(value) / logGamma);
+    }
+
+    private double value(int index) {
+        return 2 * Math.pow(gamma, index) / (gamma + 1);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AppThwackQuantileSketch (%d values, p50: %s, p99: %s)", count, getQuantile(0.5), getQuantile(0.99));
+    }
+
+    /**
+     * Bucket counts for a contiguous range of indexes.
+     */
+    private static class Store {
+        private final int maxBuckets;
+        private long[] counts = new long[0];
+        private int offset;
+        private long total;
+        private boolean collapsed;
+
+        Store(int maxBuckets) {
+            this.maxBuckets = maxBuckets;
+        }
+
+        void add(int index, long times) {
+            if(counts.length == 0) {
+                counts = new long[Math.min(16, maxBuckets)];
+                offset = index - counts.length / 2;
+            }
+            // Once the lowest buckets have been collapsed, lower indexes count towards the lowest bucket.
+            if((index < offset && !collapsed) || index >= offset + counts.length) {
+                extend(index);
+            }
+            counts[Math.max(index, offset) - offset] += times;
+            total += times;
+        }
+
+        void merge(Store other) {
+            for(int i = 0; i < other.counts.length; i++) {
+                if(other.counts[i] != 0) {
+                    add(other.offset + i, other.counts[i]);
+                }
+            }
+        }
+
+        int indexAtRank(long rank) {
+            long seen = 0;
+            for(int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if(seen > rank) {
+                    return offset + i;
+                }
+            }
+            return offset + counts.length - 1;
+        }
+
+        /**
+         * Make room for the given index, collapsing the lowest buckets past the maximum.
+         */
+        private void extend(int index) {
+            // Span of the buckets in use, not of the array, which has room to grow either way.
+            int first = 0;
+            while (first < counts.length && counts[first] == 0) {
+                first++;
+            }
+            int last = counts.length - 1;
+            while (last > first && counts[last] == 0) {
+                last--;
+            }
+            int low = first == counts.length ? index : Math.min(offset + first, index);
+            int high = first == counts.length ? index : Math.max(offset + last, index);
+            int length;
+            if(high - low + 1 >= maxBuckets) {
+                length = maxBuckets;
+                low = high - maxBuckets + 1;
+                collapsed = true;
+            }
+            else {
+                length = Math.min(maxBuckets, Math.max(high - low + 1, counts.length * 2));
+                low -= (length - (high - low + 1)) / 2;
+            }
+            long[] resized = new long[length];
+            for(int i = 0; i < counts.length; i++) {
+                if(counts[i] != 0) {
+                    int target = Math.max(offset + i, low) - low;
+                    resized[Math.min(target, length - 1)] += counts[i];
+                }
+            }
+            counts = resized;
+            offset = low;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Store (%d buckets from %d: %s)", counts.length, offset, Arrays.toString(counts));
+        }
+    }
+}
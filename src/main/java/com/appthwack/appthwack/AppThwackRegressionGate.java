@@ -0,0 +1,272 @@
+package com.appthwack.appthwack;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.appthwack.appthwack.AppThwackPerformanceSeries.Metric;
+import com.appthwack.appthwack.AppThwackPerformanceSeries.Stat;
+import com.appthwack.appthwack.AppThwackResult.Device;
+
+
+/**
+ * Fails a build whose performance regressed compared with a baseline run.
+ *
+ * Every run is compared with the baseline device by device, matching devices on id and OS
+ * version through a hash index, and on the run-wide performance summary. A change is a
+ * regression when it goes in the worse direction of its metric (e.g. lower FPS, higher
+ * memory) by more than every threshold configured for that metric. Metrics without a
+ * threshold are compared and reported, but never fail the gate. FPS and frame draw time
+ * are only reported run-wide, so they are compared on the summary alone.
+ */
+public class AppThwackRegressionGate {
+
+    /**
+     * Outcome of the gate.
+     */
+    public enum Verdict {
+        Pass, Fail
+    }
+
+    private final Map<Metric, Double> absolute = new EnumMap<Metric, Double>(Metric.class);
+    private final Map<Metric, Double> relative = new EnumMap<Metric, Double>(Metric.class);
+    private Stat stat = Stat.Avg;
+
+    public AppThwackRegressionGate() {
+
+    }
+
+    /**
+     * Set the largest tolerated worsening of a metric, in the metric's units.
+     * @param metric
+     * @param threshold e.g. 5 for five frames per second; null to remove it.
+     */
+    public void setAbsoluteThreshold(Metric metric, Double threshold) {
+        put(absolute, metric, threshold);
+    }
+
+    public Double getAbsoluteThreshold(Metric metric) {
+        return absolute.get(metric);
+    }
+
+    /**
+     * Set the largest tolerated worsening of a metric, as a fraction of the baseline value.
+     * @param metric
+     * @param threshold e.g. 0.1 for ten percent; null to remove it.
+     */
+    public void setRelativeThreshold(Metric metric, Double threshold) {
+        put(relative, metric, threshold);
+    }
+
+    public Double getRelativeThreshold(Metric metric) {
+        return relative.get(metric);
+    }
+
+    /**
+     * Set the statistic of each device which is compared (the average by default).
+     * @param stat
+     */
+    public void setStat(Stat stat) {
+        this.stat = stat;
+    }
+
+    public Stat getStat() {
+        return stat;
+    }
+
+    /**
+     * Returns true if higher values of the metric are better, e.g. frames per second.
+     * @param metric
+     * @return
+     */
+    public static boolean isHigherBetter(Metric metric) {
+        return metric == Metric.Fps;
+    }
+
+    /**
+     * Compare one or more runs with a baseline run.
+     * @param baseline
+     * @param runs runs to check, e.g. the builds under test.
+     * @return
+     */
+    public Report evaluate(AppThwackResult baseline, AppThwackResult... runs) {
+        AppThwackPerformanceSeries[] series = new AppThwackPerformanceSeries[runs.length];
+        for(int r = 0; r < runs.length; r++) {
+            series[r] = runs[r].getPerformanceSeries();
+        }
+        return evaluate(baseline.getPerformanceSeries(), series);
+    }
+
+    /**
+     * Compare the performance data of one or more runs with that of a baseline run.
+     * @param baseline
+     * @param runs
+     * @return
+     */
+    public Report evaluate(AppThwackPerformanceSeries baseline, AppThwackPerformanceSeries... runs) {
+        Map<AppThwackDeviceKey, Integer> index = new HashMap<AppThwackDeviceKey, Integer>(baseline.getDeviceCount() * 2);
+        for(int d = 0; d < baseline.getDeviceCount(); d++) {
+            AppThwackDeviceKey key = AppThwackDeviceKey.of(baseline.getDevice(d));
+            if(key != null) {
+                index.putIfAbsent(key, d);
+            }
+        }
+
+        Metric[] metrics = Metric.values();
+        List<Comparison> comparisons = new ArrayList<Comparison>();
+        List<Device> unmatched = new ArrayList<Device>();
+        for(int r = 0; r < runs.length; r++) {
+            AppThwackPerformanceSeries run = runs[r];
+            for(Metric metric : metrics) {
+                compare(comparisons, r, null, metric, baseline.getSummary(metric, stat), run.getSummary(metric, stat));
+            }
+            for(int d = 0; d < run.getDeviceCount(); d++) {
+                AppThwackDeviceKey key = AppThwackDeviceKey.of(run.getDevice(d));
+                Integer b = key == null ? null : index.get(key);
+                if(b == null) {
+                    unmatched.add(run.getDevice(d));
+                    continue;
+                }
+                for(Metric metric : metrics) {
+                    compare(comparisons, r, run.getDevice(d), metric, baseline.get(metric, stat, b), run.get(metric, stat, d));
+                }
+            }
+        }
+        return new Report(stat, comparisons, unmatched);
+    }
+
+    private void compare(List<Comparison> comparisons, int run, Device device, Metric metric, double baseline, double value) {
+        if(Double.isNaN(baseline) || Double.isNaN(value)) {
+            return;
+        }
+        double worsening = isHigherBetter(metric) ? baseline - value : value - baseline;
+        Double a = absolute.get(metric);
+        Double r = relative.get(metric);
+        boolean regressed = (a != null || r != null) && worsening > 0
+                && (a == null || worsening > a)
+                && (r == null || baseline == 0 || worsening / Math.abs(baseline) > r);
+        comparisons.add(new Comparison(run, device, metric, baseline, value, regressed));
+    }
+
+    private static void put(Map<Metric, Double> thresholds, Metric metric, Double threshold) {
+        if(threshold == null) {
+            thresholds.remove(metric);
+        }
+        else if(threshold < 0 || Double.isNaN(threshold)) {
+            throw new IllegalArgumentException("threshold must not be negative");
+        }
+        else {
+            thresholds.put(metric, threshold);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AppThwackRegressionGate (%s, absolute: %s, relative: %s)", stat, absolute, relative);
+    }
+
+    /**
+     * One metric of one device (or of the run-wide summary) compared with the baseline.
+     */
+    public static class Comparison {
+        /** Index of the compared run, in the order given to the gate. */
+        public final int run;
+        /** Compared device, or null for the run-wide summary. */
+        public final Device device;
+        public final Metric metric;
+        public final double baseline;
+        public final double value;
+        public final boolean regressed;
+
+        Comparison(int run, Device device, Metric metric, double baseline, double value, boolean regressed) {
+            this.run = run;
+            this.device = device;
+            this.metric = metric;
+            this.baseline = baseline;
+            this.value = value;
+            this.regressed = regressed;
+        }
+
+        /**
+         * Returns the change from the baseline value.
+         */
+        public double getDelta() {
+            return value - baseline;
+        }
+
+        /**
+         * Returns the change as a fraction of the baseline value, or NaN if the baseline is zero.
+         */
+        public double getRelativeDelta() {
+            return baseline == 0 ? Double.NaN : (value - baseline) / Math.abs(baseline);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s%s run %d %s: %.2f -> %.2f (%+.1f%%)", regressed ? "REGRESSION " : "",
+                    device == null ? "summary" : device.toString(), run, metric, baseline, value, getRelativeDelta() * 100);
+        }
+    }
+
+    /**
+     * Verdict of the gate with every comparison made.
+     */
+    public static class Report {
+        private final Stat stat;
+        private final List<Comparison> comparisons;
+        private final List<Comparison> regressions = new ArrayList<Comparison>();
+        private final List<Device> unmatched;
+
+        Report(Stat stat, List<Comparison> comparisons, List<Device> unmatched) {
+            this.stat = stat;
+            this.comparisons = Collections.unmodifiableList(comparisons);
+            this.unmatched = Collections.unmodifiableList(unmatched);
+            for(Comparison c : comparisons) {
+                if(c.regressed) {
+                    regressions.add(c);
+                }
+            }
+        }
+
+        public Verdict getVerdict() {
+            return regressions.isEmpty() ? Verdict.Pass : Verdict.Fail;
+        }
+
+        public boolean isPassed() {
+            return regressions.isEmpty();
+        }
+
+        public Stat getStat() {
+            return stat;
+        }
+
+        public List<Comparison> getComparisons() {
+            return comparisons;
+        }
+
+        public List<Comparison> getRegressions() {
+            return Collections.unmodifiableList(regressions);
+        }
+
+        /**
+         * Returns the devices of compared runs which are not in the baseline run.
+         */
+        public List<Device> getUnmatchedDevices() {
+            return unmatched;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%s: %d regressions in %d comparisons (%s), %d unmatched devices",
+                    getVerdict(), regressions.size(), comparisons.size(), stat, unmatched.size()));
+            for(Comparison c : regressions) {
+                sb.append(System.getProperty("line.separator")).append("  ").append(c);
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.appthwack.appthwack;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+
+/**
+ * Collapses concurrent identical GET requests into a single HTTP call.
+ *
+ * The first caller for a key performs the request on its own thread; callers arriving
+ * while it is in flight wait for it and receive the same parsed result (or the same
+ * failure). With a freshness window, a successful result is also handed to callers
+ * arriving shortly after it completed, which absorbs bursts of polling. Shared results
+ * are handed to several callers at once and must be treated as read-only.
+ */
+class AppThwackRequestCoalescer {
+
+    private static final int SweepThreshold = 1024;
+
+    private final ConcurrentHashMap<String, Request> requests = new ConcurrentHashMap<String, Request>();
+    private volatile long freshness;
+
+    AppThwackRequestCoalescer() {
+
+    }
+
+    /**
+     * Return the result for the given request key, joining an identical request
+     * already in flight when there is one.
+     * @param key identifies the request, normally its path relative to the API root.
+     * @param fetch performs the request.
+     * @return parsed response.
+     */
+    @SuppressWarnings("unchecked")
+    <V> V get(String key, Callable<V> fetch) {
+        while (true) {
+            Request existing = requests.get(key);
+            if(existing != null) {
+                if(!existing.isDone() || existing.isFresh()) {
+                    return (V)existing.await();
+                }
+                requests.remove(key, existing);
+                continue;
+            }
+            Request request = new Request(fetch);
+            if(requests.putIfAbsent(key, request) != null) {
+                continue;
+            }
+            if(requests.size() > SweepThreshold) {
+                sweep();
+            }
+            request.run();
+            if(!request.succeeded || freshness <= 0) {
+                requests.remove(key, request);
+            }
+            return (V)request.await();
+        }
+    }
+
+    long getFreshness() {
+        return freshness;
+    }
+
+    /**
+     * Set how long a completed result keeps being served to new callers.
+     * @param ms freshness window in milliseconds; zero only shares requests which are in flight.
+     */
+    void setFreshness(long ms) {
+        this.freshness = ms;
+    }
+
+    /**
+     * Drop completed results which are no longer fresh.
+     */
+    private void sweep() {
+        Iterator<Map.Entry<String, Request>> it = requests.entrySet().iterator();
+        while (it.hasNext()) {
+            Request request = it.next().getValue();
+            if(request.isDone() && !request.isFresh()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * A single request shared by every caller which asked for it.
+     */
+    private class Request extends FutureTask<Object> {
+        volatile long completedAt;
+        volatile boolean succeeded;
+
+        @SuppressWarnings("unchecked")
+        Request(Callable<?> fetch) {
+            super((Callable<Object>)fetch);
+        }
+
+        @Override
+        protected void set(Object value) {
+            completedAt = System.currentTimeMillis();
+            succeeded = true;
+            super.set(value);
+        }
+
+        boolean isFresh() {
+            return succeeded && System.currentTimeMillis() - completedAt < freshness;
+        }
+
+        Object await() {
+            try {
+                return get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if(cause instanceof RuntimeException) {
+                    throw (RuntimeException)cause;
+                }
+                if(cause instanceof Error) {
+                    throw (Error)cause;
+                }
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+}
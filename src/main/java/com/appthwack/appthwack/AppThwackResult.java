@@ -1,8 +1,13 @@
 package com.appthwack.appthwack;
 
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.TimeZone;
 
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
@@ -11,12 +16,68 @@ import com.sun.jersey.api.client.WebResource;
 
 /**
  * Represents the entire result of an individual test run.
+ *
+ * Results fetched with {@link AppThwackRun#getResults(EnumSet)} only hold the requested
+ * sections. The first getter to need a missing section fetches the document once and keeps
+ * every section which was still missing. The public fields are null for sections which
+ * have not been loaded.
  * @author ahawker
  *
  */
-@JsonAutoDetect
+@JsonAutoDetect(getterVisibility=Visibility.NONE, isGetterVisibility=Visibility.NONE)
 @JsonIgnoreProperties(ignoreUnknown=true)
 public class AppThwackResult {
+
+    /**
+     * Top level sections of a result, by the name of their JSON field.
+     */
+    public enum Section {
+        Summary("summary"),
+        PassesByJob("passes_by_job"),
+        PassesByType("passes_by_type"),
+        PassesByDevice("passes_by_device"),
+        WarningsByJob("warnings_by_job"),
+        WarningsByType("warnings_by_type"),
+        WarningsByDevice("warnings_by_device"),
+        FailuresByJob("failures_by_job"),
+        FailuresByType("failures_by_type"),
+        FailuresByDevice("failures_by_device"),
+        PerformanceSummary("performance_summary"),
+        Performance("performance");
+
+        private final String field;
+
+        Section(String field) {
+            this.field = field;
+        }
+
+        /**
+         * Returns the JSON field this section is stored under.
+         */
+        public String getField() {
+            return field;
+        }
+
+        /**
+         * Returns true if this section is a list of {@link ResultContainer}.
+         */
+        public boolean isContainers() {
+            return this != Summary && this != PerformanceSummary && this != Performance;
+        }
+
+        /**
+         * Returns the section stored under the given JSON field, or null.
+         */
+        public static Section forField(String field) {
+            for(Section section : values()) {
+                if(section.field.equals(field)) {
+                    return section;
+                }
+            }
+            return null;
+        }
+    }
+
     @JsonProperty("passes_by_job")
     public List<ResultContainer> passesByJob;
     @JsonProperty("passes_by_type")
@@ -53,6 +114,12 @@ public class AppThwackResult {
     @JsonIgnore
     private String webUrl;
 
+    @JsonIgnore
+    private transient EnumSet<Section> loaded = EnumSet.allOf(Section.class);
+
+    @JsonIgnore
+    private transient AppThwackPerformanceSeries series;
+
     public AppThwackResult() {
 
     }
@@ -63,10 +130,8 @@ public class AppThwackResult {
      * @return
      */
     public Boolean isCompleted() {
-        return summary != null
-                && summary.status == "completed"
-                && summary.reportFile != null
-                && !summary.reportFile.isEmpty();
+        ResultSummary summary = getSummary();
+        return summary != null && summary.isCompleted();
     }
 
     /**
@@ -77,60 +142,214 @@ public class AppThwackResult {
         this.run = run;
         this.project = run.getProject();
         this.webUrl = run.getWebUrl();
-        if (passesByJob != null) {
-            for (ResultContainer result : passesByJob) {
-                result.setRun(run);
-            }
-        }
-        if (passesByType != null) {
-            for (ResultContainer result : passesByType) {
-                result.setRun(run);
-            }
+        for (Section section : Section.values()) {
+            attach(section);
         }
-        if (passesByDevice != null) {
-            for (ResultContainer result : passesByDevice) {
-                result.setRun(run);
-            }
+    }
+
+    /**
+     * Returns the sections which have been loaded so far.
+     * Results returned by {@link AppThwackRun#getResults()} have every section loaded.
+     * @return
+     */
+    public synchronized EnumSet<Section> getLoadedSections() {
+        return EnumSet.copyOf(loaded);
+    }
+
+    /**
+     * Returns the given list of result containers, loading the section on first access.
+     * @param section one of the nine passes/warnings/failures sections.
+     * @return
+     */
+    public List<ResultContainer> getContainers(Section section) {
+        if (!section.isContainers()) {
+            throw new IllegalArgumentException(String.format("%s does not hold result containers", section));
         }
-        if (warningsByJob != null) {
-            for (ResultContainer result : warningsByJob) {
-                result.setRun(run);
+        load(EnumSet.of(section));
+        return containers(section);
+    }
+
+    public ResultSummary getSummary() {
+        load(EnumSet.of(Section.Summary));
+        return summary;
+    }
+
+    public List<ResultContainer> getPassesByJob() {
+        return getContainers(Section.PassesByJob);
+    }
+
+    public List<ResultContainer> getPassesByType() {
+        return getContainers(Section.PassesByType);
+    }
+
+    public List<ResultContainer> getPassesByDevice() {
+        return getContainers(Section.PassesByDevice);
+    }
+
+    public List<ResultContainer> getWarningsByJob() {
+        return getContainers(Section.WarningsByJob);
+    }
+
+    public List<ResultContainer> getWarningsByType() {
+        return getContainers(Section.WarningsByType);
+    }
+
+    public List<ResultContainer> getWarningsByDevice() {
+        return getContainers(Section.WarningsByDevice);
+    }
+
+    public List<ResultContainer> getFailuresByJob() {
+        return getContainers(Section.FailuresByJob);
+    }
+
+    public List<ResultContainer> getFailuresByType() {
+        return getContainers(Section.FailuresByType);
+    }
+
+    public List<ResultContainer> getFailuresByDevice() {
+        return getContainers(Section.FailuresByDevice);
+    }
+
+    public PerformanceSummary getPerformanceSummary() {
+        load(EnumSet.of(Section.PerformanceSummary));
+        return performanceSummary;
+    }
+
+    public List<PerformanceResultContainer> getPerformance() {
+        load(EnumSet.of(Section.Performance));
+        return performance;
+    }
+
+    /**
+     * Returns the performance data parsed into numeric arrays, loading it on first access.
+     * @return
+     */
+    public AppThwackPerformanceSeries getPerformanceSeries() {
+        load(EnumSet.of(Section.Performance, Section.PerformanceSummary));
+        synchronized (this) {
+            if (series == null) {
+                series = AppThwackPerformanceSeries.of(performance, performanceSummary);
             }
+            return series;
         }
-        if (warningsByType != null) {
-            for (ResultContainer result : warningsByType) {
-                result.setRun(run);
+    }
+
+    /**
+     * Return URL to this result visible on the site.
+     * Note: The result overview page is the same URL as that of the run.
+     * @return
+     */
+    public String getWebUrl() {
+        return webUrl;
+    }
+
+    /**
+     * Mark this result as holding only the given sections; the rest load on first access.
+     */
+    synchronized void setLoadedSections(EnumSet<Section> sections) {
+        this.loaded = EnumSet.copyOf(sections);
+    }
+
+    /**
+     * Load every missing section from the run if any of the given sections is missing.
+     * The whole document is fetched either way, so one request fills in all of them.
+     * The request is made without holding this result's monitor; when two threads load
+     * at once, the sections bound first are kept. Results which do not belong to a run
+     * are never loaded.
+     */
+    void load(EnumSet<Section> sections) {
+        AppThwackRun owner;
+        EnumSet<Section> missing;
+        synchronized (this) {
+            if (run == null || loaded.containsAll(sections)) {
+                return;
             }
-        }
-        if (warningsByDevice != null) {
-            for (ResultContainer result : warningsByDevice) {
-                result.setRun(run);
+            owner = run;
+            missing = EnumSet.complementOf(loaded);
+        }
+        AppThwackResult fetched = new AppThwackResult();
+        owner.readSections(fetched, missing);
+        synchronized (this) {
+            for (Section section : missing) {
+                if (loaded.add(section)) {
+                    set(section, fetched.get(section));
+                    attach(section);
+                }
             }
         }
-        if (failuresByJob != null) {
-            for (ResultContainer result : failuresByJob) {
-                result.setRun(run);
-            }
+    }
+
+    /**
+     * Load every missing section with at most one request.
+     */
+    void loadAll() {
+        load(EnumSet.allOf(Section.class));
+    }
+
+    /**
+     * Returns the value of a section, or null if it is not held.
+     */
+    Object get(Section section) {
+        switch (section) {
+            case Summary: return summary;
+            case PerformanceSummary: return performanceSummary;
+            case Performance: return performance;
+            default: return containers(section);
         }
-        if (failuresByType != null) {
-            for (ResultContainer result : failuresByType) {
-                result.setRun(run);
-            }
+    }
+
+    /**
+     * Store the parsed value of a section.
+     */
+    @SuppressWarnings("unchecked")
+    void set(Section section, Object value) {
+        switch (section) {
+            case Summary: summary = (ResultSummary)value; break;
+            case PassesByJob: passesByJob = (List<ResultContainer>)value; break;
+            case PassesByType: passesByType = (List<ResultContainer>)value; break;
+            case PassesByDevice: passesByDevice = (List<ResultContainer>)value; break;
+            case WarningsByJob: warningsByJob = (List<ResultContainer>)value; break;
+            case WarningsByType: warningsByType = (List<ResultContainer>)value; break;
+            case WarningsByDevice: warningsByDevice = (List<ResultContainer>)value; break;
+            case FailuresByJob: failuresByJob = (List<ResultContainer>)value; break;
+            case FailuresByType: failuresByType = (List<ResultContainer>)value; break;
+            case FailuresByDevice: failuresByDevice = (List<ResultContainer>)value; break;
+            case PerformanceSummary: performanceSummary = (PerformanceSummary)value; break;
+            case Performance: performance = (List<PerformanceResultContainer>)value; break;
         }
-        if (failuresByDevice != null) {
-            for (ResultContainer result : failuresByDevice) {
-                result.setRun(run);
-            }
+    }
+
+    private List<ResultContainer> containers(Section section) {
+        switch (section) {
+            case PassesByJob: return passesByJob;
+            case PassesByType: return passesByType;
+            case PassesByDevice: return passesByDevice;
+            case WarningsByJob: return warningsByJob;
+            case WarningsByType: return warningsByType;
+            case WarningsByDevice: return warningsByDevice;
+            case FailuresByJob: return failuresByJob;
+            case FailuresByType: return failuresByType;
+            case FailuresByDevice: return failuresByDevice;
+            default: return null;
         }
     }
 
     /**
-     * Return URL to this result visible on the site.
-     * Note: The result overview page is the same URL as that of the run.
-     * @return
+     * Point the objects of a loaded section at the run.
      */
-    public String getWebUrl() {
-        return webUrl;
+    private void attach(Section section) {
+        if (run == null) {
+            return;
+        }
+        if (section == Section.Summary && summary != null) {
+            summary.setRun(run);
+        }
+        List<ResultContainer> containers = containers(section);
+        if (containers != null) {
+            for (ResultContainer result : containers) {
+                result.setRun(run);
+            }
+        }
     }
 
     /**
@@ -141,6 +360,12 @@ public class AppThwackResult {
     @JsonAutoDetect
     @JsonIgnoreProperties(ignoreUnknown=true)
     public static class ResultSummary {
+        private static final String[] StartTimeFormats = {
+            "yyyy-MM-dd HH:mm:ss",
+            "yyyy-MM-dd'T'HH:mm:ss",
+            "yyyy-MM-dd HH:mm",
+        };
+
         public Integer id;
         public String status;
 
@@ -190,6 +415,44 @@ public class AppThwackResult {
 
         }
 
+        /**
+         * Returns true if the run this summary describes has completed
+         * and its results are ready to download.
+         * @return
+         */
+        public boolean isCompleted() {
+            return status != null
+                    && status.equalsIgnoreCase("completed")
+                    && reportFile != null
+                    && !reportFile.isEmpty();
+        }
+
+        /**
+         * Returns when the run started according to AppThwack, in milliseconds since the
+         * epoch, or -1 if the start time is missing or cannot be parsed. Times are assumed
+         * to be UTC.
+         */
+        long startMillis() {
+            String start = startTime;
+            if(start == null || start.isEmpty()) {
+                return -1;
+            }
+            if(startDate != null && !startDate.isEmpty() && !start.contains(startDate)) {
+                start = startDate + " " + start;
+            }
+            for(String pattern : StartTimeFormats) {
+                SimpleDateFormat format = new SimpleDateFormat(pattern);
+                format.setTimeZone(TimeZone.getTimeZone("UTC"));
+                try {
+                    return format.parse(start).getTime();
+                }
+                catch (ParseException e) {
+                    // Try the next format.
+                }
+            }
+            return -1;
+        }
+
         /**
          * Return URL to this result visible on the site.
          * Note: This is just the result summary, so it points to the run/result overview page.
@@ -221,12 +484,8 @@ public class AppThwackResult {
         @JsonIgnore
         private transient AppThwackRun run;
 
-        @JsonIgnore
-        private String webUrl;
-
         public void setRun(AppThwackRun run) {
             this.run = run;
-            this.webUrl = String.format("%s/jobrun/%d", run.getWebUrl(), id);
         }
 
         public Result() {
@@ -239,7 +498,7 @@ public class AppThwackResult {
          * @return
          */
         public String getWebUrl() {
-            return webUrl;
+            return run == null ? null : String.format("%s/jobrun/%d", run.getWebUrl(), id);
         }
 
         @Override
@@ -264,23 +523,21 @@ public class AppThwackResult {
         @JsonIgnore
         private transient AppThwackRun run;
 
-        @JsonIgnore
-        private String webUrl;
-
         public ResultContainer() {
 
         }
 
         public void setRun(AppThwackRun run) {
             this.run = run;
-            this.webUrl = String.format("%s/device/%s", run.getWebUrl(), id);
-            for (Result result : results) {
-                result.setRun(run);
+            if (results != null) {
+                for (Result result : results) {
+                    result.setRun(run);
+                }
             }
         }
 
         public String getWebUrl() {
-            return webUrl;
+            return run == null ? null : String.format("%s/device/%s", run.getWebUrl(), id);
         }
 
         @Override
@@ -457,7 +714,7 @@ public class AppThwackResult {
 
     @Override
     public String toString() {
-        return summary.toString();
+        return summary != null ? summary.toString() : String.format("AppThwackResult (%s)", loaded);
     }
 }
 
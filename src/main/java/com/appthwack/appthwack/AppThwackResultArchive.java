@@ -0,0 +1,333 @@
+package com.appthwack.appthwack;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Enumeration;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+
+/**
+ * Reads the entries of a results archive on demand, without extracting it.
+ *
+ * Archives are laid out as {@code device/job/file}. Entries can be filtered by device,
+ * job and {@link EntryType}. An archive opened from a file supports any number of passes
+ * and opening entries in any order, and only the entries which are opened are
+ * decompressed. An archive read from a stream (e.g. straight from the HTTP connection
+ * with {@link AppThwackRun#openResultsArchive()}) can be iterated once, and each entry
+ * can only be read until the iterator moves past it; every entry it passes is inflated,
+ * read or not, since that is the only way to find the next one.
+ *
+ * <pre>
+ * AppThwackResultArchive archive = AppThwackResultArchive.open(path);
+ * for(AppThwackResultArchive.Entry entry : archive.entries("Nexus 5", null, EnumSet.of(EntryType.Log))) {
+ *     entry.copyTo(logs.resolve(entry.getFileName()));
+ * }
+ * archive.close();
+ * </pre>
+ */
+public class AppThwackResultArchive implements Closeable {
+
+    /**
+     * Kind of file stored in the archive, decided by its name.
+     */
+    public enum EntryType {
+        Log, Screenshot, Video, Report, Performance, Other
+    }
+
+    private final ZipFile zip;
+    private final ZipInputStream stream;
+    private boolean iterated;
+
+    private AppThwackResultArchive(ZipFile zip, ZipInputStream stream) {
+        this.zip = zip;
+        this.stream = stream;
+    }
+
+    /**
+     * Open a results archive which has been downloaded to disk.
+     * @param path path of the archive.
+     * @return archive which must be closed once done with.
+     * @throws AppThwackException if the file is not a readable zip archive.
+     */
+    public static AppThwackResultArchive open(Path path) throws AppThwackException {
+        try {
+            return new AppThwackResultArchive(new ZipFile(path.toFile()), null);
+        }
+        catch (IOException e) {
+            throw new AppThwackException(String.format("unable to open results archive %s: %s", path, e.getMessage()));
+        }
+    }
+
+    /**
+     * Read a results archive from a stream, decompressing entries as they go by.
+     * @param in stream of the archive contents; closed with the archive.
+     * @return archive which must be closed once done with.
+     */
+    public static AppThwackResultArchive read(InputStream in) {
+        return new AppThwackResultArchive(null, new ZipInputStream(in));
+    }
+
+    /**
+     * Returns every file in the archive.
+     * @return
+     */
+    public Iterable<Entry> entries() {
+        return entries(null, null, null);
+    }
+
+    /**
+     * Returns the files in the archive which match every given filter.
+     * @param device case-insensitive part of the device name, or null for every device.
+     * @param job case-insensitive job name, or null for every job.
+     * @param types entry types to include, or null for every type.
+     * @return
+     */
+    public Iterable<Entry> entries(final String device, final String job, final EnumSet<EntryType> types) {
+        return new Iterable<Entry>() {
+            public Iterator<Entry> iterator() {
+                return new FilteredIterator(device, job, types);
+            }
+        };
+    }
+
+    /**
+     * Returns the first file with the given path inside the archive, or null.
+     * @param name path of the entry, e.g. "Nexus 5/JUnit/logcat.txt".
+     * @return
+     */
+    public Entry getEntry(String name) {
+        if(zip != null) {
+            ZipEntry entry = zip.getEntry(name);
+            return entry == null || entry.isDirectory() ? null : new Entry(entry);
+        }
+        for(Entry entry : entries()) {
+            if(entry.getName().equals(name)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    public void close() throws IOException {
+        if(zip != null) {
+            zip.close();
+        }
+        if(stream != null) {
+            stream.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AppThwackResultArchive (%s)", zip != null ? zip.getName() : "stream");
+    }
+
+    /**
+     * Returns the type of an entry from its file name.
+     */
+    static EntryType typeOf(String fileName) {
+        String name = fileName.toLowerCase(Locale.ENGLISH);
+        if(name.contains("logcat") || name.endsWith(".log") || name.endsWith(".txt")) {
+            return EntryType.Log;
+        }
+        if(name.endsWith(".png") || name.endsWith(".jpg") || name.endsWith(".jpeg")) {
+            return EntryType.Screenshot;
+        }
+        if(name.endsWith(".mp4") || name.endsWith(".mov") || name.endsWith(".webm")) {
+            return EntryType.Video;
+        }
+        if(name.endsWith(".xml") || name.endsWith(".html")) {
+            return EntryType.Report;
+        }
+        if(name.endsWith(".json") || name.endsWith(".csv")) {
+            return EntryType.Performance;
+        }
+        return EntryType.Other;
+    }
+
+    /**
+     * A single file in the archive.
+     */
+    public class Entry {
+        private final ZipEntry entry;
+        private final String device;
+        private final String job;
+        private final String fileName;
+        private final EntryType type;
+
+        Entry(ZipEntry entry) {
+            this.entry = entry;
+            String[] segments = entry.getName().split("/");
+            this.fileName = segments[segments.length - 1];
+            this.device = segments.length > 1 ? segments[0] : null;
+            this.job = segments.length > 2 ? segments[1] : null;
+            this.type = typeOf(fileName);
+        }
+
+        /**
+         * Returns the full path of the entry inside the archive.
+         */
+        public String getName() {
+            return entry.getName();
+        }
+
+        /**
+         * Returns the device directory the entry belongs to, or null for top level files.
+         */
+        public String getDevice() {
+            return device;
+        }
+
+        /**
+         * Returns the job directory the entry belongs to, or null.
+         */
+        public String getJob() {
+            return job;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public EntryType getType() {
+            return type;
+        }
+
+        /**
+         * Returns the uncompressed size of the entry, or -1 if the archive does not record it up front.
+         */
+        public long getSize() {
+            return entry.getSize();
+        }
+
+        /**
+         * Open the decompressed contents of the entry.
+         * For streamed archives, the contents can only be read until the next entry is requested.
+         * @return stream which should be closed once done with.
+         */
+        public InputStream open() throws IOException {
+            if(zip != null) {
+                return zip.getInputStream(entry);
+            }
+            // Closing an entry must not close the archive stream it is read from.
+            return new FilterInputStream(stream) {
+                @Override
+                public void close() throws IOException {
+                    stream.closeEntry();
+                }
+            };
+        }
+
+        /**
+         * Write the decompressed contents of the entry to the given file, replacing it if it exists.
+         * @param destination path of the file to write.
+         * @return number of bytes written.
+         */
+        public long copyTo(Path destination) throws IOException {
+            InputStream in = open();
+            try {
+                return Files.copy(in, destination, StandardCopyOption.REPLACE_EXISTING);
+            }
+            finally {
+                in.close();
+            }
+        }
+
+        boolean matches(String deviceFilter, String jobFilter, EnumSet<EntryType> types) {
+            if(types != null && !types.contains(type)) {
+                return false;
+            }
+            if(deviceFilter != null && (device == null
+                    || !device.toLowerCase(Locale.ENGLISH).contains(deviceFilter.toLowerCase(Locale.ENGLISH)))) {
+                return false;
+            }
+            return jobFilter == null || jobFilter.equalsIgnoreCase(job);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("AppThwackResultArchive.Entry (%s, %s)", entry.getName(), type);
+        }
+    }
+
+    /**
+     * Walks the zip entries lazily, skipping directories and entries which do not match.
+     */
+    private class FilteredIterator implements Iterator<Entry> {
+        private final String device;
+        private final String job;
+        private final EnumSet<EntryType> types;
+        private final Enumeration<? extends ZipEntry> entries;
+        private Entry next;
+
+        FilteredIterator(String device, String job, EnumSet<EntryType> types) {
+            this.device = device;
+            this.job = job;
+            this.types = types;
+            if(zip != null) {
+                entries = zip.entries();
+            }
+            else {
+                if(iterated) {
+                    throw new IllegalStateException("a streamed results archive can only be iterated once");
+                }
+                iterated = true;
+                entries = null;
+            }
+        }
+
+        public boolean hasNext() {
+            while (next == null) {
+                ZipEntry entry = advance();
+                if(entry == null) {
+                    return false;
+                }
+                if(entry.isDirectory()) {
+                    continue;
+                }
+                Entry candidate = new Entry(entry);
+                if(candidate.matches(device, job, types)) {
+                    next = candidate;
+                }
+            }
+            return true;
+        }
+
+        public Entry next() {
+            if(!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Entry entry = next;
+            next = null;
+            return entry;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private ZipEntry advance() {
+            if(entries != null) {
+                return entries.hasMoreElements() ? entries.nextElement() : null;
+            }
+            try {
+                return stream.getNextEntry();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(String.format("unable to read results archive: %s", e.getMessage()), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.appthwack.appthwack;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+
+/**
+ * Bounded cache of run results, shared by every run of an {@link AppThwackApi}.
+ *
+ * Results are held as binary snapshots (see {@link AppThwackResultCodec}), so every hit
+ * decodes a private copy the caller is free to modify. Entries are weighed by the size of
+ * their snapshot and the least recently used are evicted once the total exceeds the
+ * capacity. Each entry remembers the validators (ETag, Last-Modified) it was served with
+ * and whether the run had completed; completed runs never change, so they are served
+ * without asking AppThwack again.
+ */
+class AppThwackResultCache {
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long capacity;
+    private long weight;
+
+    /**
+     * Create a new cache holding up to the given number of bytes of snapshots.
+     * @param capacity capacity in bytes; zero or less disables caching.
+     */
+    AppThwackResultCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns the cached result of the given run, or null.
+     */
+    synchronized Entry get(int projectId, int runId) {
+        return entries.get(key(projectId, runId));
+    }
+
+    /**
+     * Cache the result of the given run, replacing any earlier entry. Snapshots larger
+     * than the whole cache are not kept.
+     */
+    synchronized void put(int projectId, int runId, Entry entry) {
+        String key = key(projectId, runId);
+        Entry previous = entries.remove(key);
+        if(previous != null) {
+            weight -= previous.getWeight();
+        }
+        if(entry.getWeight() > capacity) {
+            return;
+        }
+        entries.put(key, entry);
+        weight += entry.getWeight();
+        evict();
+    }
+
+    /**
+     * Drop the cached result of the given run.
+     */
+    synchronized void invalidate(int projectId, int runId) {
+        Entry previous = entries.remove(key(projectId, runId));
+        if(previous != null) {
+            weight -= previous.getWeight();
+        }
+    }
+
+    /**
+     * Drop every cached result.
+     */
+    synchronized void invalidate() {
+        entries.clear();
+        weight = 0;
+    }
+
+    synchronized long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Set the number of bytes of snapshots the cache may hold, evicting entries if needed.
+     * @param capacity capacity in bytes; zero or less disables caching.
+     */
+    synchronized void setCapacity(long capacity) {
+        this.capacity = capacity;
+        evict();
+    }
+
+    /**
+     * Returns the number of bytes of snapshots held.
+     */
+    synchronized long getWeight() {
+        return weight;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    boolean isEnabled() {
+        return getCapacity() > 0;
+    }
+
+    private void evict() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (weight > capacity && it.hasNext()) {
+            weight -= it.next().getWeight();
+            it.remove();
+        }
+    }
+
+    private static String key(int projectId, int runId) {
+        return projectId + "/" + runId;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("AppThwackResultCache (%d runs, %d of %d bytes)", entries.size(), weight, capacity);
+    }
+
+    /**
+     * Snapshot of a run's result with the validators it was served with.
+     */
+    static class Entry {
+        final byte[] snapshot;
+        final String etag;
+        final String lastModified;
+        final boolean completed;
+
+        Entry(byte[] snapshot, String etag, String lastModified, boolean completed) {
+            this.snapshot = snapshot;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.completed = completed;
+        }
+
+        /**
+         * Returns true if the entry can be revalidated with a conditional request.
+         */
+        boolean hasValidators() {
+            return etag != null || lastModified != null;
+        }
+
+        long getWeight() {
+            return snapshot.length;
+        }
+    }
+}
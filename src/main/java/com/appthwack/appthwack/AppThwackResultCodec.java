@@ -0,0 +1,572 @@
+package com.appthwack.appthwack;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.appthwack.appthwack.AppThwackResult.Device;
+import com.appthwack.appthwack.AppThwackResult.PerformanceEntry;
+import com.appthwack.appthwack.AppThwackResult.PerformanceResult;
+import com.appthwack.appthwack.AppThwackResult.PerformanceResultContainer;
+import com.appthwack.appthwack.AppThwackResult.PerformanceResultSummary;
+import com.appthwack.appthwack.AppThwackResult.PerformanceSummary;
+import com.appthwack.appthwack.AppThwackResult.Result;
+import com.appthwack.appthwack.AppThwackResult.ResultContainer;
+import com.appthwack.appthwack.AppThwackResult.ResultSummary;
+import com.appthwack.appthwack.AppThwackResult.Section;
+
+
+/**
+ * Versioned binary form of an {@link AppThwackResult}, for caching results on disk.
+ *
+ * A snapshot starts with a magic number and format version, followed by a table of every
+ * distinct string and a table of every distinct test result; the sections then refer to
+ * both by index. Numbers are written as variable-length integers, so ids and indexes take
+ * one or two bytes. Decoding reads straight from a {@link ByteBuffer}, which may be a
+ * memory-mapped file, without copying it or building intermediate objects, and returns
+ * a result which shares one instance of each string and each test result.
+ */
+public class AppThwackResultCodec {
+
+    public static final int Version = 1;
+
+    private static final int Magic = 0x41545253;
+    private static final Charset Utf8 = Charset.forName("UTF-8");
+
+    private AppThwackResultCodec() {
+
+    }
+
+    /**
+     * Encode a result. Sections a lazily loaded result has not read yet are loaded together first.
+     * @param result
+     * @return the snapshot.
+     */
+    public static byte[] encode(AppThwackResult result) {
+        return new Writer().write(result);
+    }
+
+    /**
+     * Decode a snapshot.
+     * @param snapshot
+     * @return
+     * @throws AppThwackException if the snapshot is corrupt or of an unsupported version.
+     */
+    public static AppThwackResult decode(byte[] snapshot) throws AppThwackException {
+        return decode(ByteBuffer.wrap(snapshot));
+    }
+
+    /**
+     * Decode a snapshot from the remaining bytes of a buffer. The buffer's position is not changed.
+     * @param snapshot
+     * @return
+     * @throws AppThwackException if the snapshot is corrupt or of an unsupported version.
+     */
+    public static AppThwackResult decode(ByteBuffer snapshot) throws AppThwackException {
+        try {
+            return new Reader(snapshot.duplicate()).read();
+        }
+        catch (BufferUnderflowException e) {
+            throw new AppThwackException("result snapshot is truncated");
+        }
+        catch (IndexOutOfBoundsException | NegativeArraySizeException | IllegalArgumentException e) {
+            throw new AppThwackException("result snapshot is corrupt");
+        }
+        catch (OutOfMemoryError e) {
+            throw new AppThwackException("result snapshot is corrupt or too large to decode");
+        }
+    }
+
+    /**
+     * Builds the body while collecting the string and result tables it refers to.
+     */
+    private static class Writer {
+        private final Map<String, Integer> strings = new HashMap<String, Integer>();
+        private final List<String> stringTable = new ArrayList<String>();
+        private final Map<Integer, Integer> resultsById = new HashMap<Integer, Integer>();
+        private final List<Result> resultTable = new ArrayList<Result>();
+        private final Output body = new Output();
+
+        byte[] write(AppThwackResult result) {
+            result.loadAll();
+            writeSummary(result.getSummary());
+            for(Section section : Section.values()) {
+                if(section.isContainers()) {
+                    writeContainers(result.getContainers(section));
+                }
+            }
+            writePerformanceSummary(result.getPerformanceSummary());
+            List<PerformanceResultContainer> performance = result.getPerformance();
+            body.writeCount(performance);
+            if(performance != null) {
+                for(PerformanceResultContainer p : performance) {
+                    writeDevice(p.device);
+                    writePerformance(p.threads);
+                    writePerformance(p.cpu);
+                    writePerformance(p.memory);
+                }
+            }
+
+            // The result table refers to strings too, so it is written before the string table.
+            Output results = new Output();
+            results.writeVarInt(resultTable.size());
+            for(Result r : resultTable) {
+                results.writeInteger(r.id);
+                results.writeVarInt(string(r.name));
+                results.writeVarInt(string(r.message));
+                results.writeVarInt(string(r.description));
+            }
+
+            Output out = new Output();
+            out.writeInt(Magic);
+            out.writeVarInt(Version);
+            out.writeVarInt(stringTable.size());
+            for(String s : stringTable) {
+                byte[] bytes = s.getBytes(Utf8);
+                out.writeVarInt(bytes.length);
+                out.write(bytes, 0, bytes.length);
+            }
+            results.writeTo(out);
+            body.writeTo(out);
+            return out.toByteArray();
+        }
+
+        private void writeSummary(ResultSummary summary) {
+            body.write(summary == null ? 0 : 1);
+            if(summary == null) {
+                return;
+            }
+            body.writeInteger(summary.id);
+            body.writeVarInt(string(summary.status));
+            body.writeInteger(summary.count);
+            body.writeInteger(summary.completed);
+            body.writeVarInt(string(summary.name));
+            body.writeVarInt(string(summary.initiator));
+            body.writeVarInt(string(summary.result));
+            body.writeInteger(summary.failures);
+            body.writeInteger(summary.errors);
+            body.writeInteger(summary.passes);
+            body.writeInteger(summary.warnings);
+            body.writeVarInt(string(summary.startTime));
+            body.writeVarInt(string(summary.startDate));
+            body.writeVarInt(string(summary.reportFile));
+            body.writeVarInt(string(summary.publicUrl));
+            body.writeInteger(summary.minutesUsed);
+        }
+
+        private void writeContainers(List<ResultContainer> containers) {
+            body.writeCount(containers);
+            if(containers == null) {
+                return;
+            }
+            for(ResultContainer container : containers) {
+                body.writeVarInt(string(container.id));
+                body.writeVarInt(string(container.name));
+                body.writeVarInt(string(container.description));
+                body.writeCount(container.results);
+                if(container.results != null) {
+                    for(Result r : container.results) {
+                        body.writeVarInt(result(r));
+                    }
+                }
+            }
+        }
+
+        private void writePerformanceSummary(PerformanceSummary summary) {
+            body.write(summary == null ? 0 : 1);
+            if(summary == null) {
+                return;
+            }
+            PerformanceResultSummary[] values = {
+                summary.cpuMin, summary.cpuMax, summary.cpuAvg,
+                summary.threadsMin, summary.threadsMax, summary.threadsAvg,
+                summary.memoryMin, summary.memoryMax, summary.memoryAvg,
+                summary.drawMin, summary.drawMax, summary.drawAvg,
+                summary.fpsMin, summary.fpsMax, summary.fpsAvg
+            };
+            for(PerformanceResultSummary value : values) {
+                body.write(value == null ? 0 : 1);
+                if(value != null) {
+                    writeDevice(value.device);
+                    body.writeVarInt(string(value.value));
+                }
+            }
+        }
+
+        private void writePerformance(PerformanceResult result) {
+            body.write(result == null ? 0 : 1);
+            if(result != null) {
+                writeEntry(result.min);
+                writeEntry(result.max);
+                writeEntry(result.avg);
+            }
+        }
+
+        private void writeEntry(PerformanceEntry entry) {
+            body.write(entry == null ? 0 : 1);
+            if(entry != null) {
+                body.writeVarInt(string(entry.name));
+                body.writeVarInt(string(entry.value));
+                body.writeVarInt(string(entry.timestamp));
+            }
+        }
+
+        private void writeDevice(Device device) {
+            body.write(device == null ? 0 : 1);
+            if(device != null) {
+                body.writeInteger(device.id);
+                body.writeVarInt(string(device.name));
+                body.writeVarInt(string(device.osVersion));
+            }
+        }
+
+        /**
+         * Returns the string's reference: 0 for null, otherwise its table index plus one.
+         */
+        private int string(String s) {
+            if(s == null) {
+                return 0;
+            }
+            Integer index = strings.get(s);
+            if(index == null) {
+                index = stringTable.size();
+                strings.put(s, index);
+                stringTable.add(s);
+            }
+            return index + 1;
+        }
+
+        /**
+         * Returns the result's index in the result table. A test is listed under several
+         * groupings, but stored once as long as every listing has the same contents.
+         */
+        private int result(Result r) {
+            if(r.id != null) {
+                Integer index = resultsById.get(r.id);
+                if(index != null && same(resultTable.get(index), r)) {
+                    return index;
+                }
+            }
+            int index = resultTable.size();
+            resultTable.add(r);
+            if(r.id != null) {
+                resultsById.putIfAbsent(r.id, index);
+            }
+            return index;
+        }
+
+        private static boolean same(Result a, Result b) {
+            return equal(a.name, b.name) && equal(a.message, b.message) && equal(a.description, b.description);
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    /**
+     * Growable byte array with variable-length integer encoding.
+     */
+    private static class Output extends ByteArrayOutputStream {
+        Output() {
+            super(4096);
+        }
+
+        void writeInt(int value) {
+            write(value >>> 24);
+            write(value >>> 16);
+            write(value >>> 8);
+            write(value);
+        }
+
+        /**
+         * Unsigned LEB128: seven bits per byte, high bit set on every byte but the last.
+         */
+        void writeVarInt(int value) {
+            while ((value & ~0x7F) != 0) {
+                write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+        }
+
+        /**
+         * A nullable integer: 0 for null, otherwise the zigzag encoding of the value plus one.
+         */
+        void writeInteger(Integer value) {
+            if(value == null) {
+                write(0);
+                return;
+            }
+            long zigzag = ((long)value << 1) ^ ((long)value >> 63);
+            zigzag++;
+            while ((zigzag & ~0x7FL) != 0) {
+                write((int)((zigzag & 0x7F) | 0x80));
+                zigzag >>>= 7;
+            }
+            write((int)zigzag);
+        }
+
+        /**
+         * A nullable list size: 0 for null, otherwise the size plus one.
+         */
+        void writeCount(List<?> list) {
+            writeVarInt(list == null ? 0 : list.size() + 1);
+        }
+
+        void writeTo(Output out) {
+            out.write(buf, 0, count);
+        }
+    }
+
+    /**
+     * Decodes a snapshot with relative reads from a buffer.
+     */
+    private static class Reader {
+        private final ByteBuffer in;
+        private String[] strings;
+        private Result[] results;
+
+        Reader(ByteBuffer in) {
+            this.in = in;
+        }
+
+        AppThwackResult read() throws AppThwackException {
+            if(in.remaining() < 4 || in.getInt() != Magic) {
+                throw new AppThwackException("not a result snapshot");
+            }
+            int version = readVarInt();
+            if(version != Version) {
+                throw new AppThwackException(String.format("unsupported result snapshot version %d", version));
+            }
+            strings = new String[readCount()];
+            byte[] scratch = new byte[64];
+            for(int i = 0; i < strings.length; i++) {
+                int length = readCount();
+                if(in.hasArray()) {
+                    strings[i] = new String(in.array(), in.arrayOffset() + in.position(), length, Utf8);
+                    in.position(in.position() + length);
+                }
+                else {
+                    if(length > scratch.length) {
+                        scratch = new byte[Math.max(length, scratch.length * 2)];
+                    }
+                    in.get(scratch, 0, length);
+                    strings[i] = new String(scratch, 0, length, Utf8);
+                }
+            }
+            results = new Result[readCount()];
+            for(int i = 0; i < results.length; i++) {
+                Result r = new Result();
+                r.id = readInteger();
+                r.name = readString();
+                r.message = readString();
+                r.description = readString();
+                results[i] = r;
+            }
+
+            AppThwackResult result = new AppThwackResult();
+            result.summary = readSummary();
+            for(Section section : Section.values()) {
+                if(section.isContainers()) {
+                    result.set(section, readContainers());
+                }
+            }
+            result.performanceSummary = readPerformanceSummary();
+            int count = readNullableCount();
+            if(count > 0) {
+                List<PerformanceResultContainer> performance = new ArrayList<PerformanceResultContainer>(count - 1);
+                for(int i = 1; i < count; i++) {
+                    PerformanceResultContainer p = new PerformanceResultContainer();
+                    p.device = readDevice();
+                    p.threads = readPerformance();
+                    p.cpu = readPerformance();
+                    p.memory = readPerformance();
+                    performance.add(p);
+                }
+                result.performance = performance;
+            }
+            return result;
+        }
+
+        private ResultSummary readSummary() {
+            if(in.get() == 0) {
+                return null;
+            }
+            ResultSummary summary = new ResultSummary();
+            summary.id = readInteger();
+            summary.status = readString();
+            summary.count = readInteger();
+            summary.completed = readInteger();
+            summary.name = readString();
+            summary.initiator = readString();
+            summary.result = readString();
+            summary.failures = readInteger();
+            summary.errors = readInteger();
+            summary.passes = readInteger();
+            summary.warnings = readInteger();
+            summary.startTime = readString();
+            summary.startDate = readString();
+            summary.reportFile = readString();
+            summary.publicUrl = readString();
+            summary.minutesUsed = readInteger();
+            return summary;
+        }
+
+        private List<ResultContainer> readContainers() {
+            int count = readNullableCount();
+            if(count == 0) {
+                return null;
+            }
+            List<ResultContainer> containers = new ArrayList<ResultContainer>(count - 1);
+            for(int i = 1; i < count; i++) {
+                ResultContainer container = new ResultContainer();
+                container.id = readString();
+                container.name = readString();
+                container.description = readString();
+                int size = readNullableCount();
+                if(size > 0) {
+                    container.results = new ArrayList<Result>(size - 1);
+                    for(int k = 1; k < size; k++) {
+                        container.results.add(results[readVarInt()]);
+                    }
+                }
+                containers.add(container);
+            }
+            return containers;
+        }
+
+        private PerformanceSummary readPerformanceSummary() {
+            if(in.get() == 0) {
+                return null;
+            }
+            PerformanceSummary summary = new PerformanceSummary();
+            summary.cpuMin = readPerformanceResultSummary();
+            summary.cpuMax = readPerformanceResultSummary();
+            summary.cpuAvg = readPerformanceResultSummary();
+            summary.threadsMin = readPerformanceResultSummary();
+            summary.threadsMax = readPerformanceResultSummary();
+            summary.threadsAvg = readPerformanceResultSummary();
+            summary.memoryMin = readPerformanceResultSummary();
+            summary.memoryMax = readPerformanceResultSummary();
+            summary.memoryAvg = readPerformanceResultSummary();
+            summary.drawMin = readPerformanceResultSummary();
+            summary.drawMax = readPerformanceResultSummary();
+            summary.drawAvg = readPerformanceResultSummary();
+            summary.fpsMin = readPerformanceResultSummary();
+            summary.fpsMax = readPerformanceResultSummary();
+            summary.fpsAvg = readPerformanceResultSummary();
+            return summary;
+        }
+
+        private PerformanceResultSummary readPerformanceResultSummary() {
+            if(in.get() == 0) {
+                return null;
+            }
+            PerformanceResultSummary summary = new PerformanceResultSummary();
+            summary.device = readDevice();
+            summary.value = readString();
+            return summary;
+        }
+
+        private PerformanceResult readPerformance() {
+            if(in.get() == 0) {
+                return null;
+            }
+            PerformanceResult result = new PerformanceResult();
+            result.min = readEntry();
+            result.max = readEntry();
+            result.avg = readEntry();
+            return result;
+        }
+
+        private PerformanceEntry readEntry() {
+            if(in.get() == 0) {
+                return null;
+            }
+            PerformanceEntry entry = new PerformanceEntry();
+            entry.name = readString();
+            entry.value = readString();
+            entry.timestamp = readString();
+            return entry;
+        }
+
+        private Device readDevice() {
+            if(in.get() == 0) {
+                return null;
+            }
+            Device device = new Device();
+            device.id = readInteger();
+            device.name = readString();
+            device.osVersion = readString();
+            return device;
+        }
+
+        private String readString() {
+            int index = readVarInt();
+            return index == 0 ? null : strings[index - 1];
+        }
+
+        /**
+         * Read a table size or string length. Every element takes at least one byte, so a
+         * count larger than what is left of the snapshot is corrupt and is rejected before
+         * anything is allocated for it.
+         */
+        private int readCount() {
+            int count = readVarInt();
+            if(count < 0 || count > in.remaining()) {
+                throw new IndexOutOfBoundsException(String.format("count %d exceeds the snapshot", count));
+            }
+            return count;
+        }
+
+        /**
+         * Read a nullable list size written by {@link Output#writeCount(List)}.
+         */
+        private int readNullableCount() {
+            int count = readVarInt();
+            if(count < 0 || count - 1 > in.remaining()) {
+                throw new IndexOutOfBoundsException(String.format("count %d exceeds the snapshot", count));
+            }
+            return count;
+        }
+
+        private int readVarInt() {
+            int value = 0;
+            for(int shift = 0; ; shift += 7) {
+                byte b = in.get();
+                value |= (b & 0x7F) << shift;
+                if(b >= 0) {
+                    return value;
+                }
+                if(shift > 28) {
+                    throw new IndexOutOfBoundsException("varint is too long");
+                }
+            }
+        }
+
+        private Integer readInteger() {
+            long value = 0;
+            for(int shift = 0; ; shift += 7) {
+                byte b = in.get();
+                value |= (long)(b & 0x7F) << shift;
+                if(b >= 0) {
+                    break;
+                }
+                if(shift > 35) {
+                    throw new IndexOutOfBoundsException("varint is too long");
+                }
+            }
+            if(value == 0) {
+                return null;
+            }
+            value--;
+            return (int)((value >>> 1) ^ -(value & 1));
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package com.appthwack.appthwack;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.appthwack.appthwack.AppThwackCompactResult.Grouping;
+import com.appthwack.appthwack.AppThwackCompactResult.Outcome;
+
+
+/**
+ * Differences between the test outcomes of two runs, e.g. the last green run and a failing one.
+ *
+ * A test is identified by its name, the device it ran on (by device id) and its job (by
+ * name, as job ids are specific to a run). Each run is indexed once in a hash map keyed by
+ * that identity, so the diff takes time linear in the number of results. A test reported
+ * more than once under the same identity counts with its worst outcome.
+ */
+public class AppThwackResultDiff {
+
+    /**
+     * How a test differs between the two runs.
+     */
+    public enum Change {
+        Added, Removed, Changed
+    }
+
+    private final List<Entry> entries;
+    private final List<Spread> spreads;
+
+    private AppThwackResultDiff(List<Entry> entries, List<Spread> spreads) {
+        this.entries = Collections.unmodifiableList(entries);
+        this.spreads = Collections.unmodifiableList(spreads);
+    }
+
+    /**
+     * Compare two runs.
+     * @param before earlier run, e.g. the last green one.
+     * @param after later run.
+     * @return
+     */
+    public static AppThwackResultDiff of(AppThwackResult before, AppThwackResult after) {
+        return of(AppThwackCompactResult.of(before), AppThwackCompactResult.of(after));
+    }
+
+    /**
+     * Compare two runs.
+     * @param before earlier run, e.g. the last green one.
+     * @param after later run.
+     * @return
+     */
+    public static AppThwackResultDiff of(AppThwackCompactResult before, AppThwackCompactResult after) {
+        Map<TestKey, Outcome> old = index(before);
+        Map<TestKey, Outcome> current = index(after);
+
+        List<Entry> entries = new ArrayList<Entry>();
+        Map<String, int[]> failingDevices = new HashMap<String, int[]>();
+        for(Map.Entry<TestKey, Outcome> e : current.entrySet()) {
+            Outcome was = old.get(e.getKey());
+            if(was == null) {
+                entries.add(new Entry(e.getKey(), null, e.getValue()));
+            }
+            else if(was != e.getValue()) {
+                entries.add(new Entry(e.getKey(), was, e.getValue()));
+            }
+            if(e.getValue() == Outcome.Failure) {
+                count(failingDevices, e.getKey().name)[1]++;
+            }
+        }
+        for(Map.Entry<TestKey, Outcome> e : old.entrySet()) {
+            if(!current.containsKey(e.getKey())) {
+                entries.add(new Entry(e.getKey(), e.getValue(), null));
+            }
+            if(e.getValue() == Outcome.Failure) {
+                count(failingDevices, e.getKey().name)[0]++;
+            }
+        }
+
+        List<Spread> spreads = new ArrayList<Spread>();
+        for(Map.Entry<String, int[]> e : failingDevices.entrySet()) {
+            int[] counts = e.getValue();
+            if(counts[1] > counts[0]) {
+                spreads.add(new Spread(e.getKey(), counts[0], counts[1]));
+            }
+        }
+        Collections.sort(spreads, (a, b) -> Integer.compare(b.after - b.before, a.after - a.before));
+        return new AppThwackResultDiff(entries, spreads);
+    }
+
+    /**
+     * Returns every test which was added, removed or changed outcome.
+     * @return
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public List<Entry> getAdded() {
+        return filter(Change.Added, null);
+    }
+
+    public List<Entry> getRemoved() {
+        return filter(Change.Removed, null);
+    }
+
+    public List<Entry> getChanged() {
+        return filter(Change.Changed, null);
+    }
+
+    /**
+     * Returns the tests which fail now but did not before, including added tests which fail.
+     * @return
+     */
+    public List<Entry> getNewFailures() {
+        List<Entry> list = new ArrayList<Entry>();
+        for(Entry e : entries) {
+            if(e.after == Outcome.Failure) {
+                list.add(e);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Returns the tests which failed before and now pass or warn.
+     * @return
+     */
+    public List<Entry> getFixed() {
+        return filter(Change.Changed, Outcome.Failure);
+    }
+
+    /**
+     * Returns the tests which now fail on more devices than before, the largest increase first.
+     * @return
+     */
+    public List<Spread> getSpreadingFailures() {
+        return spreads;
+    }
+
+    /**
+     * Returns true if no test was added, removed or changed outcome.
+     * @return
+     */
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    private List<Entry> filter(Change change, Outcome before) {
+        List<Entry> list = new ArrayList<Entry>();
+        for(Entry e : entries) {
+            if(e.getChange() == change && (before == null || e.before == before)) {
+                list.add(e);
+            }
+        }
+        return list;
+    }
+
+    private static int[] count(Map<String, int[]> counts, String name) {
+        int[] c = counts.get(name);
+        if(c == null) {
+            c = new int[2];
+            counts.put(name, c);
+        }
+        return c;
+    }
+
+    /**
+     * Index the outcome of every test of a run by its identity.
+     */
+    private static Map<TestKey, Outcome> index(AppThwackCompactResult result) {
+        int size = result.size();
+        String[] devices = result.getGroupLabels(Grouping.Device);
+        String[] jobs = result.getGroupLabels(Grouping.Job);
+        Map<TestKey, Outcome> index = new HashMap<TestKey, Outcome>(size * 2);
+        for(int i = 0; i < size; i++) {
+            TestKey key = new TestKey(result.getName(i), devices[i], jobs[i]);
+            Outcome outcome = result.getOutcome(i);
+            Outcome existing = index.put(key, outcome);
+            if(existing != null && existing.compareTo(outcome) > 0) {
+                index.put(key, existing);
+            }
+        }
+        return index;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AppThwackResultDiff (%d changes, %d new failures, %d spreading)",
+                entries.size(), getNewFailures().size(), spreads.size());
+    }
+
+    /**
+     * Identity of a test within a run.
+     */
+    public static final class TestKey {
+        private static final int Mix = 0x9E3779B1;
+
+        public final String name;
+        /** Id of the device, or null if the run does not group the test by device. */
+        public final String device;
+        /** Name of the job, or null if the run does not group the test by job. */
+        public final String job;
+        private final int hash;
+
+        public TestKey(String name, String device, String job) {
+            this.name = name;
+            this.device = device;
+            this.job = job;
+            // Names and device ids often differ only in trailing digits, which a multiplier of 31
+            // maps onto overlapping ranges; the golden ratio spreads each part over the full range.
+            int h = hash(name);
+            h = h * Mix + hash(device);
+            this.hash = h * Mix + hash(job);
+        }
+
+        private static int hash(String s) {
+            return s == null ? 0 : s.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o) {
+                return true;
+            }
+            if(!(o instanceof TestKey)) {
+                return false;
+            }
+            TestKey other = (TestKey)o;
+            return hash == other.hash && equal(name, other.name) && equal(device, other.device) && equal(job, other.job);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s on %s (%s)", name, device, job);
+        }
+    }
+
+    /**
+     * A test whose outcome differs between the two runs.
+     */
+    public static class Entry {
+        public final TestKey test;
+        /** Outcome in the earlier run, or null if the test was added. */
+        public final Outcome before;
+        /** Outcome in the later run, or null if the test was removed. */
+        public final Outcome after;
+
+        Entry(TestKey test, Outcome before, Outcome after) {
+            this.test = test;
+            this.before = before;
+            this.after = after;
+        }
+
+        public Change getChange() {
+            return before == null ? Change.Added : after == null ? Change.Removed : Change.Changed;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %s: %s -> %s", getChange(), test, before, after);
+        }
+    }
+
+    /**
+     * A test which fails on more devices than before.
+     */
+    public static class Spread {
+        public final String name;
+        /** Number of devices the test failed on in the earlier run. */
+        public final int before;
+        /** Number of devices the test fails on in the later run. */
+        public final int after;
+
+        Spread(String name, int before, int after) {
+            this.name = name;
+            this.before = before;
+            this.after = after;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s fails on %d devices (was %d)", name, after, before);
+        }
+    }
+}
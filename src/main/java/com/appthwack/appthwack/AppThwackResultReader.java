@@ -0,0 +1,219 @@
+package com.appthwack.appthwack;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.EnumSet;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.type.TypeFactory;
+
+import com.appthwack.appthwack.AppThwackResult.PerformanceResultContainer;
+import com.appthwack.appthwack.AppThwackResult.PerformanceSummary;
+import com.appthwack.appthwack.AppThwackResult.Result;
+import com.appthwack.appthwack.AppThwackResult.ResultContainer;
+import com.appthwack.appthwack.AppThwackResult.ResultSummary;
+import com.appthwack.appthwack.AppThwackResult.Section;
+
+
+/**
+ * Reads a run result document incrementally with the Jackson streaming API.
+ *
+ * Instead of binding the whole document into an {@link AppThwackResult}, every
+ * {@link Result} is bound on its own and handed to a {@link Visitor} as soon as it has
+ * been parsed, so memory use does not grow with the size of the run. Containers are
+ * delivered without their {@code results} list, after their last result.
+ */
+public class AppThwackResultReader {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    /**
+     * Receives the parts of a result as they are parsed. Every method does nothing by default.
+     */
+    public interface Visitor {
+        default void visitSummary(ResultSummary summary) {
+
+        }
+
+        /**
+         * Called for every result in a container, in document order. The container's
+         * id, name and description are set if they precede its results in the document.
+         */
+        default void visitResult(Section section, ResultContainer container, Result result) {
+
+        }
+
+        /**
+         * Called once every result of the container has been visited.
+         */
+        default void visitContainer(Section section, ResultContainer container) {
+
+        }
+
+        default void visitPerformanceSummary(PerformanceSummary summary) {
+
+        }
+
+        default void visitPerformance(PerformanceResultContainer performance) {
+
+        }
+    }
+
+    private AppThwackResultReader() {
+
+    }
+
+    /**
+     * Read a result document from the given stream, which is closed afterwards.
+     * @param in stream of the JSON document.
+     * @param visitor receives each part of the result.
+     * @throws AppThwackException if the document cannot be read or parsed.
+     */
+    public static void read(InputStream in, Visitor visitor) throws AppThwackException {
+        read(in, null, visitor);
+    }
+
+    /**
+     * Read a result document, attaching every part to the given run before it is visited.
+     */
+    static void read(InputStream in, AppThwackRun run, Visitor visitor) throws AppThwackException {
+        try {
+            JsonParser parser = mapper.getFactory().createParser(in);
+            try {
+                if(parser.nextToken() != JsonToken.START_OBJECT) {
+                    throw new AppThwackException("result document is not a JSON object");
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    Section section = Section.forField(parser.getCurrentName());
+                    JsonToken token = parser.nextToken();
+                    if(section == null || token == JsonToken.VALUE_NULL) {
+                        parser.skipChildren();
+                        continue;
+                    }
+                    switch (section) {
+                        case Summary:
+                            ResultSummary summary = mapper.readValue(parser, ResultSummary.class);
+                            if(run != null) {
+                                summary.setRun(run);
+                            }
+                            visitor.visitSummary(summary);
+                            break;
+                        case PerformanceSummary:
+                            visitor.visitPerformanceSummary(mapper.readValue(parser, PerformanceSummary.class));
+                            break;
+                        case Performance:
+                            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                                visitor.visitPerformance(mapper.readValue(parser, PerformanceResultContainer.class));
+                            }
+                            break;
+                        default:
+                            readContainers(parser, section, run, visitor);
+                            break;
+                    }
+                }
+            }
+            finally {
+                parser.close();
+            }
+        }
+        catch (IOException e) {
+            throw new AppThwackException(String.format("unable to read results: %s", e.getMessage()));
+        }
+        finally {
+            try {
+                in.close();
+            }
+            catch (IOException e) {
+                // The document has already been read or failed.
+            }
+        }
+    }
+
+    /**
+     * Bind the given sections of a result document into the given result, skipping the rest
+     * without building objects for them. The stream is closed afterwards.
+     */
+    static void readSections(InputStream in, EnumSet<Section> sections, AppThwackResult into) throws IOException {
+        try {
+            JsonParser parser = mapper.getFactory().createParser(in);
+            try {
+                if(parser.nextToken() != JsonToken.START_OBJECT) {
+                    throw new JsonParseException("result document is not a JSON object", parser.getCurrentLocation());
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    Section section = Section.forField(parser.getCurrentName());
+                    parser.nextToken();
+                    if(section == null || !sections.contains(section)) {
+                        parser.skipChildren();
+                        continue;
+                    }
+                    into.set(section, mapper.readValue(parser, typeOf(section)));
+                }
+            }
+            finally {
+                parser.close();
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private static JavaType typeOf(Section section) {
+        TypeFactory types = mapper.getTypeFactory();
+        switch (section) {
+            case Summary:
+                return types.constructType(ResultSummary.class);
+            case PerformanceSummary:
+                return types.constructType(PerformanceSummary.class);
+            case Performance:
+                return types.constructCollectionType(List.class, PerformanceResultContainer.class);
+            default:
+                return types.constructCollectionType(List.class, ResultContainer.class);
+        }
+    }
+
+    private static void readContainers(JsonParser parser, Section section, AppThwackRun run, Visitor visitor) throws IOException {
+        if(parser.getCurrentToken() != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return;
+        }
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            ResultContainer container = new ResultContainer();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if(field.equals("id")) {
+                    container.id = parser.getValueAsString();
+                }
+                else if(field.equals("name")) {
+                    container.name = parser.getValueAsString();
+                }
+                else if(field.equals("description")) {
+                    container.description = parser.getValueAsString();
+                }
+                else if(field.equals("results") && token == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        Result result = mapper.readValue(parser, Result.class);
+                        if(run != null) {
+                            result.setRun(run);
+                        }
+                        visitor.visitResult(section, container, result);
+                    }
+                }
+                else {
+                    parser.skipChildren();
+                }
+            }
+            if(run != null) {
+                container.setRun(run);
+            }
+            visitor.visitContainer(section, container);
+        }
+    }
+}
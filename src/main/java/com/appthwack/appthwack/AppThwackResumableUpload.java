@@ -0,0 +1,333 @@
+package com.appthwack.appthwack;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import javax.ws.rs.core.MediaType;
+
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.WebResource;
+import com.sun.jersey.api.client.config.ClientConfig;
+
+
+/**
+ * Uploads a single file, retrying failed transfers according to an {@link AppThwackRetryPolicy}.
+ *
+ * When the server supports resumable uploads, a session is opened with
+ * {@code POST file?uploadType=resumable} and the server answers with its URL in the
+ * {@code Location} header. The file is then sent with {@code PUT} and a
+ * {@code Content-Range: bytes start-end/total} header; an incomplete session answers
+ * {@code 308} with a {@code Range: bytes=0-last} header naming the bytes it holds.
+ * After a failure the acknowledged offset is queried with an empty {@code PUT} whose
+ * {@code Content-Range} gives only the total, and only the remainder is sent.
+ *
+ * Servers which answer the session request without a {@code Location} header, with a
+ * client error, or with repeated server errors get the regular multipart upload,
+ * repeated from the start on failure. Once a session is open, every acknowledged
+ * advance of the offset resets the policy's failure count, so a long upload which
+ * keeps making progress is not abandoned. Files up to 2 GB are
+ * memory-mapped once so that repeated attempts do not read them from disk again.
+ */
+class AppThwackResumableUpload {
+
+    /** Status code for an incomplete resumable upload. */
+    private static final int ResumeIncomplete = 308;
+    /** Number of error responses to the session request after which resumable uploads are taken to be unsupported. */
+    private static final int MaxInitiateErrors = 2;
+
+    private final AppThwackApi api;
+    private final WebResource root;
+    private final int chunkSize;
+    private final AppThwackRetryPolicy policy;
+    private final AppThwackProgressListener listener;
+
+    private FileChannel channel;
+    private ByteBuffer mapped;
+    private Path path;
+    private long size;
+
+    AppThwackResumableUpload(AppThwackApi api, WebResource root, int chunkSize, AppThwackRetryPolicy policy, AppThwackProgressListener listener) {
+        this.api = api;
+        this.root = root;
+        this.chunkSize = chunkSize;
+        this.policy = policy;
+        this.listener = listener;
+    }
+
+    /**
+     * Upload the file at the given path.
+     * @param path path of the file to upload.
+     * @param name name of the file once uploaded.
+     * @return reference to remote file on AppThwack.
+     */
+    AppThwackFile upload(Path path, String name) throws AppThwackException {
+        if(name == null || name.isEmpty()) {
+            throw new AppThwackException("name cannot be null or empty");
+        }
+        this.path = path;
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            size = channel.size();
+            if(size <= Integer.MAX_VALUE) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+        }
+        catch (IOException e) {
+            close();
+            throw new AppThwackException(String.format("unable to read %s: %s", path, e.getMessage()));
+        }
+        try {
+            URI session = initiate(name);
+            return session != null ? resume(session) : restart(name);
+        }
+        finally {
+            close();
+        }
+    }
+
+    /**
+     * Open a resumable session.
+     * @return session URL, or null if the server does not support resumable uploads.
+     */
+    private URI initiate(String name) throws AppThwackException {
+        int failures = 0;
+        int errors = 0;
+        while (true) {
+            String error;
+            try {
+                ClientResponse response = root.path("file")
+                        .queryParam("uploadType", "resumable")
+                        .header("X-Upload-Content-Length", size)
+                        .header("X-Upload-Name", name)
+                        .post(ClientResponse.class);
+                try {
+                    int status = response.getStatus();
+                    if(status / 100 == 2) {
+                        URI location = response.getLocation();
+                        return location == null ? null : root.getURI().resolve(location);
+                    }
+                    // Servers without resumable uploads may answer the unknown request with any error.
+                    failures++;
+                    if(!policy.isRetryable(status) || ++errors >= MaxInitiateErrors || !policy.canRetry(failures)) {
+                        return null;
+                    }
+                    error = String.format("HTTP %d", status);
+                }
+                finally {
+                    response.close();
+                }
+            }
+            catch (ClientHandlerException e) {
+                error = e.getMessage();
+                failures++;
+            }
+            backoff(failures, error);
+        }
+    }
+
+    /**
+     * Send the file to a resumable session, continuing from the acknowledged offset after each failure.
+     */
+    private AppThwackFile resume(URI session) throws AppThwackException {
+        WebResource resource = root.uri(session);
+        resource.setProperty(ClientConfig.PROPERTY_CHUNKED_ENCODING_SIZE, chunkSize);
+        resource.setProperty(AppThwackApi.PropertyStreamedBody, true);
+
+        long offset = 0;
+        boolean query = false;
+        int failures = 0;
+        while (true) {
+            String error;
+            try {
+                ClientResponse response = query || offset == size ? status(resource) : send(resource, offset);
+                try {
+                    int status = response.getStatus();
+                    if(status == 200 || status == 201) {
+                        return response.getEntity(AppThwackFile.class);
+                    }
+                    if(status == ResumeIncomplete) {
+                        long acknowledged = acknowledged(response);
+                        if(acknowledged > offset) {
+                            failures = 0;
+                        }
+                        boolean progressed = query ? acknowledged < size : acknowledged > offset;
+                        offset = acknowledged;
+                        query = false;
+                        if(progressed) {
+                            continue;
+                        }
+                        error = String.format("server acknowledged no new bytes at offset %d", offset);
+                    }
+                    else if(policy.isRetryable(status)) {
+                        error = String.format("HTTP %d", status);
+                    }
+                    else {
+                        throw new AppThwackException(String.format("upload of %s rejected: HTTP %d", path, status));
+                    }
+                }
+                finally {
+                    response.close();
+                }
+            }
+            catch (ClientHandlerException e) {
+                error = e.getMessage();
+            }
+            backoff(++failures, error);
+            query = true;
+        }
+    }
+
+    /**
+     * Upload the whole file with a regular multipart request, repeating it from the start on failure.
+     */
+    private AppThwackFile restart(String name) throws AppThwackException {
+        int failures = 0;
+        while (true) {
+            InputStream in = null;
+            try {
+                in = open(0);
+                return api.uploadFile(in, name, size, listener);
+            }
+            catch (RuntimeException e) {
+                if(!policy.isRetryable(e)) {
+                    throw e;
+                }
+                backoff(++failures, e.getMessage());
+            }
+            catch (IOException e) {
+                throw new AppThwackException(String.format("unable to read %s: %s", path, e.getMessage()));
+            }
+            finally {
+                closeQuietly(in);
+            }
+        }
+    }
+
+    private ClientResponse send(WebResource resource, final long offset) {
+        InputStream in;
+        try {
+            in = open(offset);
+        }
+        catch (IOException e) {
+            throw new ClientHandlerException(e);
+        }
+        AppThwackProgressListener progress = listener == null ? null
+                : (bytes, total, rate) -> listener.onProgress(offset + bytes, size, rate);
+        return resource
+                .header("Content-Range", String.format("bytes %d-%d/%d", offset, size - 1, size))
+                .type(MediaType.APPLICATION_OCTET_STREAM_TYPE)
+                .put(ClientResponse.class, new AppThwackProgressInputStream(in, size - offset, chunkSize, progress));
+    }
+
+    private ClientResponse status(WebResource resource) {
+        return resource
+                .header("Content-Range", String.format("bytes */%d", size))
+                .put(ClientResponse.class);
+    }
+
+    /**
+     * Returns the number of bytes the server holds, from the Range header of an incomplete session.
+     */
+    private long acknowledged(ClientResponse response) {
+        String range = response.getHeaders().getFirst("Range");
+        if(range == null) {
+            return 0;
+        }
+        int dash = range.lastIndexOf('-');
+        try {
+            return Math.min(size, Long.parseLong(range.substring(dash + 1).trim()) + 1);
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Open the file contents at the given offset, from the mapping when there is one.
+     */
+    private InputStream open(long offset) throws IOException {
+        if(mapped != null) {
+            ByteBuffer buffer = mapped.duplicate();
+            buffer.position((int)offset);
+            return new ByteBufferInputStream(buffer);
+        }
+        FileChannel file = FileChannel.open(path, StandardOpenOption.READ);
+        file.position(offset);
+        return Channels.newInputStream(file);
+    }
+
+    /**
+     * Wait before the next attempt, or give up once the policy is exhausted.
+     */
+    private void backoff(int failures, String error) throws AppThwackException {
+        if(!policy.canRetry(failures)) {
+            throw new AppThwackException(String.format("upload of %s failed after %d attempts: %s", path, failures, error));
+        }
+        try {
+            Thread.sleep(policy.backoff(failures));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AppThwackException("interrupted while retrying upload");
+        }
+    }
+
+    private void close() {
+        closeQuietly(channel);
+        mapped = null;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if(closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        }
+        catch (IOException e) {
+            // Nothing useful to do; the transfer itself already succeeded or failed.
+        }
+    }
+
+    /**
+     * Input stream over a (memory-mapped) byte buffer.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int length) {
+            if(length == 0) {
+                return 0;
+            }
+            if(!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(length, buffer.remaining());
+            buffer.get(b, offset, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
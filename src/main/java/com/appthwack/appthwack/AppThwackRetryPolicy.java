@@ -0,0 +1,134 @@
+package com.appthwack.appthwack;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.UniformInterfaceException;
+
+
+/**
+ * Decides whether, and after how long, a failed transfer is attempted again.
+ *
+ * Connection failures and server-side errors (5xx, 408 and 429) are retried; other
+ * client errors are not, since repeating the same request cannot succeed. Delays grow
+ * exponentially from the initial backoff up to the maximum, with random jitter.
+ */
+public class AppThwackRetryPolicy {
+
+    public static final int DefaultMaxAttempts = 5;
+    public static final long DefaultInitialBackoff = 1000;
+    public static final long DefaultMaxBackoff = 30 * 1000;
+    public static final double DefaultMultiplier = 2.0;
+
+    private int maxAttempts = DefaultMaxAttempts;
+    private long initialBackoff = DefaultInitialBackoff;
+    private long maxBackoff = DefaultMaxBackoff;
+    private double multiplier = DefaultMultiplier;
+
+    public AppThwackRetryPolicy() {
+
+    }
+
+    /**
+     * Create a policy which makes at most the given number of attempts.
+     * @param maxAttempts total attempts, including the first.
+     */
+    public AppThwackRetryPolicy(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Returns true if a request which failed with the given error may be repeated.
+     * @param error failure raised by the client.
+     * @return
+     */
+    public boolean isRetryable(Throwable error) {
+        if(error instanceof UniformInterfaceException) {
+            return isRetryable(((UniformInterfaceException)error).getResponse().getStatus());
+        }
+        return error instanceof ClientHandlerException;
+    }
+
+    /**
+     * Returns true if a request which received the given HTTP status may be repeated.
+     * @param status HTTP status code.
+     * @return
+     */
+    public boolean isRetryable(int status) {
+        return status >= 500 || status == 408 || status == 429;
+    }
+
+    /**
+     * Returns true if another attempt may be made after the given number of failures.
+     * @param failures number of attempts which have failed so far.
+     * @return
+     */
+    public boolean canRetry(int failures) {
+        return failures < maxAttempts;
+    }
+
+    /**
+     * Returns the delay before the next attempt.
+     * @param failures number of attempts which have failed so far, starting at 1.
+     * @return delay in milliseconds.
+     */
+    public long backoff(int failures) {
+        double delay = initialBackoff * Math.pow(multiplier, Math.max(0, failures - 1));
+        delay = Math.min(delay, maxBackoff);
+        // Equal jitter: keep half the delay and randomize the rest.
+        return Math.round(delay / 2 + ThreadLocalRandom.current().nextDouble() * delay / 2);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Set the total number of attempts, including the first.
+     * @param maxAttempts
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    public long getInitialBackoff() {
+        return initialBackoff;
+    }
+
+    /**
+     * Set the delay before the first retry.
+     * @param ms delay in milliseconds.
+     */
+    public void setInitialBackoff(long ms) {
+        this.initialBackoff = ms;
+    }
+
+    public long getMaxBackoff() {
+        return maxBackoff;
+    }
+
+    /**
+     * Set the longest delay between attempts.
+     * @param ms delay in milliseconds.
+     */
+    public void setMaxBackoff(long ms) {
+        this.maxBackoff = ms;
+    }
+
+    public double getMultiplier() {
+        return multiplier;
+    }
+
+    /**
+     * Set how much the delay grows after each failure.
+     * @param multiplier
+     */
+    public void setMultiplier(double multiplier) {
+        this.multiplier = multiplier;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AppThwackRetryPolicy (%d attempts, %d-%d ms)", maxAttempts, initialBackoff, maxBackoff);
+    }
+}
@@ -1,9 +1,23 @@
 package com.appthwack.appthwack;
 
+import java.util.EnumSet;
 import java.util.List;
 import java.util.HashMap;
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.lang.Math;
+import java.util.concurrent.Callable;
 
 import com.appthwack.appthwack.AppThwackResult;
 import com.appthwack.appthwack.AppThwackProject;
@@ -14,9 +28,11 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 
+import com.sun.jersey.api.client.ClientHandlerException;
 import com.sun.jersey.api.client.WebResource;
 import com.sun.jersey.api.client.GenericType;
 import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.UniformInterfaceException;
 
 import javax.ws.rs.core.MediaType;
 
@@ -31,7 +47,8 @@ import javax.ws.rs.core.MediaType;
 public class AppThwackRun {
 
     private static final int MinimumPollingInterval = 5 * 1000;
-    private static final int DefaultPollingInterval = 30 * 1000;
+    private static final int TransferSize = 1024 * 1024;
+    private static final int BufferSize = 64 * 1024;
 
     @JsonProperty("run_id")
     public Integer id;
@@ -74,33 +91,45 @@ public class AppThwackRun {
      * @return
      */
     public boolean isCompleted() {
-        AppThwackResult.ResultSummary summary = getResultsSummary();
-        return summary.status.equalsIgnoreCase("completed")
-                && summary.reportFile != null
-                && !summary.reportFile.isEmpty();
+        return getResultsSummary().isCompleted();
     }
 
     /**
      * Blocks until the current run has completed, checking
-     * status with the default polling interval.
+     * status with the default adaptive polling policy.
+     * @see AppThwackAdaptivePollingPolicy
      */
     public AppThwackResult waitForCompleted() {
-        return waitForCompleted(DefaultPollingInterval);
+        return waitForCompleted(new AppThwackAdaptivePollingPolicy());
     }
 
     /**
      * Blocks until the current run has completed, checking
      * status with the given polling interval.
+     * To wait on many runs without a thread each, use {@link AppThwackRunWatcher}.
      * @param ms status polling interval in milliseconds
      */
     public AppThwackResult waitForCompleted(int ms) {
-        ms = Math.max(MinimumPollingInterval, ms);
+        return waitForCompleted(AppThwackPollingPolicy.fixed(Math.max(MinimumPollingInterval, ms)));
+    }
+
+    /**
+     * Blocks until the current run has completed, checking
+     * status as often as the given policy decides.
+     * To wait on many runs without a thread each, use {@link AppThwackRunWatcher}.
+     * @param policy decides the delay between status checks
+     */
+    public AppThwackResult waitForCompleted(AppThwackPollingPolicy policy) {
+        long started = System.currentTimeMillis();
+        int attempt = 0;
         while (true) {
-            if (isCompleted()) {
+            AppThwackResult.ResultSummary summary = getResultsSummary();
+            if (summary.isCompleted()) {
                 return getResults();
             }
+            attempt++;
             try {
-                Thread.sleep(ms);
+                Thread.sleep(policy.nextDelay(summary, attempt, System.currentTimeMillis() - started));
             }
             catch (InterruptedException ex) {
                 break;
@@ -111,57 +140,387 @@ public class AppThwackRun {
 
     /**
      * Returns the status string of the current run.
+     * Concurrent calls for the same run share a single request.
      * @return Status of the run.
      */
     public String getStatus() {
-        HashMap<String, String> map = root
-                .path("run")
-                .path(Integer.toString(project.id))
-                .path(Integer.toString(id))
-                .path("status")
-                .get(new GenericType<HashMap<String, String>>(){});
-        return map.get("status");
+        return project.getRequests().get(String.format("run/%d/%d/status", project.id, id), new Callable<String>() {
+            public String call() {
+                HashMap<String, String> map = root
+                        .path("run")
+                        .path(Integer.toString(project.id))
+                        .path(Integer.toString(id))
+                        .path("status")
+                        .get(new GenericType<HashMap<String, String>>(){});
+                return map.get("status");
+            }
+        });
     }
 
     /**
      * Returns the results generated by this run.
+     * Results are kept in the result cache of the AppThwackApi: once the run has completed
+     * they are served from memory, and while it is in progress they are only downloaded
+     * again if they have changed.
      * @return result highlights
+     * @see AppThwackApi#setResultCacheCapacity(long)
      */
     public AppThwackResult getResults() {
-        AppThwackResult result = root
+        AppThwackResultCache cache = project.getResultCache();
+        if(cache == null || !cache.isEnabled()) {
+            AppThwackResult result = results().get(AppThwackResult.class);
+            result.setRun(this);
+            return result;
+        }
+
+        AppThwackResultCache.Entry cached = cache.get(project.id, id);
+        if(cached != null && cached.completed) {
+            AppThwackResult result = decode(cache, cached);
+            if(result != null) {
+                return result;
+            }
+            cached = null;
+        }
+
+        WebResource.Builder request = results().getRequestBuilder();
+        if(cached != null && cached.hasValidators()) {
+            if(cached.etag != null) {
+                request = request.header("If-None-Match", cached.etag);
+            }
+            if(cached.lastModified != null) {
+                request = request.header("If-Modified-Since", cached.lastModified);
+            }
+        }
+        ClientResponse response = request.get(ClientResponse.class);
+        if(response.getStatus() == 304 && cached != null) {
+            response.close();
+            AppThwackResult result = decode(cache, cached);
+            if(result != null) {
+                return result;
+            }
+            response = results().get(ClientResponse.class);
+        }
+        if(response.getStatus() >= 300) {
+            throw new UniformInterfaceException(response, true);
+        }
+
+        AppThwackResult result = response.getEntity(AppThwackResult.class);
+        String etag = response.getHeaders().getFirst("ETag");
+        String lastModified = response.getHeaders().getFirst("Last-Modified");
+        boolean completed = result.summary != null && result.summary.isCompleted();
+        AppThwackResultCache.Entry entry = new AppThwackResultCache.Entry(AppThwackResultCodec.encode(result), etag, lastModified, completed);
+        if(completed || entry.hasValidators()) {
+            cache.put(project.id, id, entry);
+        }
+        else {
+            cache.invalidate(project.id, id);
+        }
+        result.setRun(this);
+        return result;
+    }
+
+    /**
+     * Decode a cached result, dropping the entry if it cannot be read.
+     */
+    private AppThwackResult decode(AppThwackResultCache cache, AppThwackResultCache.Entry cached) {
+        try {
+            AppThwackResult result = AppThwackResultCodec.decode(cached.snapshot);
+            result.setRun(this);
+            return result;
+        }
+        catch (AppThwackException e) {
+            cache.invalidate(project.id, id);
+            return null;
+        }
+    }
+
+    private WebResource results() {
+        return root
                 .path("run")
                 .path(Integer.toString(project.id))
-                .path(Integer.toString(id))
-                .get(AppThwackResult.class);
+                .path(Integer.toString(id));
+    }
+
+    /**
+     * Returns the results generated by this run, holding only the given sections.
+     * Other sections are fetched and parsed the first time their getter is called.
+     * @param sections sections to load now.
+     * @return partially loaded result
+     */
+    public AppThwackResult getResults(EnumSet<AppThwackResult.Section> sections) {
+        AppThwackResult result = new AppThwackResult();
+        readSections(result, sections);
+        result.setLoadedSections(sections);
+        result.setRun(this);
+        return result;
+    }
+
+    /**
+     * Fetch the results document and bind only the given sections into the given result.
+     */
+    void readSections(AppThwackResult into, EnumSet<AppThwackResult.Section> sections) {
+        if(sections.isEmpty()) {
+            return;
+        }
+        ClientResponse response = results().get(ClientResponse.class);
+        if(response.getStatus() >= 300) {
+            throw new UniformInterfaceException(response, true);
+        }
+        try {
+            AppThwackResultReader.readSections(response.getEntityInputStream(), sections, into);
+        }
+        catch (IOException e) {
+            throw new ClientHandlerException(e);
+        }
+    }
+
+    /**
+     * Returns the results generated by this run in compact form, read straight from
+     * the connection without binding the full result first.
+     * @return compact result
+     * @see AppThwackCompactResult
+     */
+    public AppThwackCompactResult getCompactResults() throws AppThwackException {
+        ClientResponse response = results().get(ClientResponse.class);
+        if(response.getStatus() >= 300) {
+            throw new UniformInterfaceException(response, true);
+        }
+        AppThwackCompactResult result = AppThwackCompactResult.read(response.getEntityInputStream());
         result.setRun(this);
         return result;
     }
 
+    /**
+     * Stream the results generated by this run to the given visitor as they are parsed,
+     * without holding the whole result in memory.
+     * @param visitor receives the summary, each container and result, and performance data.
+     * @see AppThwackResultReader
+     */
+    public void readResults(AppThwackResultReader.Visitor visitor) throws AppThwackException {
+        ClientResponse response = results().get(ClientResponse.class);
+        if(response.getStatus() >= 300) {
+            throw new UniformInterfaceException(response, true);
+        }
+        AppThwackResultReader.read(response.getEntityInputStream(), this, visitor);
+    }
+
     /**
      * Returns the results summary generated by the run.
+     * Concurrent calls for the same run share a single request and summary object.
      * @return
      */
     public AppThwackResult.ResultSummary getResultsSummary() {
-        AppThwackResult.ResultSummary summary = root
-                .path("run")
-                .path(Integer.toString(project.id))
-                .path(Integer.toString(id))
-                .path("summary")
-                .get(AppThwackResult.ResultSummary.class);
-        summary.setRun(this);
-        return summary;
+        final AppThwackRun run = this;
+        return project.getRequests().get(String.format("run/%d/%d/summary", project.id, id), new Callable<AppThwackResult.ResultSummary>() {
+            public AppThwackResult.ResultSummary call() {
+                AppThwackResult.ResultSummary summary = root
+                        .path("run")
+                        .path(Integer.toString(project.id))
+                        .path(Integer.toString(id))
+                        .path("summary")
+                        .get(AppThwackResult.ResultSummary.class);
+                summary.setRun(run);
+                return summary;
+            }
+        });
     }
 
     /**
      * Returns temporary file object for downloaded results.
+     * To choose where the archive is written, use {@link #downloadResults(Path)}.
      * @return saved local copy of results
      */
     public File downloadResults() {
+        return archive().get(File.class);
+    }
+
+    /**
+     * Stream the results archive into the given file, replacing it if it exists.
+     * @param destination path of the archive to write.
+     * @return number of bytes written.
+     */
+    public long downloadResults(Path destination) throws AppThwackException {
+        return downloadResults(destination, null);
+    }
+
+    /**
+     * Stream the results archive into the given file, replacing it if it exists.
+     * The archive is written once, straight from the connection, without a temporary copy.
+     * If the download fails or the checksum does not match, the file is deleted, unless it
+     * could not be opened for writing in the first place.
+     * @param destination path of the archive to write.
+     * @param checksum expected hex SHA-256 of the archive, or null to skip the check.
+     * @return number of bytes written.
+     */
+    public long downloadResults(Path destination, String checksum) throws AppThwackException {
+        MessageDigest digest = checksum == null ? null : AppThwackUploadCache.sha256();
+        InputStream in = openArchive();
+        boolean opened = false;
+        boolean complete = false;
+        try {
+            FileChannel channel = FileChannel.open(destination,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            opened = true;
+            try {
+                ReadableByteChannel source = Channels.newChannel(digest == null ? in : new DigestInputStream(in, digest));
+                long position = 0;
+                long n;
+                while ((n = channel.transferFrom(source, position, TransferSize)) > 0) {
+                    position += n;
+                }
+                verify(digest, checksum);
+                complete = true;
+                return position;
+            }
+            finally {
+                channel.close();
+            }
+        }
+        catch (IOException e) {
+            throw new AppThwackException(String.format("unable to download results to %s: %s", destination, e.getMessage()));
+        }
+        finally {
+            closeQuietly(in);
+            // A file which could not be opened was not touched, so it is left alone.
+            if(opened && !complete) {
+                try {
+                    Files.deleteIfExists(destination);
+                }
+                catch (IOException e) {
+                    // Leave the partial file behind; the caller already gets the failure.
+                }
+            }
+        }
+    }
+
+    /**
+     * Download the results archive into the given file as byte ranges fetched concurrently.
+     * Falls back to a single stream when the server does not support ranges or the archive
+     * is too small to be worth splitting. Ranges which are cut short are resumed.
+     * @param destination path of the archive to write.
+     * @param checksum expected hex SHA-256 of the archive, or null to skip the check.
+     * @param parallelism maximum number of connections used at once.
+     * @return number of bytes written.
+     */
+    public long downloadResults(Path destination, String checksum, int parallelism) throws AppThwackException {
+        return downloadResults(destination, checksum, parallelism, new AppThwackRetryPolicy());
+    }
+
+    /**
+     * Download the results archive into the given file as byte ranges fetched concurrently,
+     * resuming ranges which are cut short as the given policy allows.
+     * @param destination path of the archive to write.
+     * @param checksum expected hex SHA-256 of the archive, or null to skip the check.
+     * @param parallelism maximum number of connections used at once.
+     * @param retry decides whether and when a failed range is fetched again.
+     * @return number of bytes written.
+     */
+    public long downloadResults(Path destination, String checksum, int parallelism, AppThwackRetryPolicy retry) throws AppThwackException {
+        long length = new AppThwackParallelDownload(archive(), parallelism, retry).download(destination);
+        if(length < 0) {
+            return downloadResults(destination, checksum);
+        }
+        if(checksum != null && !checksum.trim().equalsIgnoreCase(AppThwackUploadCache.hash(destination))) {
+            try {
+                Files.deleteIfExists(destination);
+            }
+            catch (IOException e) {
+                // The caller already gets the failure.
+            }
+            throw new AppThwackException(String.format("results checksum mismatch: expected %s", checksum));
+        }
+        return length;
+    }
+
+    /**
+     * Stream the results archive into the given output stream, which is not closed.
+     * @param out stream to write the archive to.
+     * @return number of bytes written.
+     */
+    public long downloadResults(OutputStream out) throws AppThwackException {
+        return downloadResults(out, null);
+    }
+
+    /**
+     * Stream the results archive into the given output stream, which is not closed.
+     * The checksum can only be verified once everything has been written, so on a
+     * mismatch the caller is responsible for discarding what the stream received.
+     * @param out stream to write the archive to.
+     * @param checksum expected hex SHA-256 of the archive, or null to skip the check.
+     * @return number of bytes written.
+     */
+    public long downloadResults(OutputStream out, String checksum) throws AppThwackException {
+        MessageDigest digest = checksum == null ? null : AppThwackUploadCache.sha256();
+        InputStream in = openArchive();
+        try {
+            byte[] buffer = new byte[BufferSize];
+            long total = 0;
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                if(digest != null) {
+                    digest.update(buffer, 0, n);
+                }
+                out.write(buffer, 0, n);
+                total += n;
+            }
+            verify(digest, checksum);
+            return total;
+        }
+        catch (IOException e) {
+            throw new AppThwackException(String.format("unable to download results: %s", e.getMessage()));
+        }
+        finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Open the results archive for reading entry by entry, straight from the connection.
+     * Nothing is written to disk, and entries which are skipped are never copied anywhere.
+     * They are still inflated on the way past, since a zip stream can only reach the next
+     * entry by reading through the current one; to skip entries without inflating them,
+     * download the archive and use {@link AppThwackResultArchive#open(Path)}.
+     * @return archive which must be closed once done with.
+     */
+    public AppThwackResultArchive openResultsArchive() {
+        return AppThwackResultArchive.read(openArchive());
+    }
+
+    private WebResource archive() {
         return root.path("run")
                 .path(Integer.toString(project.id))
                 .path(Integer.toString(id))
-                .queryParam("format", "archive")
-                .get(File.class);
+                .queryParam("format", "archive");
+    }
+
+    /**
+     * Open the results archive as a stream read straight from the connection.
+     */
+    private InputStream openArchive() {
+        ClientResponse response = archive().get(ClientResponse.class);
+        if(response.getStatus() >= 300) {
+            throw new UniformInterfaceException(response, true);
+        }
+        return response.getEntityInputStream();
+    }
+
+    private static void verify(MessageDigest digest, String checksum) throws AppThwackException {
+        if(digest == null) {
+            return;
+        }
+        String actual = AppThwackUploadCache.hex(digest.digest());
+        if(!actual.equalsIgnoreCase(checksum.trim())) {
+            throw new AppThwackException(String.format("results checksum mismatch: expected %s, got %s", checksum, actual));
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        }
+        catch (IOException e) {
+            // The archive has already been read or the download already failed.
+        }
     }
 
     public void setRoot(WebResource root) {
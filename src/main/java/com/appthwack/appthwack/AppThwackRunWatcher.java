@@ -0,0 +1,305 @@
+package com.appthwack.appthwack;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Tracks any number of {@link AppThwackRun}s until they complete, using a bounded number of threads.
+ *
+ * A single timer thread decides when each run is due to be checked; the status checks
+ * themselves run on a small worker pool. Watching a run costs a queue entry rather than
+ * a sleeping thread, so the thread count stays fixed whether one run or thousands are
+ * watched. Completion is reported by completing the future returned from
+ * {@link #watch(AppThwackRun)} and, optionally, through a {@link Listener}.
+ *
+ * A status check which fails with a transient error (a connection failure or a 5xx
+ * response, see {@link AppThwackRetryPolicy#isRetryable(Throwable)}) is repeated on the
+ * run's next tick; the watch only fails once the retry policy gives up on consecutive
+ * failures, or on the first error which is not transient.
+ */
+public class AppThwackRunWatcher {
+
+    private static final int DefaultThreads = 4;
+    private static final int MinimumPollingInterval = 5 * 1000;
+
+    private final ScheduledExecutorService timer;
+    private final Executor executor;
+    private final ExecutorService ownedExecutor;
+    private final ConcurrentMap<AppThwackRun, Watch> watches = new ConcurrentHashMap<AppThwackRun, Watch>();
+    private volatile AppThwackPollingPolicy defaultPolicy = new AppThwackAdaptivePollingPolicy();
+    private volatile AppThwackRetryPolicy retryPolicy = new AppThwackRetryPolicy();
+
+    /**
+     * Receives completion notifications for watched runs.
+     * Callbacks are invoked on a watcher worker thread and should not block.
+     */
+    public interface Listener {
+        void onCompleted(AppThwackRun run, AppThwackResult result);
+        void onFailed(AppThwackRun run, Throwable error);
+    }
+
+    /**
+     * Create a watcher with the default number of worker threads.
+     */
+    public AppThwackRunWatcher() {
+        this(DefaultThreads);
+    }
+
+    /**
+     * Create a watcher which checks runs on the given number of worker threads.
+     * @param threads maximum number of concurrent status checks.
+     */
+    public AppThwackRunWatcher(int threads) {
+        this(Executors.newFixedThreadPool(threads, daemonThreads("AppThwackRunWatcher worker")), true);
+    }
+
+    /**
+     * Create a watcher which checks runs on the given executor.
+     * The executor is not shut down by {@link #close()}.
+     * @param executor executor to run status checks on.
+     */
+    public AppThwackRunWatcher(Executor executor) {
+        this(executor, false);
+    }
+
+    private AppThwackRunWatcher(Executor executor, boolean owned) {
+        this.executor = executor;
+        this.ownedExecutor = owned ? (ExecutorService)executor : null;
+        this.timer = Executors.newSingleThreadScheduledExecutor(daemonThreads("AppThwackRunWatcher timer"));
+    }
+
+    /**
+     * Watch the given run, checking status as often as the default policy decides.
+     * @param run run to watch.
+     * @return future completed with the run's results.
+     * @see #setDefaultPolicy(AppThwackPollingPolicy)
+     */
+    public CompletableFuture<AppThwackResult> watch(AppThwackRun run) {
+        return watch(run, defaultPolicy, null);
+    }
+
+    /**
+     * Watch the given run, checking status with the given polling interval.
+     * @param run run to watch.
+     * @param ms status polling interval in milliseconds
+     * @return future completed with the run's results.
+     */
+    public CompletableFuture<AppThwackResult> watch(AppThwackRun run, int ms) {
+        return watch(run, ms, null);
+    }
+
+    /**
+     * Watch the given run, checking status with the given polling interval and notifying
+     * the listener once it completes.
+     * @param run run to watch.
+     * @param ms status polling interval in milliseconds
+     * @param listener optional callback for completion or failure.
+     * @return future completed with the run's results.
+     */
+    public CompletableFuture<AppThwackResult> watch(AppThwackRun run, int ms, Listener listener) {
+        return watch(run, AppThwackPollingPolicy.fixed(Math.max(MinimumPollingInterval, ms)), listener);
+    }
+
+    /**
+     * Watch the given run, checking status as often as the given policy decides.
+     * @param run run to watch.
+     * @param policy decides the delay between status checks.
+     * @return future completed with the run's results.
+     */
+    public CompletableFuture<AppThwackResult> watch(AppThwackRun run, AppThwackPollingPolicy policy) {
+        return watch(run, policy, null);
+    }
+
+    /**
+     * Watch the given run, checking status as often as the given policy decides and notifying
+     * the listener once it completes. Watching a run which is already being watched returns
+     * the existing future; the new listener is still notified.
+     * Cancelling the returned future stops watching the run.
+     * @param run run to watch.
+     * @param policy decides the delay between status checks.
+     * @param listener optional callback for completion or failure.
+     * @return future completed with the run's results.
+     */
+    public CompletableFuture<AppThwackResult> watch(final AppThwackRun run, AppThwackPollingPolicy policy, final Listener listener) {
+        Watch watch = new Watch(run, policy);
+        Watch existing = watches.putIfAbsent(run, watch);
+        if(existing != null) {
+            watch = existing;
+        }
+        else {
+            final Watch added = watch;
+            watch.future.whenComplete((result, error) -> watches.remove(run, added));
+            watch.check();
+        }
+        if(listener != null) {
+            watch.future.whenComplete((result, error) -> {
+                if(error != null) {
+                    listener.onFailed(run, error);
+                }
+                else {
+                    listener.onCompleted(run, result);
+                }
+            });
+        }
+        return watch.future;
+    }
+
+    /**
+     * Stop watching the given run. Its future is cancelled.
+     * @param run run to stop watching.
+     * @return true if the run was being watched.
+     */
+    public boolean unwatch(AppThwackRun run) {
+        Watch watch = watches.remove(run);
+        return watch != null && watch.future.cancel(false);
+    }
+
+    public AppThwackPollingPolicy getDefaultPolicy() {
+        return defaultPolicy;
+    }
+
+    /**
+     * Set the policy used by {@link #watch(AppThwackRun)}. Runs already being watched keep their policy.
+     * @param policy decides the delay between status checks.
+     */
+    public void setDefaultPolicy(AppThwackPollingPolicy policy) {
+        this.defaultPolicy = policy;
+    }
+
+    public AppThwackRetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Set which failed status checks are repeated and how many consecutive failures are tolerated.
+     * Only the policy's classification and attempt limit apply; retries wait for the run's next tick.
+     * @param policy retry policy for status checks.
+     */
+    public void setRetryPolicy(AppThwackRetryPolicy policy) {
+        this.retryPolicy = policy;
+    }
+
+    /**
+     * Returns the number of runs currently being watched.
+     * @return
+     */
+    public int size() {
+        return watches.size();
+    }
+
+    /**
+     * Stop the timer and, if it was created by this watcher, the worker pool.
+     * Runs which are still being watched are cancelled.
+     */
+    public void close() {
+        timer.shutdownNow();
+        if(ownedExecutor != null) {
+            ownedExecutor.shutdownNow();
+        }
+        for(Watch watch : watches.values()) {
+            watch.future.cancel(false);
+        }
+        watches.clear();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AppThwackRunWatcher (%d runs)", watches.size());
+    }
+
+    /**
+     * Returns a thread factory for named daemon threads, so idle pools never keep the JVM alive.
+     */
+    static ThreadFactory daemonThreads(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, String.format("%s-%d", name, count.incrementAndGet()));
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Polling state for a single watched run.
+     */
+    private class Watch {
+        final AppThwackRun run;
+        final AppThwackPollingPolicy policy;
+        final long started = System.currentTimeMillis();
+        final CompletableFuture<AppThwackResult> future = new CompletableFuture<AppThwackResult>();
+        int attempt;
+        int failures;
+        AppThwackResult.ResultSummary summary;
+
+        Watch(AppThwackRun run, AppThwackPollingPolicy policy) {
+            this.run = run;
+            this.policy = policy;
+        }
+
+        /**
+         * Hand a status check to the worker pool. If the pool refuses it, the watch fails.
+         */
+        void check() {
+            try {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        poll();
+                    }
+                });
+            }
+            catch (RejectedExecutionException e) {
+                future.completeExceptionally(e);
+            }
+        }
+
+        /**
+         * Check status once, then either fetch results or go back on the timer.
+         */
+        void poll() {
+            if(future.isDone()) {
+                return;
+            }
+            // Checks for one run never overlap, so the counters need no locking.
+            try {
+                summary = run.getResultsSummary();
+                if(summary.isCompleted()) {
+                    future.complete(run.getResults());
+                    return;
+                }
+                failures = 0;
+            }
+            catch (Throwable t) {
+                AppThwackRetryPolicy retry = retryPolicy;
+                failures++;
+                if(!retry.isRetryable(t) || !retry.canRetry(failures)) {
+                    future.completeExceptionally(t);
+                    return;
+                }
+            }
+            attempt++;
+            long delay = policy.nextDelay(summary, attempt, System.currentTimeMillis() - started);
+            try {
+                timer.schedule(new Runnable() {
+                    public void run() {
+                        check();
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+            catch (RejectedExecutionException e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package com.appthwack.appthwack;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Content-addressed index of files which have already been uploaded to AppThwack.
+ *
+ * Uploads are identified by the SHA-256 of their contents together with the name they
+ * were uploaded under (see {@link #key(String, String)}), so uploading an unchanged
+ * artifact again under the same name returns the existing {@link AppThwackFile} without
+ * transferring it. The same contents under another name are uploaded again.
+ * The index is persisted as an append-only text file (one "key id timestamp" line per
+ * upload) so that it survives restarts and can be shared by consecutive builds on the
+ * same agent. Entries expire after a configurable age, which should not exceed how long
+ * AppThwack retains uploads.
+ *
+ * Install on a client with {@link AppThwackApi#setUploadCache(AppThwackUploadCache)}.
+ */
+public class AppThwackUploadCache {
+
+    public static final long DefaultExpiry = 24L * 60 * 60 * 1000;
+
+    private static final int BufferSize = 64 * 1024;
+
+    private final Path index;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private volatile long expiry;
+
+    /**
+     * Open (or create) an upload cache backed by the given index file, using the default expiry.
+     * @param index path of the index file.
+     * @throws AppThwackException if the index exists but cannot be read.
+     */
+    public AppThwackUploadCache(Path index) throws AppThwackException {
+        this(index, DefaultExpiry);
+    }
+
+    /**
+     * Open (or create) an upload cache backed by the given index file.
+     * @param index path of the index file.
+     * @param expiry how long an upload may be reused, in milliseconds.
+     * @throws AppThwackException if the index exists but cannot be read.
+     */
+    public AppThwackUploadCache(Path index, long expiry) throws AppThwackException {
+        this.index = index;
+        this.expiry = expiry;
+        load();
+    }
+
+    /**
+     * Compute the content hash used to key the given file, reading it once.
+     * @param path file to hash.
+     * @return lowercase hex SHA-256 digest.
+     * @throws AppThwackException if the file cannot be read.
+     */
+    public static String hash(Path path) throws AppThwackException {
+        MessageDigest digest = sha256();
+        byte[] buffer = new byte[BufferSize];
+        InputStream in = null;
+        try {
+            in = Files.newInputStream(path);
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        catch (IOException e) {
+            throw new AppThwackException(String.format("unable to read %s: %s", path, e.getMessage()));
+        }
+        finally {
+            if(in != null) {
+                try {
+                    in.close();
+                }
+                catch (IOException e) {
+                    // Already fully read.
+                }
+            }
+        }
+        return hex(digest.digest());
+    }
+
+    /**
+     * Returns the key which identifies an upload of the given contents under the given name.
+     * @param hash content hash from {@link #hash(Path)}.
+     * @param name name of the file once uploaded.
+     * @return lowercase hex SHA-256 digest.
+     */
+    public static String key(String hash, String name) {
+        MessageDigest digest = sha256();
+        digest.update(hash.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte)0);
+        digest.update(name.getBytes(StandardCharsets.UTF_8));
+        return hex(digest.digest());
+    }
+
+    /**
+     * Returns the previously uploaded file with the given key, if it has not expired.
+     * @param hash upload key from {@link #key(String, String)}.
+     * @return reference to remote file on AppThwack or null.
+     */
+    public AppThwackFile get(String hash) {
+        Entry entry = entries.get(hash);
+        if(entry == null) {
+            return null;
+        }
+        if(isExpired(entry, System.currentTimeMillis())) {
+            entries.remove(hash, entry);
+            return null;
+        }
+        return new AppThwackFile(entry.fileId);
+    }
+
+    /**
+     * Record that a file with the given key has been uploaded. The entry is remembered in
+     * memory even if the index cannot be written.
+     * @param hash upload key from {@link #key(String, String)}.
+     * @param file reference to remote file on AppThwack.
+     * @throws AppThwackException if the index cannot be written.
+     */
+    public void put(String hash, AppThwackFile file) throws AppThwackException {
+        Entry entry = new Entry(file.id, System.currentTimeMillis());
+        entries.put(hash, entry);
+        synchronized (this) {
+            try {
+                Writer writer = Files.newBufferedWriter(index, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+                try {
+                    writer.write(String.format("%s %d %d%n", hash, entry.fileId, entry.created));
+                }
+                finally {
+                    writer.close();
+                }
+            }
+            catch (IOException e) {
+                throw new AppThwackException(String.format("unable to write upload cache %s: %s", index, e.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * Forget the upload with the given key, e.g. after AppThwack rejected its id.
+     * @param hash upload key from {@link #key(String, String)}.
+     * @throws AppThwackException if the index cannot be rewritten.
+     */
+    public void remove(String hash) throws AppThwackException {
+        if(entries.remove(hash) != null) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrite the index file with only the entries which are still valid.
+     * @throws AppThwackException if the index cannot be written.
+     */
+    public synchronized void compact() throws AppThwackException {
+        long now = System.currentTimeMillis();
+        Path temp = index.resolveSibling(index.getFileName() + ".tmp");
+        try {
+            BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8);
+            try {
+                for(Map.Entry<String, Entry> e : entries.entrySet()) {
+                    if(isExpired(e.getValue(), now)) {
+                        entries.remove(e.getKey(), e.getValue());
+                        continue;
+                    }
+                    writer.write(String.format("%s %d %d%n", e.getKey(), e.getValue().fileId, e.getValue().created));
+                }
+            }
+            finally {
+                writer.close();
+            }
+            Files.move(temp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            throw new AppThwackException(String.format("unable to write upload cache %s: %s", index, e.getMessage()));
+        }
+    }
+
+    /**
+     * Returns the number of uploads currently remembered, including any which have expired
+     * but not yet been looked up or compacted away.
+     * @return
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    public long getExpiry() {
+        return expiry;
+    }
+
+    /**
+     * Set how long an upload may be reused. Applies to existing entries as well.
+     * @param ms expiry in milliseconds.
+     */
+    public void setExpiry(long ms) {
+        this.expiry = ms;
+    }
+
+    public Path getIndex() {
+        return index;
+    }
+
+    /**
+     * Read the index file, keeping the newest valid entry for each hash.
+     * Compacts the file when most of its lines are stale.
+     */
+    private void load() throws AppThwackException {
+        long now = System.currentTimeMillis();
+        int lines = 0;
+        try {
+            BufferedReader reader = Files.newBufferedReader(index, StandardCharsets.UTF_8);
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines++;
+                    String[] parts = line.trim().split(" ");
+                    if(parts.length != 3) {
+                        continue;
+                    }
+                    try {
+                        Entry entry = new Entry(Integer.valueOf(parts[1]), Long.parseLong(parts[2]));
+                        Entry existing = entries.get(parts[0]);
+                        if(!isExpired(entry, now) && (existing == null || existing.created < entry.created)) {
+                            entries.put(parts[0], entry);
+                        }
+                    }
+                    catch (NumberFormatException e) {
+                        // Skip lines torn by a crash mid-append.
+                    }
+                }
+            }
+            finally {
+                reader.close();
+            }
+        }
+        catch (NoSuchFileException e) {
+            return;
+        }
+        catch (IOException e) {
+            throw new AppThwackException(String.format("unable to read upload cache %s: %s", index, e.getMessage()));
+        }
+        if(lines > 2 * entries.size() + 16) {
+            compact();
+        }
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return now - entry.created >= expiry;
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for(byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AppThwackUploadCache (%s, %d entries)", index, entries.size());
+    }
+
+    /**
+     * A remembered upload.
+     */
+    private static final class Entry {
+        final Integer fileId;
+        final long created;
+
+        Entry(Integer fileId, long created) {
+            this.fileId = fileId;
+            this.created = created;
+        }
+    }
+}
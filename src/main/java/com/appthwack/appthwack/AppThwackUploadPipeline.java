@@ -0,0 +1,279 @@
+package com.appthwack.appthwack;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+/**
+ * Uploads a set of files concurrently and hands them, together, to run scheduling.
+ *
+ * Runs which need an app and a test package upload both at once, so the wall-clock
+ * cost is that of the slowest upload rather than the sum. At most {@code parallelism}
+ * uploads are in flight at a time; if one fails, uploads which have not started yet
+ * are skipped and the pipeline completes with that failure.
+ *
+ * <pre>
+ * AppThwackUploadPipeline pipeline = new AppThwackUploadPipeline(api, 2);
+ * pipeline.add(AppThwackUploadPipeline.App, new File("app.apk"));
+ * pipeline.add(AppThwackUploadPipeline.Tests, new File("app-tests.apk"));
+ * AppThwackRun run = pipeline.scheduleJUnitRun(project, "nightly", pool).get();
+ * </pre>
+ */
+public class AppThwackUploadPipeline {
+
+    /** Key for the application under test, used by the schedule helpers. */
+    public static final String App = "app";
+    /** Key for the test package or scripts, used by the schedule helpers. */
+    public static final String Tests = "tests";
+
+    private final AppThwackApi api;
+    private final Executor executor;
+    private final ExecutorService ownedExecutor;
+    private final int parallelism;
+    private final Map<String, Upload> uploads = Collections.synchronizedMap(new LinkedHashMap<String, Upload>());
+    private volatile AppThwackRetryPolicy retry;
+
+    /**
+     * Schedules a run once every file in the pipeline has been uploaded.
+     */
+    public interface Schedule {
+        AppThwackRun schedule(Map<String, AppThwackFile> files) throws AppThwackException;
+    }
+
+    /**
+     * Create a pipeline which uploads up to the given number of files at a time on its own threads.
+     * @param api client to upload with.
+     * @param parallelism maximum number of concurrent uploads.
+     */
+    public AppThwackUploadPipeline(AppThwackApi api, int parallelism) {
+        this(api, Executors.newFixedThreadPool(Math.max(1, parallelism), AppThwackRunWatcher.daemonThreads("AppThwackUploadPipeline worker")), parallelism, true);
+    }
+
+    /**
+     * Create a pipeline which uploads up to the given number of files at a time on the given executor.
+     * The executor is not shut down by {@link #close()}.
+     * @param api client to upload with.
+     * @param executor executor to run uploads on.
+     * @param parallelism maximum number of concurrent uploads.
+     */
+    public AppThwackUploadPipeline(AppThwackApi api, Executor executor, int parallelism) {
+        this(api, executor, parallelism, false);
+    }
+
+    private AppThwackUploadPipeline(AppThwackApi api, Executor executor, int parallelism, boolean owned) {
+        this.api = api;
+        this.executor = executor;
+        this.parallelism = Math.max(1, parallelism);
+        this.ownedExecutor = owned ? (ExecutorService)executor : null;
+    }
+
+    /**
+     * Add a file to the pipeline, uploaded under its own name.
+     * @param key identifies the file in the uploaded result, e.g. {@link #App}.
+     * @param file file to upload.
+     */
+    public void add(String key, File file) {
+        add(key, file.toPath(), file.getName(), null);
+    }
+
+    /**
+     * Add a file to the pipeline.
+     * @param key identifies the file in the uploaded result, e.g. {@link #App}.
+     * @param path file to upload.
+     * @param name name of the file once uploaded.
+     * @param listener receives upload progress; may be null.
+     */
+    public void add(String key, Path path, String name, AppThwackProgressListener listener) {
+        uploads.put(key, new Upload(key, path, name, listener));
+    }
+
+    /**
+     * Upload every file in the pipeline.
+     * @return future completed with the uploaded files, by key, in the order they were added.
+     */
+    public CompletableFuture<Map<String, AppThwackFile>> uploadAll() {
+        final List<Upload> pending;
+        synchronized (uploads) {
+            pending = new ArrayList<Upload>(uploads.values());
+        }
+        final List<CompletableFuture<AppThwackFile>> futures = new ArrayList<CompletableFuture<AppThwackFile>>();
+        final ConcurrentLinkedQueue<Integer> queue = new ConcurrentLinkedQueue<Integer>();
+        for(int i = 0; i < pending.size(); i++) {
+            futures.add(new CompletableFuture<AppThwackFile>());
+            queue.add(i);
+        }
+
+        final CompletableFuture<Map<String, AppThwackFile>> result = new CompletableFuture<Map<String, AppThwackFile>>();
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).whenComplete((v, error) -> {
+            if(error != null) {
+                result.completeExceptionally(unwrap(error));
+                return;
+            }
+            Map<String, AppThwackFile> files = new LinkedHashMap<String, AppThwackFile>();
+            for(int i = 0; i < pending.size(); i++) {
+                files.put(pending.get(i).key, futures.get(i).join());
+            }
+            result.complete(files);
+        });
+
+        int workers = Math.min(parallelism, pending.size());
+        for(int w = 0; w < workers; w++) {
+            executor.execute(() -> {
+                Integer i;
+                while ((i = queue.poll()) != null) {
+                    CompletableFuture<AppThwackFile> future = futures.get(i);
+                    if(result.isDone()) {
+                        future.cancel(false);
+                        continue;
+                    }
+                    Upload upload = pending.get(i);
+                    try {
+                        future.complete(api.uploadFile(upload.path, upload.name, retry, upload.listener));
+                    }
+                    catch (Throwable t) {
+                        future.completeExceptionally(t);
+                        result.completeExceptionally(t);
+                    }
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * Upload every file in the pipeline, blocking until all have finished.
+     * @return uploaded files, by key, in the order they were added.
+     * @throws AppThwackException if any upload fails.
+     */
+    public Map<String, AppThwackFile> upload() throws AppThwackException {
+        return await(uploadAll());
+    }
+
+    /**
+     * Upload every file in the pipeline, then schedule a run with them.
+     * @param schedule schedules the run from the uploaded files.
+     * @return future completed with the scheduled run.
+     */
+    public CompletableFuture<AppThwackRun> uploadAndSchedule(final Schedule schedule) {
+        return uploadAll().thenApply(files -> {
+            try {
+                return schedule.schedule(files);
+            }
+            catch (AppThwackException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /**
+     * Upload the {@link #App} and {@link #Tests} files, then schedule a JUnit/Robotium run.
+     * @see AppThwackProject#scheduleJUnitRun(AppThwackFile, AppThwackFile, String, AppThwackDevicePool)
+     */
+    public CompletableFuture<AppThwackRun> scheduleJUnitRun(final AppThwackProject project, final String name, final AppThwackDevicePool pool) {
+        return uploadAndSchedule(files -> project.scheduleJUnitRun(files.get(App), files.get(Tests), name, pool));
+    }
+
+    /**
+     * Upload the {@link #App} and {@link #Tests} files, then schedule a Calabash run.
+     * @see AppThwackProject#scheduleCalabashRun(AppThwackFile, AppThwackFile, String, AppThwackDevicePool)
+     */
+    public CompletableFuture<AppThwackRun> scheduleCalabashRun(final AppThwackProject project, final String name, final AppThwackDevicePool pool) {
+        return uploadAndSchedule(files -> project.scheduleCalabashRun(files.get(App), files.get(Tests), name, pool));
+    }
+
+    /**
+     * Upload the {@link #App} and {@link #Tests} files, then schedule an XCTest run.
+     * @see AppThwackProject#scheduleXCTestRun(AppThwackFile, AppThwackFile, String, AppThwackDevicePool)
+     */
+    public CompletableFuture<AppThwackRun> scheduleXCTestRun(final AppThwackProject project, final String name, final AppThwackDevicePool pool) {
+        return uploadAndSchedule(files -> project.scheduleXCTestRun(files.get(App), files.get(Tests), name, pool));
+    }
+
+    public AppThwackRetryPolicy getRetryPolicy() {
+        return retry;
+    }
+
+    /**
+     * Set the policy used to retry (and, where supported, resume) failed uploads.
+     * @param retry retry policy; null uploads each file once.
+     */
+    public void setRetryPolicy(AppThwackRetryPolicy retry) {
+        this.retry = retry;
+    }
+
+    /**
+     * Stop the worker pool if it was created by this pipeline.
+     */
+    public void close() {
+        if(ownedExecutor != null) {
+            ownedExecutor.shutdownNow();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AppThwackUploadPipeline (%d files, %d at a time)", uploads.size(), parallelism);
+    }
+
+    /**
+     * Wait for the given future, rethrowing AppThwack failures as checked exceptions.
+     */
+    static <T> T await(CompletableFuture<T> future) throws AppThwackException {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AppThwackException("interrupted while waiting for upload");
+        }
+        catch (ExecutionException e) {
+            Throwable cause = unwrap(e.getCause());
+            if(cause instanceof AppThwackException) {
+                throw (AppThwackException)cause;
+            }
+            if(cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if(cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private static Throwable unwrap(Throwable t) {
+        while (t instanceof CompletionException && t.getCause() != null) {
+            t = t.getCause();
+        }
+        return t;
+    }
+
+    /**
+     * A single file waiting to be uploaded.
+     */
+    private static class Upload {
+        final String key;
+        final Path path;
+        final String name;
+        final AppThwackProgressListener listener;
+
+        Upload(String key, Path path, String name, AppThwackProgressListener listener) {
+            this.key = key;
+            this.path = path;
+            this.name = name;
+            this.listener = listener;
+        }
+    }
+}
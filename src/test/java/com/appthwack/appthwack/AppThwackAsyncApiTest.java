@@ -0,0 +1,82 @@
+package com.appthwack.appthwack;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class AppThwackAsyncApiTest extends TestCase {
+
+    private static final String ApiKey = "test-api-key";
+
+    private AppThwackStubServer server;
+    private AppThwackApi api;
+    private AppThwackAsyncApi async;
+
+    public AppThwackAsyncApiTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(AppThwackAsyncApiTest.class);
+    }
+
+    protected void setUp() throws Exception {
+        server = new AppThwackStubServer();
+        server.respondJson("/project", "[{\"id\": 1, \"name\": \"My Project\", \"url\": \"my-project\"}]");
+        server.respondJson("/run/1/7/status", "{\"status\": \"running\"}");
+        api = new AppThwackApi(ApiKey, server.getDomain(), AppThwackStubServer.Root);
+        async = new AppThwackAsyncApi(api);
+    }
+
+    protected void tearDown() {
+        async.close();
+        api.close();
+        server.stop();
+    }
+
+    /**
+     * Calls run on the worker pool and chain without blocking.
+     */
+    public void testComposedCalls() throws Exception {
+        String status = async.getProject("my project")
+                .thenCompose(project -> async.getStatus(project.getRun(7)))
+                .get(10, TimeUnit.SECONDS);
+        assertEquals("running", status);
+        assertEquals(1, server.getRequestCount("/run/1/7/status"));
+    }
+
+    /**
+     * A failing call completes its future with the original exception.
+     */
+    public void testFailureCompletesExceptionally() throws Exception {
+        CompletableFuture<String> future = async.getStatus(api.getProject(1).getRun(8));
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail("expected the missing run to fail");
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause().toString(), e.getCause() instanceof RuntimeException);
+        }
+    }
+
+    /**
+     * Calls submitted after close() return a failed future instead of throwing.
+     */
+    public void testSubmitAfterClose() throws Exception {
+        async.close();
+        CompletableFuture<String> future = async.submit(() -> "never");
+        assertTrue(future.isCompletedExceptionally());
+        try {
+            future.get();
+            fail("expected the call to be rejected");
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+}
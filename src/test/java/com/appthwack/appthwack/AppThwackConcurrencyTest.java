@@ -0,0 +1,311 @@
+package com.appthwack.appthwack;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.ByteArrayInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientHandler;
+import com.sun.jersey.api.client.ClientRequest;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.core.header.InBoundHeaders;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+public class AppThwackConcurrencyTest extends TestCase {
+
+    private static final String ApiKey = "test-api-key";
+    private static final int Threads = 200;
+    private static final int RequestsPerThread = 10;
+
+    private AppThwackStubServer server;
+
+    public AppThwackConcurrencyTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(AppThwackConcurrencyTest.class);
+    }
+
+    protected void setUp() throws Exception {
+        server = new AppThwackStubServer();
+        server.respondJson("/project", "[{\"id\": 1, \"name\": \"My Project\", \"url\": \"my-project\"}]");
+        for(int i = 0; i < Threads; i++) {
+            server.respondJson(String.format("/run/1/%d/status", i), "{\"status\": \"running\"}");
+        }
+    }
+
+    protected void tearDown() {
+        server.stop();
+    }
+
+    /**
+     * One AppThwackApi shared by hundreds of threads completes every request
+     * and never opens more connections than the per host limit.
+     */
+    public void testSharedClientUnderLoad() throws Exception {
+        AppThwackClientConfig config = new AppThwackClientConfig();
+        config.setMaxConnectionsPerHost(16);
+        config.setConnectTimeout(5000);
+        config.setReadTimeout(5000);
+        final AppThwackApi api = new AppThwackApi(ApiKey, server.getDomain(), AppThwackStubServer.Root, config);
+        final AppThwackProject project = api.getProject(1);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger completed = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        ExecutorService executor = Executors.newFixedThreadPool(Threads);
+        for(int i = 0; i < Threads; i++) {
+            // Each thread polls its own run so that no two requests are coalesced.
+            final AppThwackRun run = project.getRun(i);
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        for(int j = 0; j < RequestsPerThread; j++) {
+                            assertEquals("running", run.getStatus());
+                            completed.incrementAndGet();
+                        }
+                    }
+                    catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue("requests did not finish in time", executor.awaitTermination(60, TimeUnit.SECONDS));
+        api.close();
+
+        if(failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertEquals(Threads * RequestsPerThread, completed.get());
+        int requests = 0;
+        for(int i = 0; i < Threads; i++) {
+            requests += server.getRequestCount(String.format("/run/1/%d/status", i));
+        }
+        assertEquals(Threads * RequestsPerThread, requests);
+        assertTrue(String.format("opened %d connections", server.getConnectionCount()), server.getConnectionCount() <= 16);
+    }
+
+    /**
+     * Concurrent status checks for the same run share one HTTP request.
+     */
+    public void testConcurrentStatusCoalesced() throws Exception {
+        server.handle("/run/1/7/status", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    Thread.sleep(500);
+                }
+                catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                AppThwackStubServer.send(exchange, 200, "application/json", "{\"status\": \"running\"}".getBytes("UTF-8"));
+            }
+        });
+        final AppThwackApi api = new AppThwackApi(ApiKey, server.getDomain(), AppThwackStubServer.Root);
+        final AppThwackProject project = api.getProject(1);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger running = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(50);
+        for(int i = 0; i < 50; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        if("running".equals(project.getRun(7).getStatus())) {
+                            running.incrementAndGet();
+                        }
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue("requests did not finish in time", executor.awaitTermination(30, TimeUnit.SECONDS));
+        api.close();
+
+        assertEquals(50, running.get());
+        assertEquals(1, server.getRequestCount("/run/1/7/status"));
+    }
+
+    /**
+     * The response cache revalidates stored responses with their ETag, serves fresh
+     * responses without a request and never stores no-store responses.
+     */
+    public void testResponseCache() throws Exception {
+        final AtomicInteger notModified = new AtomicInteger();
+        final AtomicInteger conditional = new AtomicInteger();
+        server.handle("/run/1/7/status", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                if("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    notModified.incrementAndGet();
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                    return;
+                }
+                exchange.getResponseHeaders().set("ETag", "\"v1\"");
+                AppThwackStubServer.send(exchange, 200, "application/json", "{\"status\": \"running\"}".getBytes("UTF-8"));
+            }
+        });
+        server.handle("/run/1/8/status", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                if(exchange.getRequestHeaders().containsKey("If-None-Match")) {
+                    conditional.incrementAndGet();
+                }
+                exchange.getResponseHeaders().set("ETag", "\"v1\"");
+                exchange.getResponseHeaders().set("Cache-Control", "no-store");
+                AppThwackStubServer.send(exchange, 200, "application/json", "{\"status\": \"running\"}".getBytes("UTF-8"));
+            }
+        });
+        AppThwackClientConfig config = new AppThwackClientConfig();
+        config.setResponseCacheCapacity(1 << 20);
+        config.setResponseCacheTtl("project", 60000);
+        AppThwackApi api = new AppThwackApi(ApiKey, server.getDomain(), AppThwackStubServer.Root, config);
+        try {
+            AppThwackProject project = api.getProject(1);
+            for(int i = 0; i < 3; i++) {
+                assertEquals("running", project.getRun(7).getStatus());
+                assertEquals("running", project.getRun(8).getStatus());
+            }
+            assertEquals(3, server.getRequestCount("/run/1/7/status"));
+            assertEquals(2, notModified.get());
+            assertEquals(3, server.getRequestCount("/run/1/8/status"));
+            assertEquals(0, conditional.get());
+
+            // The project list is fresh for a minute, so it is not requested again.
+            api.invalidateProjects();
+            assertEquals("My Project", api.getProject(1).name);
+            assertEquals(1, server.getRequestCount("/project"));
+        }
+        finally {
+            api.close();
+        }
+    }
+
+    /**
+     * A response whose Content-Length exceeds the cache capacity is passed on unread and
+     * not stored; a smaller one is stored.
+     */
+    public void testOversizedResponseNotBuffered() throws Exception {
+        final AtomicInteger read = new AtomicInteger();
+        final AtomicInteger length = new AtomicInteger(4096);
+        final AtomicReference<Client> client = new AtomicReference<Client>();
+        client.set(new Client(new ClientHandler() {
+            public ClientResponse handle(ClientRequest request) {
+                InBoundHeaders headers = new InBoundHeaders();
+                headers.putSingle("Content-Length", String.valueOf(length.get()));
+                headers.putSingle("ETag", "\"v1\"");
+                ByteArrayInputStream body = new ByteArrayInputStream(new byte[length.get()]) {
+                    @Override
+                    public synchronized int read(byte[] b, int off, int len) {
+                        int n = super.read(b, off, len);
+                        read.addAndGet(Math.max(n, 0));
+                        return n;
+                    }
+                };
+                return new ClientResponse(200, headers, body, client.get().getMessageBodyWorkers());
+            }
+        }));
+        AppThwackClientConfig config = new AppThwackClientConfig();
+        config.setResponseCacheCapacity(1024);
+        AppThwackCachingFilter filter = new AppThwackCachingFilter(client.get().getMessageBodyWorkers(), AppThwackStubServer.Root, config);
+        client.get().addFilter(filter);
+
+        ClientResponse response = client.get().resource("http://localhost/api/project").get(ClientResponse.class);
+        assertEquals(0, read.get());
+        assertEquals(4096, response.getEntity(byte[].class).length);
+        assertEquals(0, filter.size());
+
+        length.set(512);
+        client.get().resource("http://localhost/api/project").get(ClientResponse.class).close();
+        assertEquals(1, filter.size());
+        assertEquals(512, filter.getWeight());
+    }
+
+    /**
+     * A GET whose connection is reset after the request was sent, as happens when the server
+     * closes a pooled connection just as it is reused, is sent again.
+     */
+    public void testGetRetriedAfterReset() throws Exception {
+        final ServerSocket listener = new ServerSocket(0);
+        final AtomicInteger connections = new AtomicInteger();
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        Socket socket = listener.accept();
+                        try {
+                            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+                            for(String line = reader.readLine(); line != null && !line.isEmpty(); line = reader.readLine()) {
+                                // Skip the request headers.
+                            }
+                            if(connections.incrementAndGet() == 1) {
+                                socket.setSoLinger(true, 0);
+                                continue;
+                            }
+                            byte[] body = "[{\"id\": 1, \"name\": \"My Project\", \"url\": \"my-project\"}]".getBytes("UTF-8");
+                            OutputStream out = socket.getOutputStream();
+                            out.write(String.format("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: %d\r\nConnection: close\r\n\r\n",
+                                    body.length).getBytes("US-ASCII"));
+                            out.write(body);
+                            out.flush();
+                        }
+                        finally {
+                            socket.close();
+                        }
+                    }
+                }
+                catch (IOException e) {
+                    // The listener was closed.
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        AppThwackApi api = new AppThwackApi(ApiKey, String.format("http://127.0.0.1:%d", listener.getLocalPort()), AppThwackStubServer.Root);
+        try {
+            assertEquals("My Project", api.getProject(1).name);
+            assertEquals(2, connections.get());
+        }
+        finally {
+            api.close();
+            listener.close();
+        }
+    }
+
+    /**
+     * Disabling keep-alive opens a fresh connection for every request.
+     */
+    public void testKeepAliveDisabled() {
+        AppThwackClientConfig config = new AppThwackClientConfig();
+        config.setKeepAlive(false);
+        AppThwackApi api = new AppThwackApi(ApiKey, server.getDomain(), AppThwackStubServer.Root, config);
+        for(int i = 0; i < 5; i++) {
+            api.getProjects();
+        }
+        api.close();
+        assertEquals(5, server.getConnectionCount());
+    }
+}
@@ -0,0 +1,325 @@
+package com.appthwack.appthwack;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+public class AppThwackDownloadTest extends TestCase {
+
+    private static final String ApiKey = "test-api-key";
+    private static final int ArchiveSize = 3 * 1024 * 1024 + 5;
+
+    private AppThwackStubServer server;
+    private AppThwackApi api;
+    private AppThwackRun run;
+    private byte[] archive;
+    private Path destination;
+
+    public AppThwackDownloadTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(AppThwackDownloadTest.class);
+    }
+
+    protected void setUp() throws Exception {
+        archive = new byte[ArchiveSize];
+        new Random(11).nextBytes(archive);
+
+        server = new AppThwackStubServer();
+        server.respondJson("/project", "[{\"id\": 1, \"name\": \"My Project\", \"url\": \"my-project\"}]");
+        server.handle("/run/1/7", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                assertEquals("format=archive", exchange.getRequestURI().getQuery());
+                if(exchange.getRequestMethod().equals("HEAD")) {
+                    exchange.getResponseHeaders().set("Content-Type", "application/zip");
+                    exchange.sendResponseHeaders(200, -1);
+                    exchange.close();
+                    return;
+                }
+                AppThwackStubServer.send(exchange, 200, "application/zip", archive);
+            }
+        });
+        api = new AppThwackApi(ApiKey, server.getDomain(), AppThwackStubServer.Root);
+        run = api.getProject(1).getRun(7);
+
+        File file = File.createTempFile("appthwack", ".zip");
+        destination = file.toPath();
+    }
+
+    protected void tearDown() throws IOException {
+        api.close();
+        server.stop();
+        Files.deleteIfExists(destination);
+    }
+
+    /**
+     * AppThwackRun.downloadResults(Path, String)
+     */
+    public void testDownloadToPath() throws Exception {
+        assertEquals(ArchiveSize, run.downloadResults(destination, sha256(archive)));
+        assertTrue(Arrays.equals(archive, Files.readAllBytes(destination)));
+    }
+
+    /**
+     * AppThwackRun.downloadResults(OutputStream)
+     */
+    public void testDownloadToStream() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(ArchiveSize, run.downloadResults(out));
+        assertTrue(Arrays.equals(archive, out.toByteArray()));
+    }
+
+    /**
+     * AppThwackRun.downloadResults(Path, String) with the wrong checksum.
+     */
+    public void testChecksumMismatchDeletesFile() {
+        try {
+            run.downloadResults(destination, sha256(new byte[0]));
+            fail("download accepted a corrupt archive");
+        }
+        catch (AppThwackException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("results checksum mismatch"));
+        }
+        assertFalse(Files.exists(destination));
+    }
+
+    /**
+     * A destination which cannot be opened for writing is left in place, by both the single
+     * stream and the ranged download.
+     */
+    public void testUnwritableDestinationKept() throws Exception {
+        Files.delete(destination);
+        Files.createDirectory(destination);
+        try {
+            run.downloadResults(destination, null);
+            fail("download wrote into a directory");
+        }
+        catch (AppThwackException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("unable to download results"));
+        }
+        assertTrue(Files.isDirectory(destination));
+
+        server.handle("/run/1/7", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+                exchange.getResponseHeaders().set("Content-Length", String.valueOf(archive.length));
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+            }
+        });
+        try {
+            run.downloadResults(destination, null, 4);
+            fail("download wrote into a directory");
+        }
+        catch (AppThwackException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("unable to download results"));
+        }
+        assertTrue(Files.isDirectory(destination));
+        Files.delete(destination);
+    }
+
+    /**
+     * AppThwackRun.downloadResults(Path, String, int) against a server which supports ranges
+     * and drops one of the range transfers halfway.
+     */
+    public void testParallelRangedDownload() throws Exception {
+        final AtomicInteger ranges = new AtomicInteger();
+        final AtomicBoolean dropped = new AtomicBoolean();
+        server.handle("/run/1/7", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+                exchange.getResponseHeaders().set("ETag", "\"v1\"");
+                if(exchange.getRequestMethod().equals("HEAD")) {
+                    exchange.getResponseHeaders().set("Content-Length", String.valueOf(archive.length));
+                    exchange.sendResponseHeaders(200, -1);
+                    exchange.close();
+                    return;
+                }
+                ranges.incrementAndGet();
+                assertEquals("\"v1\"", exchange.getRequestHeaders().getFirst("If-Range"));
+                String[] range = exchange.getRequestHeaders().getFirst("Range").substring("bytes=".length()).split("-");
+                int first = Integer.parseInt(range[0]);
+                int last = Integer.parseInt(range[1]);
+                exchange.getResponseHeaders().set("Content-Range", String.format("bytes %d-%d/%d", first, last, archive.length));
+                exchange.sendResponseHeaders(206, last - first + 1);
+                OutputStream out = exchange.getResponseBody();
+                if(first == AppThwackParallelDownload.MinimumSegmentSize && dropped.compareAndSet(false, true)) {
+                    out.write(archive, first, (last - first) / 2);
+                    out.flush();
+                    throw new IOException("injected failure");
+                }
+                out.write(archive, first, last - first + 1);
+                out.close();
+            }
+        });
+
+        assertEquals(ArchiveSize, run.downloadResults(destination, sha256(archive), 4));
+        assertTrue(Arrays.equals(archive, Files.readAllBytes(destination)));
+        assertEquals("one range per segment plus one resumed range", 5, ranges.get());
+    }
+
+    /**
+     * AppThwackRun.downloadResults(Path, String, int, AppThwackRetryPolicy) gives up on a
+     * failing range once the given policy is exhausted.
+     */
+    public void testParallelDownloadRetryPolicy() throws Exception {
+        final AtomicInteger failed = new AtomicInteger();
+        server.handle("/run/1/7", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+                if(exchange.getRequestMethod().equals("HEAD")) {
+                    exchange.getResponseHeaders().set("Content-Length", String.valueOf(archive.length));
+                    exchange.sendResponseHeaders(200, -1);
+                    exchange.close();
+                    return;
+                }
+                String[] range = exchange.getRequestHeaders().getFirst("Range").substring("bytes=".length()).split("-");
+                int first = Integer.parseInt(range[0]);
+                int last = Integer.parseInt(range[1]);
+                if(first == AppThwackParallelDownload.MinimumSegmentSize) {
+                    failed.incrementAndGet();
+                    AppThwackStubServer.send(exchange, 503, "text/plain", new byte[0]);
+                    return;
+                }
+                exchange.getResponseHeaders().set("Content-Range", String.format("bytes %d-%d/%d", first, last, archive.length));
+                exchange.sendResponseHeaders(206, last - first + 1);
+                OutputStream out = exchange.getResponseBody();
+                out.write(archive, first, last - first + 1);
+                out.close();
+            }
+        });
+
+        AppThwackRetryPolicy retry = new AppThwackRetryPolicy(2);
+        retry.setInitialBackoff(10);
+        try {
+            run.downloadResults(destination, null, 4, retry);
+            fail("download succeeded despite a failing range");
+        }
+        catch (AppThwackException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("after 2 attempts"));
+        }
+        assertEquals(2, failed.get());
+    }
+
+    /**
+     * AppThwackRun.downloadResults(Path, String, int) against a server without ranges.
+     */
+    public void testParallelDownloadFallsBackToSingleStream() throws Exception {
+        assertEquals(ArchiveSize, run.downloadResults(destination, sha256(archive), 4));
+        assertTrue(Arrays.equals(archive, Files.readAllBytes(destination)));
+    }
+
+    /**
+     * AppThwackResultArchive.entries(String, String, EnumSet) over a downloaded archive.
+     */
+    public void testArchiveFiltersEntries() throws Exception {
+        Files.write(destination, zip());
+        AppThwackResultArchive archive = AppThwackResultArchive.open(destination);
+        try {
+            List<String> names = new ArrayList<String>();
+            for(AppThwackResultArchive.Entry entry : archive.entries("nexus", null, EnumSet.of(AppThwackResultArchive.EntryType.Log))) {
+                names.add(entry.getName());
+            }
+            assertEquals(Arrays.asList("Nexus 5 - 4.4/JUnit/logcat.txt", "Nexus 5 - 4.4/AppExplorer/logcat.txt"), names);
+
+            int screenshots = 0;
+            for(AppThwackResultArchive.Entry entry : archive.entries(null, "junit", EnumSet.of(AppThwackResultArchive.EntryType.Screenshot))) {
+                assertEquals("JUnit", entry.getJob());
+                screenshots++;
+            }
+            assertEquals(2, screenshots);
+
+            AppThwackResultArchive.Entry entry = archive.getEntry("Galaxy S4 - 4.3/JUnit/logcat.txt");
+            assertEquals("Galaxy S4 - 4.3", entry.getDevice());
+            assertEquals("galaxy logcat", read(entry.open()));
+        }
+        finally {
+            archive.close();
+        }
+    }
+
+    /**
+     * AppThwackRun.openResultsArchive()
+     */
+    public void testArchiveStreamedFromConnection() throws Exception {
+        archive = zip();
+        AppThwackResultArchive archive = run.openResultsArchive();
+        try {
+            List<String> logs = new ArrayList<String>();
+            for(AppThwackResultArchive.Entry entry : archive.entries("galaxy", null, EnumSet.of(AppThwackResultArchive.EntryType.Log))) {
+                logs.add(read(entry.open()));
+            }
+            assertEquals(Arrays.asList("galaxy logcat"), logs);
+            try {
+                archive.entries().iterator();
+                fail("streamed archive iterated twice");
+            }
+            catch (IllegalStateException e) {
+                // Expected.
+            }
+        }
+        finally {
+            archive.close();
+        }
+    }
+
+    private static byte[] zip() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(bytes);
+        String[][] entries = {
+                {"Nexus 5 - 4.4/", null},
+                {"Nexus 5 - 4.4/JUnit/logcat.txt", "nexus logcat"},
+                {"Nexus 5 - 4.4/JUnit/screenshot-1.png", "png"},
+                {"Nexus 5 - 4.4/AppExplorer/logcat.txt", "nexus explorer logcat"},
+                {"Galaxy S4 - 4.3/JUnit/logcat.txt", "galaxy logcat"},
+                {"Galaxy S4 - 4.3/JUnit/screenshot-1.png", "png"},
+                {"Galaxy S4 - 4.3/JUnit/performance.json", "{}"},
+        };
+        for(String[] entry : entries) {
+            zip.putNextEntry(new ZipEntry(entry[0]));
+            if(entry[1] != null) {
+                zip.write(entry[1].getBytes("UTF-8"));
+            }
+            zip.closeEntry();
+        }
+        zip.close();
+        return bytes.toByteArray();
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return out.toString("UTF-8");
+    }
+
+    static String sha256(byte[] data) {
+        return AppThwackUploadCache.hex(AppThwackUploadCache.sha256().digest(data));
+    }
+}
@@ -0,0 +1,152 @@
+package com.appthwack.appthwack;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import com.appthwack.appthwack.AppThwackCompactResult.Outcome;
+import com.appthwack.appthwack.AppThwackHistoryStore.Match;
+import com.appthwack.appthwack.AppThwackHistoryStore.Query;
+import com.appthwack.appthwack.AppThwackHistoryStore.StoredRun;
+
+public class AppThwackHistoryTest extends TestCase {
+
+    private static final int Devices = 4;
+    private static final int Tests = 30;
+    private static final int FailEvery = 7;
+    private static final long Day = 24L * 60 * 60 * 1000;
+
+    private Path directory;
+    private AppThwackResult result;
+
+    public AppThwackHistoryTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(AppThwackHistoryTest.class);
+    }
+
+    protected void setUp() throws Exception {
+        directory = Files.createTempDirectory("appthwack-history");
+        result = new ObjectMapper().readValue(AppThwackResultFixture.json(Devices, Tests, FailEvery), AppThwackResult.class);
+    }
+
+    protected void tearDown() throws Exception {
+        File[] files = directory.toFile().listFiles();
+        for(File file : files) {
+            file.delete();
+        }
+        Files.delete(directory);
+    }
+
+    /**
+     * AppThwackHistoryStore.findTests(Query) and findRuns(Query), after reopening the store.
+     */
+    public void testQueryStoredRuns() throws Exception {
+        AppThwackHistoryStore store = AppThwackHistoryStore.open(directory, 16 * 1024);
+        for(int run = 0; run < 10; run++) {
+            store.add(run < 6 ? 1 : 2, 100 + run, run * Day, result);
+        }
+        store.close();
+        assertTrue("records were not split into segments", directory.resolve("segment-00001").toFile().exists());
+
+        store = AppThwackHistoryStore.open(directory);
+        try {
+            assertEquals(10, store.size());
+            StoredRun stored = store.get(103);
+            assertEquals(3 * Day, stored.time);
+            assertEquals(Devices * Tests, stored.tests.size());
+            assertEquals(Devices, stored.performance.size());
+            assertEquals(result.summary.name, stored.summary.name);
+            assertNull(store.get(1));
+
+            Query query = new Query();
+            query.setProjectId(1);
+            query.setFrom(2 * Day);
+            query.setTo(5 * Day);
+            assertEquals(3, store.findRuns(query).size());
+
+            query.setDevice("101");
+            query.setOutcome(Outcome.Failure);
+            int failures = 0;
+            for(int t = 0; t < Tests; t++) {
+                failures += AppThwackResultFixture.isFailure(1, t, FailEvery) ? 1 : 0;
+            }
+            List<Match> matches = store.findTests(query);
+            assertEquals(3 * failures, matches.size());
+            assertEquals(102, matches.get(0).runId);
+            assertEquals("JUnit", matches.get(0).test.job);
+
+            Query byName = new Query();
+            byName.setTestName(AppThwackResultFixture.testName(3));
+            assertEquals(10 * Devices, store.findTests(byName).size());
+            byName.setTestName("missing");
+            assertTrue(store.findRuns(byName).isEmpty());
+
+            // Storing a run again replaces it.
+            store.add(2, 103, 20 * Day, result);
+            assertEquals(10, store.size());
+            assertEquals(2, store.get(103).projectId);
+            assertEquals(2, store.findRuns(query).size());
+        }
+        finally {
+            store.close();
+        }
+    }
+
+    /**
+     * AppThwackHistoryStore.add(AppThwackRun) stores the run under its start time.
+     */
+    public void testAddRunUsesStartTime() throws Exception {
+        String json = AppThwackResultFixture.json(Devices, Tests, FailEvery)
+                .replace("\"status\": \"completed\"", "\"status\": \"completed\", \"start_date\": \"2026-10-01\", \"start_time\": \"12:30:00\"");
+        AppThwackStubServer server = new AppThwackStubServer();
+        server.respondJson("/project", "[{\"id\": 1, \"name\": \"My Project\", \"url\": \"my-project\"}]");
+        server.respondJson("/run/1/7", json);
+        server.respondJson("/run/1/8", AppThwackResultFixture.json(Devices, Tests, FailEvery));
+        AppThwackApi api = new AppThwackApi("test-api-key", server.getDomain(), AppThwackStubServer.Root);
+        AppThwackHistoryStore store = AppThwackHistoryStore.open(directory);
+        try {
+            StoredRun started = store.add(api.getProject(1).getRun(7));
+            assertEquals(Instant.parse("2026-10-01T12:30:00Z").toEpochMilli(), started.time);
+            assertEquals(1, started.projectId);
+
+            // Without a start time the run is stored as of now.
+            long before = System.currentTimeMillis();
+            StoredRun undated = store.add(api.getProject(1).getRun(8));
+            assertTrue(undated.time >= before && undated.time <= System.currentTimeMillis());
+        }
+        finally {
+            store.close();
+            api.close();
+            server.stop();
+        }
+    }
+
+    /**
+     * A store cannot be opened twice at once.
+     */
+    public void testStoreLocked() throws Exception {
+        AppThwackHistoryStore store = AppThwackHistoryStore.open(directory);
+        try {
+            AppThwackHistoryStore.open(directory);
+            fail("expected the store to be locked");
+        }
+        catch (AppThwackException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("already open"));
+        }
+        finally {
+            store.close();
+        }
+        AppThwackHistoryStore.open(directory).close();
+    }
+}
@@ -0,0 +1,142 @@
+package com.appthwack.appthwack;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AppThwackLookupCacheTest extends TestCase {
+
+    /**
+     * Cache of "id:name" strings which counts its fetches.
+     */
+    private static class CountingCache extends AppThwackLookupCache<String> {
+        final AtomicInteger fetches = new AtomicInteger();
+        volatile List<String> items = Arrays.asList("1:Alpha", "2:Beta");
+        volatile long fetchTime;
+
+        CountingCache(long ttl) {
+            super(ttl);
+        }
+
+        @Override
+        protected List<String> fetch() {
+            fetches.incrementAndGet();
+            if(fetchTime > 0) {
+                try {
+                    Thread.sleep(fetchTime);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return items;
+        }
+
+        @Override
+        protected Integer idOf(String item) {
+            return Integer.valueOf(item.substring(0, item.indexOf(':')));
+        }
+
+        @Override
+        protected String nameOf(String item) {
+            return item.substring(item.indexOf(':') + 1);
+        }
+    }
+
+    public AppThwackLookupCacheTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(AppThwackLookupCacheTest.class);
+    }
+
+    /**
+     * Lookups by id and by case-insensitive name share one fetch until the TTL passes.
+     */
+    public void testExpiresAfterTtl() throws Exception {
+        CountingCache cache = new CountingCache(200);
+        assertEquals("1:Alpha", cache.get(1));
+        assertEquals("2:Beta", cache.get("BETA"));
+        assertNull(cache.get(3));
+        assertNull(cache.get((String)null));
+        assertEquals(1, cache.fetches.get());
+
+        cache.items = Arrays.asList("1:Alpha", "2:Beta", "3:Gamma");
+        assertNull(cache.get("gamma"));
+        Thread.sleep(300);
+        assertEquals("3:Gamma", cache.get("gamma"));
+        assertEquals(2, cache.fetches.get());
+    }
+
+    /**
+     * A TTL of zero fetches on every lookup.
+     */
+    public void testZeroTtlDisablesCaching() {
+        CountingCache cache = new CountingCache(0);
+        cache.get(1);
+        cache.get(2);
+        cache.getAll();
+        assertEquals(3, cache.fetches.get());
+    }
+
+    /**
+     * invalidate() makes the next lookup fetch; put() replaces the contents without one.
+     */
+    public void testInvalidateAndPut() {
+        CountingCache cache = new CountingCache(60000);
+        cache.get(1);
+        cache.invalidate();
+        cache.get(1);
+        assertEquals(2, cache.fetches.get());
+
+        cache.put(Arrays.asList("7:Delta"));
+        assertEquals("7:Delta", cache.get("delta"));
+        assertNull(cache.get(1));
+        assertEquals(1, cache.getAll().size());
+        assertEquals(2, cache.fetches.get());
+
+        cache.refresh();
+        assertEquals("1:Alpha", cache.get(1));
+        assertEquals(3, cache.fetches.get());
+    }
+
+    /**
+     * Threads which find the cache stale at the same time share a single fetch.
+     */
+    public void testSingleFlightRefresh() throws Exception {
+        final CountingCache cache = new CountingCache(60000);
+        cache.fetchTime = 200;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger found = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(20);
+        for(int i = 0; i < 20; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        if("1:Alpha".equals(cache.get(1))) {
+                            found.incrementAndGet();
+                        }
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue("lookups did not finish in time", executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(20, found.get());
+        assertEquals(1, cache.fetches.get());
+    }
+}
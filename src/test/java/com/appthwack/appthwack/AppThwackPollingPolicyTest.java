@@ -0,0 +1,92 @@
+package com.appthwack.appthwack;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.HashSet;
+import java.util.Set;
+
+public class AppThwackPollingPolicyTest extends TestCase {
+
+    private static final int Samples = 200;
+
+    public AppThwackPollingPolicyTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(AppThwackPollingPolicyTest.class);
+    }
+
+    private static AppThwackResult.ResultSummary summary(Integer count, Integer completed) {
+        AppThwackResult.ResultSummary summary = new AppThwackResult.ResultSummary();
+        summary.status = "running";
+        summary.count = count;
+        summary.completed = completed;
+        return summary;
+    }
+
+    /**
+     * Sample the policy and check every delay lies within [low, high] and the delays are spread out.
+     */
+    private static void assertSpread(AppThwackPollingPolicy policy, AppThwackResult.ResultSummary summary,
+                                     int attempt, long elapsed, long low, long high) {
+        Set<Long> seen = new HashSet<Long>();
+        for(int i = 0; i < Samples; i++) {
+            long delay = policy.nextDelay(summary, attempt, elapsed);
+            assertTrue(String.format("%d not in [%d, %d]", delay, low, high), delay >= low && delay <= high);
+            seen.add(delay);
+        }
+        assertTrue("delays are in lock-step", seen.size() > Samples / 4);
+    }
+
+    /**
+     * Without jitter, queued runs back off exponentially up to the maximum interval and
+     * running runs wait a fraction of the estimated remaining time.
+     */
+    public void testEstimateWithoutJitter() {
+        AppThwackAdaptivePollingPolicy policy = new AppThwackAdaptivePollingPolicy();
+        policy.setJitter(0);
+        assertEquals(5000, policy.nextDelay(null, 1, 0));
+        assertEquals(10000, policy.nextDelay(summary(10, 0), 2, 0));
+        assertEquals(40000, policy.nextDelay(summary(10, 0), 4, 0));
+        assertEquals(60000, policy.nextDelay(summary(10, 0), 30, 0));
+
+        // Half of ten tests took 100 s, so the rest should take 100 s; wait half of that.
+        assertEquals(50000, policy.nextDelay(summary(10, 5), 3, 100 * 1000));
+        assertEquals(5000, policy.nextDelay(summary(10, 9), 3, 1000));
+        assertEquals(5000, policy.nextDelay(summary(10, 10), 3, 100 * 1000));
+    }
+
+    /**
+     * Jitter is applied after clamping, so capped backoff and the floor are spread too.
+     */
+    public void testJitterStaysWithinBounds() {
+        AppThwackAdaptivePollingPolicy policy = new AppThwackAdaptivePollingPolicy();
+        assertSpread(policy, summary(10, 0), 30, 0, 48000, 60000);
+        assertSpread(policy, summary(10, 10), 3, 1000, 5000, 6000);
+        assertSpread(policy, summary(10, 5), 3, 100 * 1000, 40000, 60000);
+    }
+
+    /**
+     * Custom bounds are honoured by both the estimate and the jitter.
+     */
+    public void testCustomBounds() {
+        AppThwackAdaptivePollingPolicy policy = new AppThwackAdaptivePollingPolicy();
+        policy.setMinimumInterval(1000);
+        policy.setMaximumInterval(2000);
+        policy.setJitter(0.5);
+        assertSpread(policy, summary(10, 0), 10, 0, 1000, 2000);
+        assertSpread(policy, summary(10, 10), 1, 0, 1000, 1500);
+    }
+
+    /**
+     * The fixed policy always returns its interval.
+     */
+    public void testFixed() {
+        AppThwackPollingPolicy policy = AppThwackPollingPolicy.fixed(7000);
+        assertEquals(7000, policy.nextDelay(null, 1, 0));
+        assertEquals(7000, policy.nextDelay(summary(10, 5), 20, 1000000));
+    }
+}
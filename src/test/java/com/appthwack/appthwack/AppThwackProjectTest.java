@@ -0,0 +1,85 @@
+package com.appthwack.appthwack;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class AppThwackProjectTest extends TestCase {
+
+    private static final String ApiKey = "test-api-key";
+
+    private AppThwackStubServer server;
+    private AppThwackApi api;
+
+    public AppThwackProjectTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(AppThwackProjectTest.class);
+    }
+
+    protected void setUp() throws Exception {
+        server = new AppThwackStubServer();
+        server.respondJson("/project", "[{\"id\": 1, \"name\": \"My Project\", \"url\": \"my-project\"}]");
+        server.respondJson("/devicepool/1", "[{\"id\": 10, \"name\": \"All Devices\"}, {\"id\": 11, \"name\": \"Top 10\"}]");
+        api = new AppThwackApi(ApiKey, server.getDomain(), AppThwackStubServer.Root);
+    }
+
+    protected void tearDown() {
+        api.close();
+        server.stop();
+    }
+
+    /**
+     * Lookups by id and by case-insensitive name are served from one request.
+     */
+    public void testDevicePoolIndexes() {
+        AppThwackProject project = api.getProject(1);
+        assertEquals("Top 10", project.getDevicePool(11).name);
+        assertEquals(Integer.valueOf(10), project.getDevicePool("all devices").id);
+        assertEquals(Integer.valueOf(11), project.getDevicePool("TOP 10").id);
+        assertNull(project.getDevicePool(12));
+        assertNull(project.getDevicePool("Missing"));
+        assertEquals(1, server.getRequestCount("/devicepool/1"));
+    }
+
+    /**
+     * Cached pools are fetched again once the TTL has passed or the cache is invalidated.
+     */
+    public void testDevicePoolTtl() throws Exception {
+        AppThwackProject project = api.getProject(1);
+        project.setDevicePoolCacheTtl(200);
+        project.getDevicePool(10);
+        project.getDevicePool(11);
+        assertEquals(1, server.getRequestCount("/devicepool/1"));
+        Thread.sleep(300);
+        project.getDevicePool(10);
+        assertEquals(2, server.getRequestCount("/devicepool/1"));
+
+        project.invalidateDevicePools();
+        project.getDevicePool(10);
+        assertEquals(3, server.getRequestCount("/devicepool/1"));
+    }
+
+    /**
+     * refreshDevicePools() and getDevicePools() always fetch and replace the cached pools.
+     */
+    public void testDevicePoolRefresh() {
+        AppThwackProject project = api.getProject(1);
+        assertNull(project.getDevicePool("New Pool"));
+        server.respondJson("/devicepool/1", "[{\"id\": 10, \"name\": \"All Devices\"}, {\"id\": 12, \"name\": \"New Pool\"}]");
+        assertNull(project.getDevicePool("New Pool"));
+
+        project.refreshDevicePools();
+        assertEquals(Integer.valueOf(12), project.getDevicePool("new pool").id);
+        assertNull(project.getDevicePool(11));
+        assertEquals(2, server.getRequestCount("/devicepool/1"));
+
+        server.respondJson("/devicepool/1", "[{\"id\": 13, \"name\": \"Latest\"}]");
+        assertEquals(1, project.getDevicePools().size());
+        assertEquals("Latest", project.getDevicePool(13).name);
+        assertNull(project.getDevicePool(10));
+        assertEquals(3, server.getRequestCount("/devicepool/1"));
+    }
+}
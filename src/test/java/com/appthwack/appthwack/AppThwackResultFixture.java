@@ -0,0 +1,132 @@
+package com.appthwack.appthwack;
+
+/**
+ * Builds run result documents of arbitrary size, shaped like the AppThwack results endpoint.
+ * Every test runs on every device; every {@code failEvery}th (device, test) pair fails.
+ */
+public class AppThwackResultFixture {
+
+    private AppThwackResultFixture() {
+
+    }
+
+    public static String json(int devices, int tests, int failEvery) {
+        return json(devices, tests, failEvery, "%d", false);
+    }
+
+    /**
+     * Like {@link #json(int, int, int)}, but every per-device average is reported as
+     * "&lt;n&gt;.5 units" to exercise fractional values with a trailing unit, and the
+     * performance summary also reports FPS and frame draw time.
+     */
+    public static String jsonWithUnits(int devices, int tests, int failEvery) {
+        return json(devices, tests, failEvery, "%d.5 units", true);
+    }
+
+    private static String json(int devices, int tests, int failEvery, String avgFormat, boolean frames) {
+        StringBuilder sb = new StringBuilder();
+        int failures = 0;
+        for(int d = 0; d < devices; d++) {
+            for(int t = 0; t < tests; t++) {
+                failures += isFailure(d, t, failEvery) ? 1 : 0;
+            }
+        }
+        sb.append("{\"summary\": {\"id\": 7, \"status\": \"completed\", \"name\": \"nightly\", \"initiator\": \"ci\"")
+          .append(", \"result\": \"").append(failures > 0 ? "fail" : "pass").append("\"")
+          .append(", \"count\": ").append(devices).append(", \"completed\": ").append(devices)
+          .append(", \"pass_count\": ").append(devices * tests - failures).append(", \"failure_count\": ").append(failures)
+          .append(", \"warning_count\": 0, \"error_count\": 0, \"report_file\": \"report.zip\"}");
+        for(String outcome : new String[] {"passes", "warnings", "failures"}) {
+            boolean fail = outcome.equals("failures");
+            boolean none = outcome.equals("warnings");
+            sb.append(", \"").append(outcome).append("_by_job\": [");
+            container(sb, "1", "JUnit", -1, devices, tests, failEvery, fail, none);
+            sb.append("], \"").append(outcome).append("_by_type\": [");
+            container(sb, "junit", "Instrumentation", -1, devices, tests, failEvery, fail, none);
+            sb.append("], \"").append(outcome).append("_by_device\": [");
+            for(int d = 0; d < devices; d++) {
+                if(d > 0) {
+                    sb.append(", ");
+                }
+                container(sb, String.valueOf(100 + d), deviceName(d), d, devices, tests, failEvery, fail, none);
+            }
+            sb.append("]");
+        }
+        sb.append(", \"performance_summary\": {\"CPU_max\": ").append(summary(0, "93"));
+        if(frames) {
+            int last = Math.max(0, devices - 1);
+            sb.append(", \"FPS_min\": ").append(summary(last, "30"))
+              .append(", \"FPS_avg\": ").append(summary(0, "55.5"))
+              .append(", \"FPS_max\": ").append(summary(0, "60"))
+              .append(", \"AvgFrameDrawTime_min\": ").append(summary(0, "12 ms"))
+              .append(", \"AvgFrameDrawTime_avg\": ").append(summary(1 % devices, "16.5 ms"))
+              .append(", \"AvgFrameDrawTime_max\": ").append(summary(last, "33 ms"));
+        }
+        sb.append("}");
+        sb.append(", \"performance\": [");
+        for(int d = 0; d < devices; d++) {
+            if(d > 0) {
+                sb.append(", ");
+            }
+            sb.append("{\"device\": ").append(device(d))
+              .append(", \"cpu\": ").append(performance("cpu", 10 + d, 50 + d, 90 + d, avgFormat))
+              .append(", \"memory\": ").append(performance("memory", 1000 + d, 2000 + d, 4000 + d, avgFormat))
+              .append(", \"threads\": ").append(performance("threads", 5, 10, 20 + d % 3, avgFormat))
+              .append("}");
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    public static boolean isFailure(int device, int test, int failEvery) {
+        return failEvery > 0 && (device * 31 + test) % failEvery == 0;
+    }
+
+    public static String deviceName(int device) {
+        return String.format("Device %d", device);
+    }
+
+    public static String testName(int test) {
+        return String.format("com.example.AppTest#test%d", test);
+    }
+
+    private static void container(StringBuilder sb, String id, String name, int onlyDevice,
+            int devices, int tests, int failEvery, boolean failures, boolean none) {
+        sb.append("{\"id\": \"").append(id).append("\", \"name\": \"").append(name)
+          .append("\", \"description\": \"").append(name).append("\", \"results\": [");
+        boolean first = true;
+        for(int d = 0; d < devices; d++) {
+            if(onlyDevice >= 0 && d != onlyDevice) {
+                continue;
+            }
+            for(int t = 0; t < tests; t++) {
+                if(none || isFailure(d, t, failEvery) != failures) {
+                    continue;
+                }
+                if(!first) {
+                    sb.append(", ");
+                }
+                first = false;
+                sb.append("{\"id\": ").append(d * tests + t)
+                  .append(", \"name\": \"").append(testName(t))
+                  .append("\", \"message\": \"").append(failures ? "AssertionError" : "")
+                  .append("\", \"description\": \"").append(deviceName(d)).append("\"}");
+            }
+        }
+        sb.append("]}");
+    }
+
+    private static String summary(int d, String value) {
+        return String.format("{\"device\": %s, \"value\": \"%s\"}", device(d), value);
+    }
+
+    private static String device(int d) {
+        return String.format("{\"id\": %d, \"name\": \"%s\", \"os_version\": \"4.%d\"}", 100 + d, deviceName(d), d % 3);
+    }
+
+    private static String performance(String name, int min, int avg, int max, String avgFormat) {
+        return String.format("{\"min\": {\"name\": \"%1$s\", \"value\": \"%2$d\", \"timestamp\": \"1\"}, "
+                + "\"avg\": {\"name\": \"%1$s\", \"value\": \"%3$s\", \"timestamp\": \"2\"}, "
+                + "\"max\": {\"name\": \"%1$s\", \"value\": \"%4$d\", \"timestamp\": \"3\"}}", name, min, String.format(avgFormat, avg), max);
+    }
+}
@@ -0,0 +1,717 @@
+package com.appthwack.appthwack;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.jersey.api.client.UniformInterfaceException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import com.appthwack.appthwack.AppThwackResult.PerformanceResultContainer;
+import com.appthwack.appthwack.AppThwackResult.Result;
+import com.appthwack.appthwack.AppThwackResult.ResultContainer;
+import com.appthwack.appthwack.AppThwackResult.ResultSummary;
+import com.appthwack.appthwack.AppThwackResult.Section;
+
+public class AppThwackResultTest extends TestCase {
+
+    private static final String ApiKey = "test-api-key";
+    private static final int Devices = 6;
+    private static final int Tests = 40;
+    private static final int FailEvery = 7;
+
+    private String json;
+
+    public AppThwackResultTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(AppThwackResultTest.class);
+    }
+
+    protected void setUp() {
+        json = AppThwackResultFixture.json(Devices, Tests, FailEvery);
+    }
+
+    /**
+     * AppThwackResultReader.read(InputStream, Visitor) visits what binding the document produces.
+     */
+    public void testStreamingReaderMatchesBinding() throws Exception {
+        AppThwackResult bound = new ObjectMapper().readValue(json, AppThwackResult.class);
+
+        final Map<Section, Integer> results = new EnumMap<Section, Integer>(Section.class);
+        final List<String> devices = new ArrayList<String>();
+        final List<ResultSummary> summaries = new ArrayList<ResultSummary>();
+        final List<PerformanceResultContainer> performance = new ArrayList<PerformanceResultContainer>();
+        AppThwackResultReader.read(new ByteArrayInputStream(json.getBytes("UTF-8")), new AppThwackResultReader.Visitor() {
+            public void visitSummary(ResultSummary summary) {
+                summaries.add(summary);
+            }
+
+            public void visitResult(Section section, ResultContainer container, Result result) {
+                assertNotNull("container header not parsed before its results", container.name);
+                assertNull(container.results);
+                Integer count = results.get(section);
+                results.put(section, count == null ? 1 : count + 1);
+            }
+
+            public void visitContainer(Section section, ResultContainer container) {
+                if(section == Section.FailuresByDevice) {
+                    devices.add(container.name);
+                }
+            }
+
+            public void visitPerformance(PerformanceResultContainer p) {
+                performance.add(p);
+            }
+        });
+
+        assertEquals(1, summaries.size());
+        assertEquals(bound.summary.failures, summaries.get(0).failures);
+        assertEquals(count(bound.failuresByDevice), (int)results.get(Section.FailuresByDevice));
+        assertEquals(count(bound.passesByJob), (int)results.get(Section.PassesByJob));
+        assertNull(results.get(Section.WarningsByJob));
+        assertEquals(Devices, devices.size());
+        assertEquals(AppThwackResultFixture.deviceName(0), devices.get(0));
+        assertEquals(Devices, performance.size());
+        assertEquals("90", performance.get(0).cpu.max.value);
+    }
+
+    /**
+     * AppThwackRun.readResults(Visitor)
+     */
+    public void testReadResultsFromRun() throws Exception {
+        AppThwackStubServer server = new AppThwackStubServer();
+        server.respondJson("/project", "[{\"id\": 1, \"name\": \"My Project\", \"url\": \"my-project\"}]");
+        server.respondJson("/run/1/7", json);
+        AppThwackApi api = new AppThwackApi(ApiKey, server.getDomain(), AppThwackStubServer.Root);
+        try {
+            AppThwackRun run = api.getProject(1).getRun(7);
+            final List<Result> failures = new ArrayList<Result>();
+            run.readResults(new AppThwackResultReader.Visitor() {
+                public void visitResult(Section section, ResultContainer container, Result result) {
+                    if(section == Section.FailuresByJob) {
+                        failures.add(result);
+                    }
+                }
+            });
+            assertEquals(countFailures(), failures.size());
+            assertTrue(failures.get(0).getWebUrl().endsWith("/jobrun/" + failures.get(0).id));
+        }
+        finally {
+            api.close();
+            server.stop();
+        }
+    }
+
+    /**
+     * AppThwackRun.getResults(EnumSet) loads every missing section on the first access to one.
+     */
+    public void testSectionsLoadedLazily() throws Exception {
+        AppThwackStubServer server = new AppThwackStubServer();
+        server.respondJson("/project", "[{\"id\": 1, \"name\": \"My Project\", \"url\": \"my-project\"}]");
+        server.respondJson("/run/1/7", json);
+        AppThwackApi api = new AppThwackApi(ApiKey, server.getDomain(), AppThwackStubServer.Root);
+        try {
+            AppThwackRun run = api.getProject(1).getRun(7);
+            AppThwackResult result = run.getResults(EnumSet.of(Section.Summary, Section.FailuresByDevice));
+            assertEquals(1, server.getRequestCount("/run/1/7"));
+            assertEquals(EnumSet.of(Section.Summary, Section.FailuresByDevice), result.getLoadedSections());
+            assertNull(result.passesByJob);
+            assertTrue(result.isCompleted());
+            assertEquals(countFailures(), count(result.getFailuresByDevice()));
+            assertEquals(1, server.getRequestCount("/run/1/7"));
+
+            assertEquals(Devices * Tests - countFailures(), count(result.getPassesByJob()));
+            assertEquals(2, server.getRequestCount("/run/1/7"));
+            assertEquals(EnumSet.allOf(Section.class), result.getLoadedSections());
+            assertNotNull(result.getPassesByJob().get(0).getWebUrl());
+            assertNotNull(result.passesByType.get(0).getWebUrl());
+            assertEquals(Devices, result.getPerformanceSeries().getDeviceCount());
+            assertEquals(2, server.getRequestCount("/run/1/7"));
+
+            AppThwackResult full = run.getResults();
+            assertEquals(EnumSet.allOf(Section.class), full.getLoadedSections());
+            assertEquals(Devices, full.getPerformance().size());
+            assertEquals(3, server.getRequestCount("/run/1/7"));
+        }
+        finally {
+            api.close();
+            server.stop();
+        }
+    }
+
+    /**
+     * Loading a missing section does not hold the result's monitor while the request is made.
+     */
+    public void testSectionsLoadedOutsideLock() throws Exception {
+        final CountDownLatch requested = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        AppThwackStubServer server = new AppThwackStubServer();
+        server.respondJson("/project", "[{\"id\": 1, \"name\": \"My Project\", \"url\": \"my-project\"}]");
+        server.respondJson("/run/1/7", json);
+        AppThwackApi api = new AppThwackApi(ApiKey, server.getDomain(), AppThwackStubServer.Root);
+        try {
+            final AppThwackResult result = api.getProject(1).getRun(7).getResults(EnumSet.of(Section.Summary));
+            server.handle("/run/1/7", new HttpHandler() {
+                public void handle(HttpExchange exchange) throws IOException {
+                    requested.countDown();
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    AppThwackStubServer.send(exchange, 200, "application/json", json.getBytes("UTF-8"));
+                }
+            });
+            final AtomicInteger loaded = new AtomicInteger();
+            Thread loader = new Thread(new Runnable() {
+                public void run() {
+                    loaded.set(count(result.getFailuresByJob()));
+                }
+            });
+            loader.start();
+            assertTrue(requested.await(10, TimeUnit.SECONDS));
+            assertEquals(EnumSet.of(Section.Summary), result.getLoadedSections());
+            release.countDown();
+            loader.join(10000);
+            assertEquals(countFailures(), loaded.get());
+            assertEquals(EnumSet.allOf(Section.class), result.getLoadedSections());
+        }
+        finally {
+            release.countDown();
+            api.close();
+            server.stop();
+        }
+    }
+
+    /**
+     * AppThwackRun.getResults() revalidates runs in progress and serves completed runs from the cache.
+     */
+    public void testResultCache() throws Exception {
+        final String running = json.replace("\"status\": \"completed\"", "\"status\": \"running\"");
+        final String[] document = {running};
+        final AtomicInteger notModified = new AtomicInteger();
+        AppThwackStubServer server = new AppThwackStubServer();
+        server.respondJson("/project", "[{\"id\": 1, \"name\": \"My Project\", \"url\": \"my-project\"}]");
+        server.handle("/run/1/7", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                String etag = "\"" + document[0].hashCode() + "\"";
+                if(etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    notModified.incrementAndGet();
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                    return;
+                }
+                exchange.getResponseHeaders().set("ETag", etag);
+                AppThwackStubServer.send(exchange, 200, "application/json", document[0].getBytes("UTF-8"));
+            }
+        });
+        server.respondJson("/run/1/8", json);
+        server.handle("/run/1/9", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                AppThwackStubServer.send(exchange, 404, "text/plain", "no such run".getBytes("UTF-8"));
+            }
+        });
+        AppThwackApi api = new AppThwackApi(ApiKey, server.getDomain(), AppThwackStubServer.Root);
+        try {
+            AppThwackRun run = api.getProject(1).getRun(7);
+            AppThwackResult first = run.getResults();
+            assertFalse(first.isCompleted());
+            first.failuresByDevice = null;
+            AppThwackResult second = run.getResults();
+            assertEquals(2, server.getRequestCount("/run/1/7"));
+            assertEquals(1, notModified.get());
+            assertNotSame(first, second);
+            assertEquals(countFailures(), count(second.getFailuresByDevice()));
+            assertNotNull(second.getFailuresByDevice().get(0).getWebUrl());
+
+            // Once completed, the result is fetched once more and never revalidated again.
+            document[0] = json;
+            assertTrue(run.getResults().isCompleted());
+            assertEquals(3, server.getRequestCount("/run/1/7"));
+            assertTrue(api.getProject(1).getRun(7).getResults().isCompleted());
+            assertEquals(3, server.getRequestCount("/run/1/7"));
+
+            // Results larger than the cache are not kept.
+            api.setResultCacheCapacity(100);
+            api.getProject(1).getRun(8).getResults();
+            api.getProject(1).getRun(8).getResults();
+            assertEquals(2, server.getRequestCount("/run/1/8"));
+            assertTrue(api.getProject(1).getRun(7).getResults().isCompleted());
+            assertEquals(4, server.getRequestCount("/run/1/7"));
+
+            // A failed request keeps the error body readable.
+            try {
+                api.getProject(1).getRun(9).getResults();
+                fail();
+            }
+            catch (UniformInterfaceException e) {
+                assertEquals(404, e.getResponse().getStatus());
+                assertEquals("no such run", e.getResponse().getEntity(String.class));
+            }
+        }
+        finally {
+            api.close();
+            server.stop();
+        }
+    }
+
+    /**
+     * AppThwackCompactResult stores each test once and keeps every grouping.
+     */
+    public void testCompactResult() throws Exception {
+        AppThwackResult bound = new ObjectMapper().readValue(json, AppThwackResult.class);
+        AppThwackCompactResult compact = AppThwackCompactResult.read(new ByteArrayInputStream(json.getBytes("UTF-8")));
+
+        assertEquals(Devices * Tests, compact.size());
+        assertEquals(bound.summary.passes, compact.getSummary().passes);
+        assertEquals(Devices, compact.getPerformance().size());
+
+        List<AppThwackCompactResult.Group> byDevice = compact.getGroups(AppThwackCompactResult.Outcome.Failure, AppThwackCompactResult.Grouping.Device);
+        assertEquals(bound.failuresByDevice.size(), byDevice.size());
+        int failures = 0;
+        for(AppThwackCompactResult.Group group : byDevice) {
+            for(int k = 0; k < group.size(); k++) {
+                assertEquals(AppThwackCompactResult.Outcome.Failure, compact.getOutcome(group.get(k)));
+                assertEquals(group.getName(), compact.getDescription(group.get(k)));
+            }
+            failures += group.size();
+        }
+        assertEquals(countFailures(), failures);
+        assertTrue(compact.getGroups(AppThwackCompactResult.Outcome.Warning, AppThwackCompactResult.Grouping.Job).get(0).size() == 0);
+
+        // The same test in two groupings is the same index; repeated names share one instance.
+        Result first = bound.passesByJob.get(0).results.get(0);
+        int index = compact.indexOf(first.id);
+        assertEquals(first.name, compact.getName(index));
+        assertEquals(index, compact.getGroups(AppThwackCompactResult.Outcome.Pass, AppThwackCompactResult.Grouping.Type).get(0).get(0));
+        assertSame(compact.getName(compact.indexOf(0)), compact.getName(compact.indexOf(Tests)));
+        assertEquals(-1, compact.indexOf(Devices * Tests));
+
+        assertEquals(AppThwackCompactResult.of(bound).size(), compact.size());
+        assertNull(compact.getWebUrl(index));
+    }
+
+    /**
+     * Compact, diff and snapshot forms of a partially loaded result load the rest in one request.
+     */
+    public void testCompactFormsOfPartialResult() throws Exception {
+        AppThwackStubServer server = new AppThwackStubServer();
+        server.respondJson("/project", "[{\"id\": 1, \"name\": \"My Project\", \"url\": \"my-project\"}]");
+        server.respondJson("/run/1/7", json);
+        AppThwackApi api = new AppThwackApi(ApiKey, server.getDomain(), AppThwackStubServer.Root);
+        try {
+            AppThwackRun run = api.getProject(1).getRun(7);
+            AppThwackCompactResult compact = AppThwackCompactResult.of(run.getResults(EnumSet.of(Section.Summary)));
+            assertEquals(2, server.getRequestCount("/run/1/7"));
+            assertEquals(Devices * Tests, compact.size());
+            assertEquals(Devices, compact.getPerformance().size());
+
+            AppThwackResult before = run.getResults(EnumSet.of(Section.FailuresByDevice));
+            AppThwackResult after = run.getResults(EnumSet.noneOf(Section.class));
+            assertTrue(AppThwackResultDiff.of(before, after).getEntries().isEmpty());
+            assertEquals(5, server.getRequestCount("/run/1/7"));
+
+            AppThwackResult decoded = AppThwackResultCodec.decode(AppThwackResultCodec.encode(run.getResults(EnumSet.of(Section.Performance))));
+            assertEquals(7, server.getRequestCount("/run/1/7"));
+            assertEquals(countFailures(), count(decoded.failuresByJob));
+            assertEquals(Devices, decoded.performance.size());
+        }
+        finally {
+            api.close();
+            server.stop();
+        }
+    }
+
+    /**
+     * AppThwackResult.getPerformanceSeries()
+     */
+    public void testPerformanceSeries() throws Exception {
+        AppThwackResult result = new ObjectMapper().readValue(AppThwackResultFixture.jsonWithUnits(Devices, Tests, FailEvery), AppThwackResult.class);
+        AppThwackPerformanceSeries series = result.getPerformanceSeries();
+        assertSame(series, result.getPerformanceSeries());
+
+        assertEquals(Devices, series.getDeviceCount());
+        int d = series.indexOf(102);
+        assertEquals(2, d);
+        assertEquals(92.0, series.get(AppThwackPerformanceSeries.Metric.Cpu, AppThwackPerformanceSeries.Stat.Max, d));
+        assertEquals(52.5, series.get(AppThwackPerformanceSeries.Metric.Cpu, AppThwackPerformanceSeries.Stat.Avg, d));
+        assertTrue(Double.isNaN(series.get(AppThwackPerformanceSeries.Metric.Fps, AppThwackPerformanceSeries.Stat.Min, d)));
+        assertEquals(3L, series.getTimestamp(AppThwackPerformanceSeries.Metric.Cpu, AppThwackPerformanceSeries.Stat.Max, d));
+        assertTrue(Double.isNaN(series.get(AppThwackPerformanceSeries.Metric.FrameDrawTime, AppThwackPerformanceSeries.Stat.Max, d)));
+        assertEquals(-1, series.indexOf(1));
+
+        double[] memory = new double[Devices + 1];
+        assertEquals(Devices, series.copy(AppThwackPerformanceSeries.Metric.Memory, AppThwackPerformanceSeries.Stat.Max, memory, 1));
+        assertEquals(4000.0, memory[1]);
+        assertEquals(4005.0, memory[Devices]);
+
+        assertEquals(93.0, series.getSummary(AppThwackPerformanceSeries.Metric.Cpu, AppThwackPerformanceSeries.Stat.Max));
+        assertEquals(Integer.valueOf(100), series.getSummaryDevice(AppThwackPerformanceSeries.Metric.Cpu, AppThwackPerformanceSeries.Stat.Max).id);
+        assertTrue(Double.isNaN(AppThwackPerformanceSeries.parseValue("n/a")));
+        assertEquals(1024.0, AppThwackPerformanceSeries.parseValue(" 1024 MB"));
+    }
+
+    /**
+     * AppThwackQuantileSketch.getQuantile(double) within its relative accuracy, and after merging.
+     */
+    public void testQuantileSketch() throws Exception {
+        java.util.Random random = new java.util.Random(7);
+        double[] values = new double[10000];
+        AppThwackQuantileSketch sketch = new AppThwackQuantileSketch();
+        AppThwackQuantileSketch first = new AppThwackQuantileSketch();
+        AppThwackQuantileSketch second = new AppThwackQuantileSketch();
+        for(int i = 0; i < values.length; i++) {
+            values[i] = Math.exp(random.nextGaussian() * 2);
+            sketch.add(values[i]);
+            (i % 2 == 0 ? first : second).add(values[i]);
+        }
+        first.merge(second);
+        java.util.Arrays.sort(values);
+        for(double q : new double[] {0.01, 0.5, 0.9, 0.99}) {
+            double exact = values[(int)(q * (values.length - 1))];
+            assertEquals(exact, sketch.getQuantile(q), exact * 0.011);
+            assertEquals(sketch.getQuantile(q), first.getQuantile(q));
+        }
+        assertEquals(values[0], sketch.getQuantile(0));
+        assertEquals(values.length, first.getCount());
+
+        AppThwackQuantileSketch bounded = new AppThwackQuantileSketch(0.01, 64);
+        for(int i = 1; i <= 100000; i++) {
+            bounded.add(i);
+        }
+        assertEquals(99000.0, bounded.getQuantile(0.99), 99000 * 0.011);
+        assertTrue(Double.isNaN(new AppThwackQuantileSketch().getQuantile(0.5)));
+    }
+
+    /**
+     * AppThwackPerformanceAnalytics.getSummary(Metric) and getOutliers(Metric, double)
+     */
+    public void testPerformanceAnalytics() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        String pool = AppThwackResultFixture.jsonWithUnits(12, 1, 0);
+        AppThwackPerformanceAnalytics analytics = new AppThwackPerformanceAnalytics();
+        for(int run = 0; run < 3; run++) {
+            AppThwackResult result = mapper.readValue(pool, AppThwackResult.class);
+            result.performance.get(4).cpu.avg.value = "99";
+            result.performanceSummary.fpsAvg.value = String.valueOf(50 + 5 * run);
+            analytics.add(result);
+        }
+        assertEquals(3, analytics.getRunCount());
+        assertEquals(12, analytics.getDeviceCount());
+
+        AppThwackPerformanceAnalytics.MetricSummary memory = analytics.getSummary(AppThwackPerformanceSeries.Metric.Memory);
+        assertEquals(36, memory.count);
+        assertEquals(2006.0, memory.mean, 1e-9);
+        assertEquals(2000.5, memory.min);
+        assertEquals(2011.5, memory.max);
+        assertEquals(2005.5, memory.p50, 2005.5 * 0.01);
+        assertTrue(memory.standardDeviation > 3 && memory.standardDeviation < 4);
+
+        List<AppThwackPerformanceAnalytics.Outlier> outliers = analytics.getOutliers(AppThwackPerformanceSeries.Metric.Cpu, 2.5);
+        assertEquals(1, outliers.size());
+        assertEquals(Integer.valueOf(104), outliers.get(0).device.id);
+        assertEquals(99.0, outliers.get(0).value);
+        assertTrue(analytics.getOutliers(AppThwackPerformanceSeries.Metric.Memory, 2.5).isEmpty());
+
+        AppThwackPerformanceAnalytics.MetricSummary fps = analytics.getSummary(AppThwackPerformanceSeries.Metric.Fps);
+        assertEquals(3, fps.count);
+        assertEquals(55.0, fps.mean, 1e-9);
+        assertEquals(50.0, fps.min);
+        assertEquals(60.0, fps.max);
+        assertEquals(55.0, fps.p50, 55.0 * 0.01);
+        AppThwackPerformanceAnalytics.MetricSummary draw = analytics.getSummary(AppThwackPerformanceSeries.Metric.FrameDrawTime);
+        assertEquals(3, draw.count);
+        assertEquals(16.5, draw.mean, 1e-9);
+        assertEquals(16.5, draw.p50, 16.5 * 0.01);
+        assertEquals(16.5, draw.p90, 16.5 * 0.01);
+        assertEquals(12, analytics.getDeviceCount());
+    }
+
+    /**
+     * AppThwackRegressionGate.evaluate(AppThwackResult, AppThwackResult...)
+     */
+    public void testRegressionGate() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        String units = AppThwackResultFixture.jsonWithUnits(Devices, Tests, FailEvery);
+        AppThwackResult baseline = mapper.readValue(units, AppThwackResult.class);
+        AppThwackResult same = mapper.readValue(units, AppThwackResult.class);
+        AppThwackResult build = mapper.readValue(AppThwackResultFixture.jsonWithUnits(Devices + 1, Tests, FailEvery), AppThwackResult.class);
+        baseline.performanceSummary.fpsAvg = summaryValue("54.5");
+        same.performanceSummary.fpsAvg = summaryValue("54.5");
+        build.performanceSummary.fpsAvg = summaryValue("40");
+        build.performance.get(3).memory.avg.value = "2010";
+        build.performance.get(4).memory.avg.value = "2100";
+        build.performance.get(5).cpu.avg.value = "10";
+
+        AppThwackRegressionGate gate = new AppThwackRegressionGate();
+        gate.setAbsoluteThreshold(AppThwackPerformanceSeries.Metric.Fps, 5.0);
+        gate.setRelativeThreshold(AppThwackPerformanceSeries.Metric.Memory, 0.02);
+        gate.setRelativeThreshold(AppThwackPerformanceSeries.Metric.Cpu, 0.1);
+
+        AppThwackRegressionGate.Report report = gate.evaluate(baseline, same, build);
+        assertEquals(AppThwackRegressionGate.Verdict.Fail, report.getVerdict());
+        List<AppThwackRegressionGate.Comparison> regressions = report.getRegressions();
+        assertEquals(2, regressions.size());
+        assertEquals(1, regressions.get(0).run);
+        assertNull(regressions.get(0).device);
+        assertEquals(AppThwackPerformanceSeries.Metric.Fps, regressions.get(0).metric);
+        assertEquals(-14.5, regressions.get(0).getDelta());
+        assertEquals(Integer.valueOf(104), regressions.get(1).device.id);
+        assertEquals(1, report.getUnmatchedDevices().size());
+        assertEquals(Integer.valueOf(100 + Devices), report.getUnmatchedDevices().get(0).id);
+
+        assertTrue(gate.evaluate(baseline, same).isPassed());
+        gate.setAbsoluteThreshold(AppThwackPerformanceSeries.Metric.Fps, 20.0);
+        gate.setRelativeThreshold(AppThwackPerformanceSeries.Metric.Memory, null);
+        assertTrue(gate.evaluate(baseline, build).isPassed());
+    }
+
+    /**
+     * AppThwackResultDiff.of(AppThwackResult, AppThwackResult)
+     */
+    public void testResultDiff() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        AppThwackResult before = mapper.readValue(json, AppThwackResult.class);
+        AppThwackResult after = mapper.readValue(AppThwackResultFixture.json(Devices + 1, Tests - 1, 5), AppThwackResult.class);
+        assertTrue(AppThwackResultDiff.of(before, mapper.readValue(json, AppThwackResult.class)).isEmpty());
+
+        int changed = 0;
+        int fixed = 0;
+        int newFailures = 0;
+        for(int d = 0; d <= Devices; d++) {
+            for(int t = 0; t < Tests - 1; t++) {
+                boolean failed = AppThwackResultFixture.isFailure(d, t, FailEvery);
+                boolean fails = AppThwackResultFixture.isFailure(d, t, 5);
+                if(d == Devices) {
+                    newFailures += fails ? 1 : 0;
+                }
+                else if(failed != fails) {
+                    changed++;
+                    fixed += failed ? 1 : 0;
+                    newFailures += fails ? 1 : 0;
+                }
+            }
+        }
+
+        AppThwackResultDiff diff = AppThwackResultDiff.of(before, after);
+        assertEquals(Tests - 1, diff.getAdded().size());
+        assertEquals(String.valueOf(100 + Devices), diff.getAdded().get(0).test.device);
+        assertEquals(Devices, diff.getRemoved().size());
+        assertEquals(AppThwackResultFixture.testName(Tests - 1), diff.getRemoved().get(0).test.name);
+        assertEquals("JUnit", diff.getRemoved().get(0).test.job);
+        assertEquals(changed, diff.getChanged().size());
+        assertEquals(fixed, diff.getFixed().size());
+        assertEquals(newFailures, diff.getNewFailures().size());
+
+        List<AppThwackResultDiff.Spread> spreads = diff.getSpreadingFailures();
+        assertFalse(spreads.isEmpty());
+        for(AppThwackResultDiff.Spread spread : spreads) {
+            assertTrue(spread.after > spread.before);
+        }
+        assertTrue(spreads.get(0).after - spreads.get(0).before >= spreads.get(spreads.size() - 1).after - spreads.get(spreads.size() - 1).before);
+    }
+
+    /**
+     * AppThwackResultDiff.of(AppThwackCompactResult, AppThwackCompactResult) on two runs of
+     * 100k results each is correct, and the keys it indexes by do not collide.
+     */
+    public void testResultDiffAtScale() throws Exception {
+        AppThwackCompactResult[] large = {compact(500, 200, FailEvery), compact(500, 200, 5)};
+        assertEquals(100000, large[0].size());
+
+        int changed = 0;
+        for(int d = 0; d < 500; d++) {
+            for(int t = 0; t < 200; t++) {
+                changed += AppThwackResultFixture.isFailure(d, t, FailEvery) != AppThwackResultFixture.isFailure(d, t, 5) ? 1 : 0;
+            }
+        }
+        AppThwackResultDiff diff = AppThwackResultDiff.of(large[0], large[1]);
+        assertEquals(changed, diff.getChanged().size());
+        assertTrue(diff.getAdded().isEmpty());
+        assertTrue(diff.getRemoved().isEmpty());
+
+
+        // The diff indexes each run once in a hash map, so it stays linear as long as the keys of
+        // a run spread over distinct hash codes; colliding keys would make every lookup a scan.
+        String[] devices = large[0].getGroupLabels(AppThwackCompactResult.Grouping.Device);
+        String[] jobs = large[0].getGroupLabels(AppThwackCompactResult.Grouping.Job);
+        Set<AppThwackResultDiff.TestKey> keys = new HashSet<AppThwackResultDiff.TestKey>();
+        Set<Integer> hashes = new HashSet<Integer>();
+        for(int i = 0; i < large[0].size(); i++) {
+            AppThwackResultDiff.TestKey key = new AppThwackResultDiff.TestKey(large[0].getName(i), devices[i], jobs[i]);
+            keys.add(key);
+            hashes.add(key.hashCode());
+        }
+        assertEquals(100000, keys.size());
+        assertTrue(hashes.size() + " distinct hash codes", hashes.size() > 99000);
+    }
+
+    private static AppThwackCompactResult compact(int devices, int tests, int failEvery) throws Exception {
+        byte[] document = AppThwackResultFixture.json(devices, tests, failEvery).getBytes("UTF-8");
+        return AppThwackCompactResult.read(new ByteArrayInputStream(document));
+    }
+
+    /**
+     * AppThwackResultCodec.decode(AppThwackResultCodec.encode(result)) reproduces the result.
+     */
+    public void testCodecRoundTrip() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        AppThwackResult result = mapper.readValue(json, AppThwackResult.class);
+        result.summary.id = -5;
+        result.summary.passes = Integer.MAX_VALUE;
+        result.summary.errors = Integer.MIN_VALUE;
+        result.performance.get(0).cpu.min.name = "\u00e9t\u00e9 \u2603";
+        result.warningsByJob = null;
+        byte[] snapshot = AppThwackResultCodec.encode(result);
+
+        AppThwackResult decoded = AppThwackResultCodec.decode(snapshot);
+        assertEquals(mapper.writeValueAsString(result), mapper.writeValueAsString(decoded));
+        assertNull(decoded.warningsByJob);
+        assertSame(decoded.passesByJob.get(0).results.get(0), decoded.passesByDevice.get(0).results.get(0));
+        assertEquals(93.0, decoded.getPerformanceSeries().getSummary(AppThwackPerformanceSeries.Metric.Cpu, AppThwackPerformanceSeries.Stat.Max));
+
+        java.nio.ByteBuffer direct = java.nio.ByteBuffer.allocateDirect(snapshot.length + 3);
+        direct.put(new byte[3]).put(snapshot).position(3);
+        assertEquals(mapper.writeValueAsString(result), mapper.writeValueAsString(AppThwackResultCodec.decode(direct)));
+        assertEquals(3, direct.position());
+
+        try {
+            AppThwackResultCodec.decode(java.util.Arrays.copyOf(snapshot, snapshot.length / 2));
+            fail("truncated snapshot decoded");
+        }
+        catch (AppThwackException e) {
+            assertTrue(e.getMessage().contains("truncated"));
+        }
+        snapshot[4] = 9;
+        try {
+            AppThwackResultCodec.decode(snapshot);
+            fail("unknown version decoded");
+        }
+        catch (AppThwackException e) {
+            assertTrue(e.getMessage().contains("version 9"));
+        }
+    }
+
+    /**
+     * Corrupt table sizes and lengths fail with AppThwackException instead of allocating
+     * or throwing runtime errors.
+     */
+    public void testCodecRejectsCorruptCounts() throws Exception {
+        byte[] snapshot = AppThwackResultCodec.encode(new ObjectMapper().readValue(json, AppThwackResult.class));
+        byte[][] corrupt = {
+            // String table of 2^31 - 1 entries, then of -1 entries.
+            header(snapshot, 0xFF, 0xFF, 0xFF, 0xFF, 0x07),
+            header(snapshot, 0xFF, 0xFF, 0xFF, 0xFF, 0x0F),
+            // One string of 2^28 bytes.
+            header(snapshot, 0x01, 0x80, 0x80, 0x80, 0x80, 0x01),
+        };
+        for(byte[] bytes : corrupt) {
+            try {
+                AppThwackResultCodec.decode(bytes);
+                fail("corrupt snapshot decoded");
+            }
+            catch (AppThwackException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("corrupt"));
+            }
+        }
+
+        // Any single damaged byte either still decodes or fails with AppThwackException.
+        for(int i = 5; i < snapshot.length; i++) {
+            byte[] damaged = snapshot.clone();
+            damaged[i] = (byte)0xFF;
+            try {
+                AppThwackResultCodec.decode(damaged);
+            }
+            catch (AppThwackException e) {
+                // Expected for most positions.
+            }
+        }
+    }
+
+    /**
+     * The magic number and version of a snapshot followed by the given bytes.
+     */
+    private static byte[] header(byte[] snapshot, int... body) {
+        byte[] bytes = java.util.Arrays.copyOf(snapshot, 5 + body.length);
+        for(int i = 0; i < body.length; i++) {
+            bytes[5 + i] = (byte)body[i];
+        }
+        return bytes;
+    }
+
+    /**
+     * A binary snapshot is much smaller than the JSON document.
+     */
+    public void testCodecSmallerThanJson() throws Exception {
+        byte[] document = AppThwackResultFixture.json(20, 200, FailEvery).getBytes("UTF-8");
+        byte[] snapshot = AppThwackResultCodec.encode(new ObjectMapper().readValue(document, AppThwackResult.class));
+        assertTrue(String.format("snapshot is %d bytes, JSON %d", snapshot.length, document.length),
+                snapshot.length * 4 < document.length);
+    }
+
+    /**
+     * A binary snapshot decodes faster than Jackson parses the JSON document. Each is timed
+     * at its best of several interleaved rounds, so a slow round on a busy machine does not
+     * count; decoding is several times faster, so only a real regression reaches parity.
+     */
+    public void testCodecFasterThanJson() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        byte[] document = AppThwackResultFixture.json(20, 200, FailEvery).getBytes("UTF-8");
+        byte[] snapshot = AppThwackResultCodec.encode(mapper.readValue(document, AppThwackResult.class));
+
+        long json = Long.MAX_VALUE;
+        long binary = Long.MAX_VALUE;
+        for(int i = 0; i < 20; i++) {
+            long start = System.nanoTime();
+            mapper.readValue(document, AppThwackResult.class);
+            json = Math.min(json, System.nanoTime() - start);
+            start = System.nanoTime();
+            AppThwackResultCodec.decode(snapshot);
+            binary = Math.min(binary, System.nanoTime() - start);
+        }
+        assertTrue(String.format("snapshot decoded in %d us, JSON in %d us", binary / 1000, json / 1000), binary < json);
+    }
+
+    private static AppThwackResult.PerformanceResultSummary summaryValue(String value) {
+        AppThwackResult.PerformanceResultSummary summary = new AppThwackResult.PerformanceResultSummary();
+        summary.value = value;
+        return summary;
+    }
+
+    static int count(List<ResultContainer> containers) {
+        int n = 0;
+        for(ResultContainer container : containers) {
+            n += container.results.size();
+        }
+        return n;
+    }
+
+    static int countFailures() {
+        int n = 0;
+        for(int d = 0; d < Devices; d++) {
+            for(int t = 0; t < Tests; t++) {
+                n += AppThwackResultFixture.isFailure(d, t, FailEvery) ? 1 : 0;
+            }
+        }
+        return n;
+    }
+}
@@ -0,0 +1,212 @@
+package com.appthwack.appthwack;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.sun.jersey.api.client.UniformInterfaceException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+public class AppThwackRunWatcherTest extends TestCase {
+
+    private static final String ApiKey = "test-api-key";
+    private static final String Running = "{\"status\": \"running\", \"count\": 4, \"completed\": 1}";
+    private static final String Completed = "{\"status\": \"completed\", \"count\": 4, \"completed\": 4, \"report_file\": \"report.zip\"}";
+    private static final AppThwackPollingPolicy Fast = AppThwackPollingPolicy.fixed(20);
+
+    private AppThwackStubServer server;
+    private AppThwackApi api;
+    private AppThwackRunWatcher watcher;
+
+    public AppThwackRunWatcherTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(AppThwackRunWatcherTest.class);
+    }
+
+    protected void setUp() throws Exception {
+        server = new AppThwackStubServer();
+        server.respondJson("/project", "[{\"id\": 1, \"name\": \"My Project\", \"url\": \"my-project\"}]");
+        server.respondJson("/run/1/7", AppThwackResultFixture.json(2, 3, 2));
+        api = new AppThwackApi(ApiKey, server.getDomain(), AppThwackStubServer.Root);
+        watcher = new AppThwackRunWatcher(2);
+    }
+
+    protected void tearDown() {
+        watcher.close();
+        api.close();
+        server.stop();
+    }
+
+    /**
+     * Answer the summary of run 7 with the given statuses in turn, repeating the last one.
+     * A number is sent as an empty response with that status code.
+     */
+    private void summaries(final Object... responses) {
+        final AtomicInteger calls = new AtomicInteger();
+        server.handle("/run/1/7/summary", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                Object response = responses[Math.min(calls.getAndIncrement(), responses.length - 1)];
+                if(response instanceof Integer) {
+                    AppThwackStubServer.send(exchange, (Integer)response, "text/plain", new byte[0]);
+                }
+                else {
+                    AppThwackStubServer.send(exchange, 200, "application/json", ((String)response).getBytes("UTF-8"));
+                }
+            }
+        });
+    }
+
+    /**
+     * The run is checked until it completes, then its results complete the future and the listener.
+     */
+    public void testWatchUntilCompleted() throws Exception {
+        summaries(Running, Running, Completed);
+        final AtomicReference<AppThwackResult> notified = new AtomicReference<AppThwackResult>();
+        AppThwackRun run = api.getProject(1).getRun(7);
+        CompletableFuture<AppThwackResult> future = watcher.watch(run, Fast, new AppThwackRunWatcher.Listener() {
+            public void onCompleted(AppThwackRun run, AppThwackResult result) {
+                notified.set(result);
+            }
+
+            public void onFailed(AppThwackRun run, Throwable error) {
+            }
+        });
+        assertSame(future, watcher.watch(run, Fast));
+
+        AppThwackResult result = future.get(10, TimeUnit.SECONDS);
+        assertTrue(result.isCompleted());
+        assertSame(result, notified.get());
+        assertEquals(3, server.getRequestCount("/run/1/7/summary"));
+        assertEquals(1, server.getRequestCount("/run/1/7"));
+        assertEquals(0, watcher.size());
+    }
+
+    /**
+     * Server errors are retried on the next tick instead of failing the watch.
+     */
+    public void testTransientErrorsRetried() throws Exception {
+        summaries(503, Running, 500, 502, Completed);
+        AppThwackResult result = watcher.watch(api.getProject(1).getRun(7), Fast).get(10, TimeUnit.SECONDS);
+        assertTrue(result.isCompleted());
+        assertEquals(5, server.getRequestCount("/run/1/7/summary"));
+    }
+
+    /**
+     * The watch fails once the retry policy gives up, or at once on a client error.
+     */
+    public void testPersistentErrorsFail() throws Exception {
+        watcher.setRetryPolicy(new AppThwackRetryPolicy(3));
+        summaries(500);
+        try {
+            watcher.watch(api.getProject(1).getRun(7), Fast).get(10, TimeUnit.SECONDS);
+            fail("expected the watch to fail");
+        }
+        catch (ExecutionException e) {
+            assertEquals(500, ((UniformInterfaceException)e.getCause()).getResponse().getStatus());
+        }
+        assertEquals(3, server.getRequestCount("/run/1/7/summary"));
+
+        summaries(404);
+        try {
+            watcher.watch(api.getProject(1).getRun(7), Fast).get(10, TimeUnit.SECONDS);
+            fail("expected the watch to fail");
+        }
+        catch (ExecutionException e) {
+            assertEquals(404, ((UniformInterfaceException)e.getCause()).getResponse().getStatus());
+        }
+        assertEquals(4, server.getRequestCount("/run/1/7/summary"));
+    }
+
+    /**
+     * A check the executor refuses fails the watch and removes it, whether it is the first
+     * check or a later one.
+     */
+    public void testRejectedCheckFailsWatch() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        AppThwackRunWatcher rejecting = new AppThwackRunWatcher(executor);
+        try {
+            AppThwackRun run = api.getProject(1).getRun(7);
+            assertRejected(rejecting.watch(run, Fast));
+            assertEquals(0, rejecting.size());
+            assertNotSame(rejecting.watch(run, Fast), rejecting.watch(run, Fast));
+        }
+        finally {
+            rejecting.close();
+        }
+
+        // The first check runs, then the executor is shut down before the next one.
+        summaries(Running);
+        final ExecutorService later = Executors.newSingleThreadExecutor();
+        rejecting = new AppThwackRunWatcher(new java.util.concurrent.Executor() {
+            private final AtomicInteger checks = new AtomicInteger();
+
+            public void execute(Runnable command) {
+                later.execute(command);
+                if(checks.incrementAndGet() == 1) {
+                    later.shutdown();
+                }
+            }
+        });
+        try {
+            assertRejected(rejecting.watch(api.getProject(1).getRun(7), Fast));
+            // The entry is removed by a completion hook, which may still be running.
+            for(int i = 0; i < 100 && rejecting.size() > 0; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, rejecting.size());
+        }
+        finally {
+            rejecting.close();
+        }
+    }
+
+    private static void assertRejected(CompletableFuture<AppThwackResult> future) throws Exception {
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail("expected the watch to fail");
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+
+    /**
+     * unwatch() cancels the future and stops polling.
+     */
+    public void testUnwatch() throws Exception {
+        summaries(Running);
+        AppThwackRun run = api.getProject(1).getRun(7);
+        CompletableFuture<AppThwackResult> future = watcher.watch(run, Fast);
+        Thread.sleep(100);
+        assertTrue(watcher.unwatch(run));
+        assertTrue(future.isCancelled());
+        assertEquals(0, watcher.size());
+        Thread.sleep(100);
+        int polled = server.getRequestCount("/run/1/7/summary");
+        Thread.sleep(200);
+        assertEquals(polled, server.getRequestCount("/run/1/7/summary"));
+        try {
+            future.get();
+            fail("expected the watch to be cancelled");
+        }
+        catch (CancellationException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.appthwack.appthwack;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Minimal local HTTP server used to exercise the client without reaching AppThwack.
+ * Handlers are registered by exact request path (e.g. "/api/project").
+ */
+public class AppThwackStubServer {
+
+    public static final String Root = "/api";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String, HttpHandler> handlers = new ConcurrentHashMap<String, HttpHandler>();
+    private final ConcurrentHashMap<String, AtomicInteger> counts = new ConcurrentHashMap<String, AtomicInteger>();
+    private final Set<Integer> remotePorts = Collections.synchronizedSet(new HashSet<Integer>());
+
+    public AppThwackStubServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                dispatch(exchange);
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Respond to every request for the given API path with a fixed body.
+     */
+    public void respond(String path, final int status, final String contentType, final byte[] body) {
+        handle(path, new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                send(exchange, status, contentType, body);
+            }
+        });
+    }
+
+    /**
+     * Respond to every request for the given API path with a fixed JSON document.
+     */
+    public void respondJson(String path, String json) {
+        try {
+            respond(path, 200, "application/json", json.getBytes("UTF-8"));
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void handle(String path, HttpHandler handler) {
+        handlers.put(Root + path, handler);
+    }
+
+    public String getDomain() {
+        return String.format("http://127.0.0.1:%d", server.getAddress().getPort());
+    }
+
+    public int getRequestCount(String path) {
+        AtomicInteger count = counts.get(Root + path);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * Number of distinct client connections (by remote port) seen so far.
+     */
+    public int getConnectionCount() {
+        return remotePorts.size();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    private void dispatch(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        remotePorts.add(exchange.getRemoteAddress().getPort());
+        counts.putIfAbsent(path, new AtomicInteger());
+        counts.get(path).incrementAndGet();
+
+        HttpHandler handler = handlers.get(path);
+        if(handler == null) {
+            send(exchange, 404, "text/plain", new byte[0]);
+            return;
+        }
+        try {
+            handler.handle(exchange);
+        }
+        finally {
+            exchange.close();
+        }
+    }
+}
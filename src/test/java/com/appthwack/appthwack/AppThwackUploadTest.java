@@ -0,0 +1,401 @@
+package com.appthwack.appthwack;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+public class AppThwackUploadTest extends TestCase {
+
+    private static final String ApiKey = "test-api-key";
+    private static final int FileSize = 5 * 1024 * 1024 + 17;
+
+    private AppThwackStubServer server;
+    private AppThwackApi api;
+    private File file;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicReference<String> transferEncoding = new AtomicReference<String>();
+
+    public AppThwackUploadTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(AppThwackUploadTest.class);
+    }
+
+    protected void setUp() throws Exception {
+        server = new AppThwackStubServer();
+        server.handle("/file", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                transferEncoding.set(exchange.getRequestHeaders().getFirst("Transfer-Encoding"));
+                received.set(drain(exchange.getRequestBody()));
+                AppThwackStubServer.send(exchange, 200, "application/json", "{\"file_id\": 42}".getBytes("UTF-8"));
+            }
+        });
+        api = new AppThwackApi(ApiKey, server.getDomain(), AppThwackStubServer.Root);
+
+        file = File.createTempFile("appthwack", ".apk");
+        byte[] data = new byte[FileSize];
+        new Random(7).nextBytes(data);
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(data);
+        out.close();
+    }
+
+    protected void tearDown() {
+        api.close();
+        server.stop();
+        file.delete();
+    }
+
+    /**
+     * AppThwackApi.uploadFile(Path, String, AppThwackProgressListener)
+     */
+    public void testStreamingUpload() throws AppThwackException {
+        final List<Long> progress = new ArrayList<Long>();
+        AppThwackFile uploaded = api.uploadFile(file.toPath(), "app.apk", new AppThwackProgressListener() {
+            public void onProgress(long bytes, long total, double bytesPerSecond) {
+                assertEquals(FileSize, total);
+                assertTrue(bytesPerSecond >= 0);
+                progress.add(bytes);
+            }
+        });
+
+        assertEquals(Integer.valueOf(42), uploaded.id);
+        assertEquals("chunked", transferEncoding.get());
+        assertTrue("multipart body smaller than file", received.get() > FileSize);
+
+        assertTrue("too few progress updates", progress.size() > 10);
+        for(int i = 1; i < progress.size(); i++) {
+            assertTrue("progress went backwards", progress.get(i) > progress.get(i - 1));
+        }
+        assertEquals(Long.valueOf(FileSize), progress.get(progress.size() - 1));
+    }
+
+    /**
+     * AppThwackApi.uploadFile(Path, String, AppThwackProgressListener) with a missing file.
+     */
+    public void testStreamingUploadMissingFile() {
+        try {
+            api.uploadFile(new File(file.getPath() + ".missing").toPath(), "app.apk", null);
+            fail("uploadFile accepted a missing file");
+        }
+        catch (AppThwackException e) {
+            assertEquals("file does not exist", e.getMessage());
+        }
+    }
+
+    /**
+     * Requests with buffered bodies keep HttpClient's transport retries; streamed uploads do not.
+     */
+    public void testTransportRetriesOnlyForBufferedBodies() throws Exception {
+        final AtomicInteger drops = new AtomicInteger(1);
+        HttpHandler dropFirst = new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                drain(exchange.getRequestBody());
+                if(drops.getAndDecrement() > 0) {
+                    // Close the connection without answering.
+                    exchange.close();
+                    return;
+                }
+                AppThwackStubServer.send(exchange, 200, "application/json", "{\"run_id\": 7, \"file_id\": 42}".getBytes("UTF-8"));
+            }
+        };
+        server.respondJson("/project", "[{\"id\": 1, \"name\": \"My Project\", \"url\": \"my-project\"}]");
+        server.handle("/run", dropFirst);
+        server.handle("/file", dropFirst);
+
+        assertEquals(Integer.valueOf(7), api.getProject(1).scheduleWebRun("nightly", "http://example.com").id);
+        assertEquals(2, server.getRequestCount("/run"));
+
+        drops.set(1);
+        try {
+            api.uploadFile(file.toPath(), "app.apk", null);
+            fail("a dropped streamed upload was silently repeated");
+        }
+        catch (RuntimeException e) {
+            assertEquals(1, server.getRequestCount("/file"));
+        }
+    }
+
+    /**
+     * AppThwackApi.setUploadCache(AppThwackUploadCache)
+     */
+    public void testUploadCacheSkipsUnchangedFile() throws Exception {
+        File index = File.createTempFile("appthwack", ".index");
+        index.delete();
+        try {
+            api.setUploadCache(new AppThwackUploadCache(index.toPath()));
+            assertEquals(Integer.valueOf(42), api.uploadFile(file).id);
+            assertEquals(Integer.valueOf(42), api.uploadFile(file.toPath(), file.getName(), null).id);
+            assertEquals(1, server.getRequestCount("/file"));
+
+            // The same contents under another name are a different upload.
+            api.uploadFile(file.toPath(), "app.apk", null);
+            assertEquals(2, server.getRequestCount("/file"));
+
+            // The index survives a restart.
+            api.setUploadCache(new AppThwackUploadCache(index.toPath()));
+            assertEquals(Integer.valueOf(42), api.uploadFile(file).id);
+            api.uploadFile(file.toPath(), "app.apk", null);
+            assertEquals(2, server.getRequestCount("/file"));
+
+            // Expired entries are uploaded again.
+            api.setUploadCache(new AppThwackUploadCache(index.toPath(), 0));
+            api.uploadFile(file);
+            assertEquals(3, server.getRequestCount("/file"));
+        }
+        finally {
+            index.delete();
+        }
+    }
+
+    /**
+     * An upload whose index entry cannot be written is still returned, and remembered in memory.
+     */
+    public void testUploadCacheWriteFailureNotFatal() throws Exception {
+        File directory = Files.createTempDirectory("appthwack").toFile();
+        File index = new File(directory, "index");
+        try {
+            api.setUploadCache(new AppThwackUploadCache(index.toPath()));
+            // A directory in place of the index makes every append fail.
+            assertTrue(index.mkdir());
+            assertEquals(Integer.valueOf(42), api.uploadFile(file).id);
+            assertEquals(Integer.valueOf(42), api.uploadFile(file).id);
+            assertEquals(1, server.getRequestCount("/file"));
+        }
+        finally {
+            index.delete();
+            directory.delete();
+        }
+    }
+
+    /**
+     * AppThwackUploadPipeline.upload()
+     */
+    public void testPipelineUploadsConcurrently() throws Exception {
+        final AtomicLong concurrent = new AtomicLong();
+        final AtomicLong peak = new AtomicLong();
+        server.handle("/file", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                long now = concurrent.incrementAndGet();
+                peak.accumulateAndGet(now, Math::max);
+                drain(exchange.getRequestBody());
+                try {
+                    Thread.sleep(300);
+                }
+                catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                concurrent.decrementAndGet();
+                AppThwackStubServer.send(exchange, 200, "application/json", "{\"file_id\": 42}".getBytes("UTF-8"));
+            }
+        });
+
+        AppThwackUploadPipeline pipeline = new AppThwackUploadPipeline(api, 2);
+        pipeline.add(AppThwackUploadPipeline.App, file);
+        pipeline.add(AppThwackUploadPipeline.Tests, file.toPath(), "tests.apk", null);
+        pipeline.add("extra", file.toPath(), "extra.zip", null);
+        Map<String, AppThwackFile> files = pipeline.upload();
+        pipeline.close();
+
+        assertEquals(Arrays.asList(AppThwackUploadPipeline.App, AppThwackUploadPipeline.Tests, "extra"), new ArrayList<String>(files.keySet()));
+        assertEquals(3, server.getRequestCount("/file"));
+        assertEquals("parallelism limit not honoured", 2, peak.get());
+    }
+
+    /**
+     * AppThwackApi.uploadFile(Path, String, AppThwackRetryPolicy, AppThwackProgressListener)
+     * against a server which supports resumable uploads and drops the connection mid-stream.
+     */
+    public void testResumableUploadContinuesFromAcknowledgedOffset() throws Exception {
+        final ByteArrayOutputStream stored = new ByteArrayOutputStream();
+        final AtomicInteger puts = new AtomicInteger();
+        final AtomicLong sent = new AtomicLong();
+        resumableSession(stored, puts, sent, 2, 1024 * 1024 + 3);
+
+        AppThwackRetryPolicy retry = new AppThwackRetryPolicy(5);
+        retry.setInitialBackoff(10);
+        final List<Long> progress = new ArrayList<Long>();
+        AppThwackFile uploaded = api.uploadFile(file.toPath(), "app.ipa", retry, new AppThwackProgressListener() {
+            public void onProgress(long bytes, long total, double bytesPerSecond) {
+                progress.add(bytes);
+            }
+        });
+
+        assertEquals(Integer.valueOf(43), uploaded.id);
+        assertEquals(3, puts.get());
+        assertEquals(2, server.getRequestCount("/file/session") - puts.get());
+        assertEquals("bytes were sent more than once", FileSize, sent.get());
+        assertTrue("upload corrupted", Arrays.equals(Files.readAllBytes(file.toPath()), stored.toByteArray()));
+        assertEquals(Long.valueOf(FileSize), progress.get(progress.size() - 1));
+    }
+
+    /**
+     * Serve a resumable upload session which keeps part of the first transfers and then
+     * drops the connection.
+     * @param failing number of transfers which fail.
+     * @param keep bytes kept from each failing transfer.
+     */
+    private void resumableSession(final ByteArrayOutputStream stored, final AtomicInteger puts, final AtomicLong sent,
+                                  final int failing, final long keep) {
+        server.handle("/file", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                assertEquals("uploadType=resumable", exchange.getRequestURI().getQuery());
+                assertEquals(String.valueOf(FileSize), exchange.getRequestHeaders().getFirst("X-Upload-Content-Length"));
+                exchange.getResponseHeaders().set("Location", server.getDomain() + AppThwackStubServer.Root + "/file/session");
+                AppThwackStubServer.send(exchange, 201, "text/plain", new byte[0]);
+            }
+        });
+        server.handle("/file/session", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                String range = exchange.getRequestHeaders().getFirst("Content-Range");
+                InputStream in = exchange.getRequestBody();
+                if(range.equals("bytes */" + FileSize)) {
+                    drain(in);
+                    synchronized (stored) {
+                        exchange.getResponseHeaders().set("Range", "bytes=0-" + (stored.size() - 1));
+                    }
+                    AppThwackStubServer.send(exchange, 308, "text/plain", new byte[0]);
+                    return;
+                }
+                synchronized (stored) {
+                    assertEquals("bytes " + stored.size() + "-" + (FileSize - 1) + "/" + FileSize, range);
+                }
+                int attempt = puts.incrementAndGet();
+                long limit = attempt <= failing ? keep : Long.MAX_VALUE;
+                byte[] buffer = new byte[8192];
+                long read = 0;
+                int n;
+                while (read < limit && (n = in.read(buffer, 0, (int)Math.min(buffer.length, limit - read))) != -1) {
+                    synchronized (stored) {
+                        stored.write(buffer, 0, n);
+                    }
+                    read += n;
+                }
+                sent.addAndGet(read);
+                if(attempt <= failing) {
+                    throw new IOException("injected failure");
+                }
+                AppThwackStubServer.send(exchange, 200, "application/json", "{\"file_id\": 43}".getBytes("UTF-8"));
+            }
+        });
+    }
+
+    /**
+     * A resumable upload which keeps making progress is not abandoned, however many
+     * transfers fail in total.
+     */
+    public void testResumableUploadRetriesWhileProgressing() throws Exception {
+        final ByteArrayOutputStream stored = new ByteArrayOutputStream();
+        final AtomicInteger puts = new AtomicInteger();
+        final AtomicLong sent = new AtomicLong();
+        resumableSession(stored, puts, sent, 4, 1024 * 1024);
+
+        AppThwackRetryPolicy retry = new AppThwackRetryPolicy(2);
+        retry.setInitialBackoff(10);
+        assertEquals(Integer.valueOf(43), api.uploadFile(file.toPath(), "app.ipa", retry, null).id);
+        assertEquals(5, puts.get());
+        assertEquals(FileSize, sent.get());
+        assertTrue("upload corrupted", Arrays.equals(Files.readAllBytes(file.toPath()), stored.toByteArray()));
+    }
+
+    /**
+     * A server which answers the resumable session request with server errors gets a
+     * regular multipart upload.
+     */
+    public void testResumableUploadFallsBackOnServerErrors() throws Exception {
+        final AtomicInteger sessions = new AtomicInteger();
+        server.handle("/file", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                if(exchange.getRequestURI().getQuery() != null) {
+                    sessions.incrementAndGet();
+                    AppThwackStubServer.send(exchange, 500, "text/plain", new byte[0]);
+                    return;
+                }
+                assertTrue("multipart body smaller than file", drain(exchange.getRequestBody()) > FileSize);
+                AppThwackStubServer.send(exchange, 200, "application/json", "{\"file_id\": 44}".getBytes("UTF-8"));
+            }
+        });
+
+        AppThwackRetryPolicy retry = new AppThwackRetryPolicy(5);
+        retry.setInitialBackoff(10);
+        assertEquals(Integer.valueOf(44), api.uploadFile(file.toPath(), "app.apk", retry, null).id);
+        assertEquals(2, sessions.get());
+        assertEquals(3, server.getRequestCount("/file"));
+    }
+
+    /**
+     * AppThwackApi.uploadFile(Path, String, AppThwackRetryPolicy, AppThwackProgressListener)
+     * against a server without resumable uploads.
+     */
+    public void testRetryWithoutRangeSupport() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        server.handle("/file", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                if(exchange.getRequestURI().getQuery() != null) {
+                    AppThwackStubServer.send(exchange, 400, "text/plain", new byte[0]);
+                    return;
+                }
+                int attempt = attempts.incrementAndGet();
+                InputStream in = exchange.getRequestBody();
+                if(attempt == 1) {
+                    in.read(new byte[8192]);
+                    throw new IOException("injected failure");
+                }
+                long length = drain(in);
+                if(attempt == 2) {
+                    AppThwackStubServer.send(exchange, 503, "text/plain", new byte[0]);
+                    return;
+                }
+                assertTrue("multipart body smaller than file", length > FileSize);
+                AppThwackStubServer.send(exchange, 200, "application/json", "{\"file_id\": 44}".getBytes("UTF-8"));
+            }
+        });
+
+        AppThwackRetryPolicy retry = new AppThwackRetryPolicy(3);
+        retry.setInitialBackoff(10);
+        assertEquals(Integer.valueOf(44), api.uploadFile(file.toPath(), "app.apk", retry, null).id);
+        assertEquals(3, attempts.get());
+
+        // Give up once the policy is exhausted.
+        attempts.set(1);
+        retry.setMaxAttempts(1);
+        try {
+            api.uploadFile(file.toPath(), "app.apk", retry, null);
+            fail("upload succeeded despite server error");
+        }
+        catch (AppThwackException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("after 1 attempts"));
+        }
+    }
+
+    private static long drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        long total = 0;
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            total += n;
+        }
+        return total;
+    }
+}